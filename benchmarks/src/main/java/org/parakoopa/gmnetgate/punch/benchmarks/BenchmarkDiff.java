@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files (-rf json -rff file.json) and prints the
+ * change of every benchmark.
+ * java -cp target/benchmarks.jar org.parakoopa.gmnetgate.punch.benchmarks.BenchmarkDiff before.json after.json
+ * @author Parakoopa
+ */
+public class BenchmarkDiff {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BenchmarkDiff <before.json> <after.json>");
+            System.exit(1);
+        }
+        Map<String, JsonObject> before = read(args[0]);
+        Map<String, JsonObject> after = read(args[1]);
+        for (Map.Entry<String, JsonObject> entry : after.entrySet()) {
+            JsonObject now = entry.getValue().getAsJsonObject("primaryMetric");
+            String unit = now.get("scoreUnit").getAsString();
+            double score = now.get("score").getAsDouble();
+            JsonObject old = before.get(entry.getKey());
+            if (old == null) {
+                System.out.println(String.format("%-70s %14s %14.3f %-10s %8s", entry.getKey(), "-", score, unit, "new"));
+                continue;
+            }
+            double oldScore = old.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+            System.out.println(String.format("%-70s %14.3f %14.3f %-10s %+7.1f%%",
+                    entry.getKey(), oldScore, score, unit, (score - oldScore) / oldScore * 100));
+        }
+        for (String name : before.keySet()) {
+            if (!after.containsKey(name)) {
+                System.out.println(String.format("%-70s %14s %14s %-10s %8s", name, "", "-", "", "removed"));
+            }
+        }
+    }
+
+    /**
+     * Reads a result file.
+     * @param file JMH JSON result file
+     * @return The results by benchmark name and parameters
+     */
+    private static Map<String, JsonObject> read(String file) throws IOException {
+        Map<String, JsonObject> results = new LinkedHashMap<>();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            JsonArray array = new JsonParser().parse(reader).getAsJsonArray();
+            for (JsonElement element : array) {
+                JsonObject result = element.getAsJsonObject();
+                String name = result.get("benchmark").getAsString();
+                name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+                if (result.has("params")) {
+                    for (Map.Entry<String, JsonElement> param : result.getAsJsonObject("params").entrySet()) {
+                        name += " " + param.getKey() + "=" + param.getValue().getAsString();
+                    }
+                }
+                results.put(name, result);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.util.Random;
+import org.parakoopa.gmnetgate.punch.Server;
+import org.parakoopa.gmnetgate.punch.ServerColumns;
+
+/**
+ * Measures the heap used by servers as objects and by their ServerColumns
+ * (100000 servers by default). Every server has its own data strings, like
+ * the ones read from the network. The snapshots keep their server copies,
+ * so with --lobby-columns the columns are needed in addition to them.
+ * Not a JMH benchmark, run it with
+ * java -cp target/benchmarks.jar org.parakoopa.gmnetgate.punch.benchmarks.ColumnsFootprint [servers]
+ * @author Parakoopa
+ */
+public final class ColumnsFootprint {
+
+    private ColumnsFootprint() {
+    }
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        long before = usedHeap();
+        Server[] servers = new Server[entries];
+        Random random = new Random(42);
+        for (int n = 0; n < entries; n++) {
+            servers[n] = Servers.create(random, n);
+        }
+        long objectBytes = usedHeap() - before;
+
+        ServerColumns columns = new ServerColumns(servers);
+        //The columns share the data strings with the servers, like in a snapshot.
+        long columnBytes = usedHeap() - before - objectBytes;
+
+        System.out.printf("%d servers%n", entries);
+        System.out.printf("Server objects: %,d bytes (%.1f per server)%n", objectBytes, (double) objectBytes / entries);
+        System.out.printf("ServerColumns:  %,d bytes more (%.1f per server, %d distinct strings)%n",
+                columnBytes, (double) columnBytes / entries, columns.getDictionarySize());
+        //Keep the servers and columns reachable until here
+        if (columns.getRows() != servers.length) {
+            System.out.println();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        //Repeat until the collector doesn't free anything anymore
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
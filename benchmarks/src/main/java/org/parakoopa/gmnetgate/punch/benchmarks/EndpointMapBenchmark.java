@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.parakoopa.gmnetgate.punch.AddressKey;
+import org.parakoopa.gmnetgate.punch.EndpointMap;
+import org.parakoopa.gmnetgate.punch.Server;
+
+/**
+ * Looking up the server of a packet's sender: String keys (the address is
+ * turned into a String for every packet) vs. packed address keys.
+ * Run RegistryFootprint for the memory of both maps.
+ * @author Parakoopa
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndpointMapBenchmark {
+
+    @Param({"1000", "100000"})
+    public int servers;
+
+    private InetAddress[] senders;
+    private String[] ips;
+    private ConcurrentHashMap<String, Server> stringMap;
+    private EndpointMap<Server> endpointMap;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        this.senders = new InetAddress[this.servers];
+        this.ips = new String[this.servers];
+        this.stringMap = new ConcurrentHashMap<>();
+        this.endpointMap = new EndpointMap<>();
+        for (int i = 0; i < this.servers; i++) {
+            //New objects like the ones of a recieved packet
+            this.senders[i] = InetAddress.getByAddress(new byte[] {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+            this.ips[i] = this.senders[i].getHostAddress();
+            Server serverObj = new Server(this.ips[i]);
+            this.stringMap.put(serverObj.getIp(), serverObj);
+            this.endpointMap.computeIfAbsent(serverObj.getKey(), k -> serverObj);
+        }
+    }
+
+    private InetAddress nextSender() {
+        int i = this.next;
+        this.next = i + 1 == this.servers ? 0 : i + 1;
+        return this.senders[i];
+    }
+
+    private String nextIp() {
+        int i = this.next;
+        this.next = i + 1 == this.servers ? 0 : i + 1;
+        //A new String like the argument of a command (its hash isn't cached yet)
+        return new String(this.ips[i]);
+    }
+
+    /** UDP packet: String from the sender address, then the lookup. */
+    @Benchmark
+    public Server stringKeySender() {
+        return this.stringMap.get(this.nextSender().getHostAddress());
+    }
+
+    /** UDP packet: Key from the sender address, then the lookup. */
+    @Benchmark
+    public Server packedKeySender() {
+        return this.endpointMap.get(AddressKey.of(this.nextSender()));
+    }
+
+    /** TCP connect: The IP is already a String. */
+    @Benchmark
+    public Server stringKeyConnect() {
+        return this.stringMap.get(this.nextIp());
+    }
+
+    /** TCP connect: The IP String is parsed. */
+    @Benchmark
+    public Server packedKeyConnect() {
+        return this.endpointMap.get(AddressKey.parse(this.nextIp()));
+    }
+}
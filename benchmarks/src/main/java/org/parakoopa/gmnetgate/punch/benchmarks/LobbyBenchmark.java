@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.parakoopa.gmnetgate.punch.Lobby;
+import org.parakoopa.gmnetgate.punch.LobbyBinaryEncoder;
+import org.parakoopa.gmnetgate.punch.LobbyEncoder;
+import org.parakoopa.gmnetgate.punch.Registry;
+import org.parakoopa.gmnetgate.punch.Server;
+
+/**
+ * The lobby2 command: filter, sort and encode the servers.
+ * encode and encodeBinary compare the JSON of lobby2 with the binary format
+ * of lobby3, run LobbySize for the size of both.
+ * @author Parakoopa
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LobbyBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int servers;
+
+    /**
+     * all: No filters, sorted by date.
+     * game: Servers of one game (10% of the servers), sorted by data2.
+     * top20: Servers of one game, sorted by date, limit 20.
+     */
+    @Param({"all", "game", "top20"})
+    public String query;
+
+    private Lobby uncached;
+    private Lobby cached;
+    private String[] args;
+    private Server[] result;
+    private final LobbyEncoder encoder = new LobbyEncoder();
+    private final LobbyBinaryEncoder binaryEncoder = new LobbyBinaryEncoder();
+    private final Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+
+    @Setup
+    public void setup() {
+        Registry registry = new Registry();
+        Servers.fill(registry, new Random(42), this.servers);
+        this.uncached = new Lobby(registry, 0);
+        this.cached = new Lobby(registry, 1024);
+        switch (this.query) {
+            case "game":
+                this.args = new String[] {"Game 3", "", "", "", "", "", "", "", "data2", "ASC", ""};
+                break;
+            case "top20":
+                this.args = new String[] {"Game 3", "", "", "", "", "", "", "", "date", "DESC", "20"};
+                break;
+            default:
+                this.args = new String[] {"", "", "", "", "", "", "", "", "date", "DESC", ""};
+        }
+        this.result = this.uncached.query(this.args);
+    }
+
+    /** Filter, sort and encode (every request is built). */
+    @Benchmark
+    public byte[] lobby2() {
+        return this.uncached.lobby2(this.args);
+    }
+
+    /** The same request again, answered by the cache. */
+    @Benchmark
+    public byte[] lobby2Cached() {
+        return this.cached.lobby2(this.args);
+    }
+
+    /** Filter and sort only. */
+    @Benchmark
+    public Server[] query() {
+        return this.uncached.query(this.args);
+    }
+
+    /** Encoding of the result only. */
+    @Benchmark
+    public byte[] encode() {
+        return this.encoder.encode(this.result);
+    }
+
+    /** Encoding of the result in the binary format of lobby3. */
+    @Benchmark
+    public byte[] encodeBinary() {
+        return this.binaryEncoder.encode(this.result);
+    }
+
+    /** Encoding of the result with Gson, like before the LobbyEncoder. */
+    @Benchmark
+    public byte[] encodeGson() {
+        byte[] json = this.gson.toJson(this.result).getBytes();
+        byte[] response = new byte[json.length + 2];
+        response[0] = (byte) 249;
+        System.arraycopy(json, 0, response, 1, json.length);
+        response[response.length - 1] = 10;
+        return response;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.parakoopa.gmnetgate.punch.Lobby;
+import org.parakoopa.gmnetgate.punch.Registry;
+import org.parakoopa.gmnetgate.punch.Server;
+
+/**
+ * Lobby requests (without the cache) while servers change their data, with
+ * a new registry snapshot after every change or collected for a few ms
+ * (100000 servers).
+ * @author Parakoopa
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LobbyChurnBenchmark {
+
+    private static final int ENTRIES = 100000;
+    private static final String[] TOP20 = {"Game 3", "", "", "", "", "", "", "", "date", "DESC", "20"};
+
+    /** Minimum ms between two snapshots. */
+    @Param({"0", "10"})
+    public int snapshotInterval;
+
+    private Registry registry;
+    private Lobby lobby;
+    private Server[] servers;
+
+    /** Own random source of each thread. */
+    @State(Scope.Thread)
+    public static class Sender {
+        private final Random random = new Random();
+    }
+
+    @Setup
+    public void setup() {
+        this.registry = new Registry(null, 0, 0, this.snapshotInterval);
+        Servers.fill(this.registry, new Random(42), ENTRIES);
+        this.lobby = new Lobby(this.registry, 0, 16, null);
+        this.servers = new Server[ENTRIES];
+        for (int n = 0; n < ENTRIES; n++) {
+            this.servers[n] = this.registry.findServer(Servers.ip(n));
+        }
+    }
+
+    /** 3 threads ask for the lobby... */
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public byte[] lobby() {
+        return this.lobby.lobby2(TOP20);
+    }
+
+    /** ...while 1 thread changes the data of servers. */
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public Server setData(Sender sender) {
+        Server serverObj = this.servers[sender.random.nextInt(ENTRIES)];
+        this.registry.setData(serverObj, 2, "Room " + sender.random.nextInt(1000));
+        return serverObj;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.util.Random;
+import org.parakoopa.gmnetgate.punch.Lobby;
+import org.parakoopa.gmnetgate.punch.LobbyBinaryEncoder;
+import org.parakoopa.gmnetgate.punch.LobbyEncoder;
+import org.parakoopa.gmnetgate.punch.Registry;
+import org.parakoopa.gmnetgate.punch.Server;
+
+/**
+ * Prints the size of the lobby responses as JSON (lobby2) and binary (lobby3),
+ * for the same servers and queries as LobbyBenchmark. Not a JMH benchmark, run it with
+ * java -cp target/benchmarks.jar org.parakoopa.gmnetgate.punch.benchmarks.LobbySize
+ * @author Parakoopa
+ */
+public final class LobbySize {
+
+    private static final String[][] QUERIES = {
+        {"all", "", "date", "DESC", ""},
+        {"game", "Game 3", "data2", "ASC", ""},
+        {"top20", "Game 3", "date", "DESC", "20"}
+    };
+
+    private LobbySize() {
+    }
+
+    public static void main(String[] args) {
+        LobbyEncoder json = new LobbyEncoder();
+        LobbyBinaryEncoder binary = new LobbyBinaryEncoder();
+        System.out.printf("%8s %-6s %8s %12s %12s %7s%n", "servers", "query", "result", "json", "binary", "ratio");
+        for (int servers : new int[] {100, 10000, 100000}) {
+            Registry registry = new Registry();
+            Servers.fill(registry, new Random(42), servers);
+            Lobby lobby = new Lobby(registry, 0);
+            for (String[] query : QUERIES) {
+                String[] lobbyArgs = {query[1], "", "", "", "", "", "", "", query[2], query[3], query[4]};
+                Server[] result = lobby.query(lobbyArgs);
+                int jsonBytes = json.encode(result).length;
+                int binaryBytes = binary.encode(result).length;
+                System.out.printf("%8d %-6s %8d %12d %12d %6.1f%%%n", servers, query[0], result.length,
+                        jsonBytes, binaryBytes, 100.0 * binaryBytes / jsonBytes);
+            }
+        }
+    }
+}
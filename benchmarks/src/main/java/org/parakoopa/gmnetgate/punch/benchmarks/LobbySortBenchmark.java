@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.parakoopa.gmnetgate.punch.Lobby;
+import org.parakoopa.gmnetgate.punch.Server;
+
+/**
+ * Sorting the whole lobby and cutting it off vs. selecting only the first
+ * servers (filter_limit set).
+ * @author Parakoopa
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LobbySortBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int servers;
+
+    @Param({"20", "50"})
+    public int limit;
+
+    @Param({"date", "data2"})
+    public String sortby;
+
+    private List<Server> list;
+    private Comparator<Server> comparator;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        this.list = new ArrayList<>(this.servers);
+        for (int i = 0; i < this.servers; i++) {
+            Server serverObj = Servers.create(random, i);
+            this.list.add(serverObj);
+        }
+        this.comparator = Lobby.getComparator(this.sortby, "DESC");
+    }
+
+    @Benchmark
+    public Server[] fullSort() {
+        return Arrays.copyOfRange(Lobby.sort(this.list, this.comparator), 0, Math.min(this.limit, this.servers));
+    }
+
+    @Benchmark
+    public Server[] topK() {
+        return Lobby.top(this.list, this.comparator, Math.min(this.limit, this.servers));
+    }
+}
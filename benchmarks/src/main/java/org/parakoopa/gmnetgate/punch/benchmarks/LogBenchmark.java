@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.parakoopa.gmnetgate.punch.AsyncLog;
+import org.parakoopa.gmnetgate.punch.Mediator;
+
+/**
+ * Throughput of the log (what Mediator.log() does after the level check)
+ * with 4 threads logging into a file. Lines that don't fit into the buffer
+ * are dropped, the "dropped" counter shows how many.
+ * @author Parakoopa
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class LogBenchmark {
+
+    private File file;
+    private AsyncLog log;
+
+    /** Lines per thread and iteration that were written or dropped. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Lines {
+        public long written;
+        public long dropped;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.file = File.createTempFile("gmnet-log", ".log");
+        this.log = new AsyncLog(null, this.file.getPath());
+        this.log.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    @Benchmark
+    public void log(Lines lines) {
+        if (this.log.offer("127.0.0.1:50000 | TCP |  Sending lobby based on requested filters")) {
+            lines.written++;
+        } else {
+            lines.dropped++;
+        }
+    }
+
+    /** A verbose line while --verbose is off. */
+    @Benchmark
+    public boolean verboseDisabled() {
+        return Mediator.isLogged(true);
+    }
+}
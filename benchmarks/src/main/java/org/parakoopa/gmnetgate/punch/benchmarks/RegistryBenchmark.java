@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.parakoopa.gmnetgate.punch.Client;
+import org.parakoopa.gmnetgate.punch.Registry;
+import org.parakoopa.gmnetgate.punch.Server;
+
+/**
+ * getServer/getClient of all cores at the same time (100000 servers and
+ * clients), alone and while other threads add and remove servers.
+ * @author Parakoopa
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+
+    private static final int ENTRIES = 100000;
+
+    private Registry registry;
+    private InetAddress[] addresses;
+
+    /** Own random source of each thread. */
+    @State(Scope.Thread)
+    public static class Sender {
+        private final Random random = new Random();
+
+        int next() {
+            return this.random.nextInt(ENTRIES);
+        }
+    }
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        this.registry = new Registry();
+        Servers.fill(this.registry, new Random(42), ENTRIES);
+        this.addresses = new InetAddress[ENTRIES];
+        for (int n = 0; n < ENTRIES; n++) {
+            this.addresses[n] = InetAddress.getByName(Servers.ip(n));
+            this.registry.getClient(this.addresses[n]).setPort(6510);
+        }
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Server getServer(Sender sender) {
+        return this.registry.getServer(this.addresses[sender.next()]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Client getClient(Sender sender) {
+        return this.registry.getClient(this.addresses[sender.next()]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Server findServerByIp(Sender sender) {
+        return this.registry.findServer(Servers.ip(sender.next()));
+    }
+
+    /** 6 threads look up servers... */
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(6)
+    public Server churnGetServer(Sender sender) {
+        return this.registry.getServer(this.addresses[sender.next()]);
+    }
+
+    /** ...while 2 threads remove servers and register them again. */
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public Server churnReplace(Sender sender) {
+        InetAddress address = this.addresses[sender.next()];
+        this.registry.destroyServer(address.getHostAddress());
+        Server serverObj = this.registry.getServer(address);
+        this.registry.setData(serverObj, 1, "Game 1");
+        return serverObj;
+    }
+}
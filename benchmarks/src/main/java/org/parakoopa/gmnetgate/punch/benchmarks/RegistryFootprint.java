@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import org.parakoopa.gmnetgate.punch.AddressKey;
+import org.parakoopa.gmnetgate.punch.Client;
+import org.parakoopa.gmnetgate.punch.EndpointMap;
+
+/**
+ * Measures the heap used by the client map with String keys and with packed
+ * address keys (100000 entries by default). Not a JMH benchmark, run it with
+ * java -cp target/benchmarks.jar org.parakoopa.gmnetgate.punch.benchmarks.RegistryFootprint [entries]
+ * @author Parakoopa
+ */
+public final class RegistryFootprint {
+
+    private RegistryFootprint() {
+    }
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        //The clients are the same in both cases, so they are created before the measurement.
+        Client[] clients = new Client[entries];
+        for (int i = 0; i < entries; i++) {
+            clients[i] = new Client();
+            clients[i].setPort(1024 + i % 60000);
+        }
+
+        long before = usedHeap();
+        ConcurrentHashMap<String, Client> stringMap = new ConcurrentHashMap<>();
+        for (int i = 0; i < entries; i++) {
+            stringMap.put(AddressKey.toString(address(i)), clients[i]);
+        }
+        long stringBytes = usedHeap() - before;
+
+        before = usedHeap();
+        EndpointMap<Client> endpointMap = new EndpointMap<>();
+        for (int i = 0; i < entries; i++) {
+            final Client clientObj = clients[i];
+            endpointMap.computeIfAbsent(address(i), k -> clientObj);
+        }
+        long endpointBytes = usedHeap() - before;
+
+        System.out.printf("%d entries%n", entries);
+        System.out.printf("ConcurrentHashMap<String>: %,d bytes (%.1f per entry)%n", stringBytes, (double) stringBytes / entries);
+        System.out.printf("EndpointMap:               %,d bytes (%.1f per entry)%n", endpointBytes, (double) endpointBytes / entries);
+        //Keep everything reachable until here
+        if (stringMap.size() + endpointMap.size() + clients.length == 0) {
+            System.out.println();
+        }
+    }
+
+    private static long address(int i) {
+        return (10L << 24) | i;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        //Repeat until the collector doesn't free anything anymore
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.parakoopa.gmnetgate.punch.Lobby;
+import org.parakoopa.gmnetgate.punch.Registry;
+import org.parakoopa.gmnetgate.punch.Server;
+import org.parakoopa.gmnetgate.punch.ServerColumns;
+
+/**
+ * Server objects against ServerColumns (100000 servers): A full scan with
+ * the lobby filters, and the whole lobby query (filter, sort, limit) of the
+ * snapshot. Run ColumnsFootprint for the memory the columns need on top of the servers.
+ * @author Parakoopa
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerColumnsBenchmark {
+
+    private static final int ENTRIES = 100000;
+
+    /**
+     * all: No filters, sorted by date.
+     * game: Servers of one game (10% of the servers), sorted by data2.
+     * top20: Servers of one game and mode, sorted by date, limit 20.
+     */
+    @Param({"all", "game", "top20"})
+    public String query;
+
+    private Server[] servers;
+    private ServerColumns columns;
+    private Lobby objectLobby;
+    private Lobby columnLobby;
+    private String[] args;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        this.servers = new Server[ENTRIES];
+        for (int n = 0; n < ENTRIES; n++) {
+            this.servers[n] = Servers.create(random, n);
+        }
+        this.columns = new ServerColumns(this.servers);
+        Registry registry = new Registry();
+        Servers.fill(registry, new Random(42), ENTRIES);
+        this.objectLobby = new Lobby(registry, 0, 16, false, null);
+        this.columnLobby = new Lobby(registry, 0, 16, true, null);
+        switch (this.query) {
+            case "game":
+                this.args = new String[] {"Game 3", "", "", "", "", "", "", "", "data2", "ASC", ""};
+                break;
+            case "top20":
+                this.args = new String[] {"Game 3", "", this.servers[0].getData(3), "", "", "", "", "", "date", "DESC", "20"};
+                break;
+            default:
+                this.args = new String[] {"", "", "", "", "", "", "", "", "date", "DESC", ""};
+        }
+        //Build the snapshot and its index or columns before the measurement
+        this.objectLobby.query(this.args);
+        this.columnLobby.query(this.args);
+    }
+
+    /** The filters on every server object. */
+    @Benchmark
+    public int scanObjects() {
+        int found = 0;
+        servers:
+        for (Server serverObj : this.servers) {
+            if (serverObj.getData1().equals("<INV>")) {
+                continue;
+            }
+            for (int i = 0; i < 8; i++) {
+                if (!"".equals(this.args[i]) && !serverObj.getData(i + 1).equals(this.args[i])) {
+                    continue servers;
+                }
+            }
+            found++;
+        }
+        return found;
+    }
+
+    /** The filters on the columns. */
+    @Benchmark
+    public int scanColumns() {
+        return this.columns.find(this.args).length;
+    }
+
+    /** Lobby query on the server objects of the snapshot (with the data index). */
+    @Benchmark
+    public Server[] queryObjects() {
+        return this.objectLobby.query(this.args);
+    }
+
+    /** Lobby query on the columns of the snapshot. */
+    @Benchmark
+    public Server[] queryColumns() {
+        return this.columnLobby.query(this.args);
+    }
+}
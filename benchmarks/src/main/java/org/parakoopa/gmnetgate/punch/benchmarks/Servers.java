@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.util.Random;
+import org.parakoopa.gmnetgate.punch.Registry;
+import org.parakoopa.gmnetgate.punch.Server;
+
+/**
+ * Creates test servers for the benchmarks, similar to the dbg_servers of the
+ * Mediator, but with a few repeating game names and values like in a real
+ * lobby.
+ * @author Parakoopa
+ */
+public final class Servers {
+
+    private Servers() {
+    }
+
+    /**
+     * @param random Random source
+     * @param n Number of the server (for its IP)
+     * @return A server with random data strings
+     */
+    public static Server create(Random random, int n) {
+        Server serverObj = new Server(ip(n));
+        serverObj.setPort(1024 + random.nextInt(60000));
+        for (int field = 1; field <= 8; field++) {
+            serverObj.setData(field, data(random, field));
+        }
+        return serverObj;
+    }
+
+    /**
+     * Registers servers like the dbg_servers of the Mediator.
+     * @param registry The registry
+     * @param random Random source
+     * @param count Number of servers
+     */
+    public static void fill(Registry registry, Random random, int count) {
+        for (int n = 0; n < count; n++) {
+            Server serverObj = registry.getServer(ip(n));
+            serverObj.setPort(1024 + random.nextInt(60000));
+            for (int field = 1; field <= 8; field++) {
+                registry.setData(serverObj, field, data(random, field));
+            }
+        }
+    }
+
+    /**
+     * @param n Number of the server
+     * @return Its IP
+     */
+    public static String ip(int n) {
+        return "10." + ((n >> 16) & 255) + "." + ((n >> 8) & 255) + "." + (n & 255);
+    }
+
+    private static String data(Random random, int field) {
+        switch (field) {
+            case 1: return "Game " + random.nextInt(10);
+            case 2: return "Room " + random.nextInt(1000);
+            case 3: return String.valueOf(random.nextInt(16));
+            case 4: return random.nextBoolean() ? "public" : "private";
+            case 5: return "1." + random.nextInt(5);
+            default: return "";
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.util.Random;
+import org.parakoopa.gmnetgate.punch.Registry;
+import org.parakoopa.gmnetgate.punch.StringPool;
+
+/**
+ * Measures the heap used by a registry without and with the string pool
+ * (100000 servers by default). Every data string is a new object, like the
+ * ones read by reg2. Not a JMH benchmark, run it with
+ * java -cp target/benchmarks.jar org.parakoopa.gmnetgate.punch.benchmarks.StringPoolFootprint [servers]
+ * @author Parakoopa
+ */
+public final class StringPoolFootprint {
+
+    private StringPoolFootprint() {
+    }
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        long before = usedHeap();
+        Registry plain = new Registry(null, 0, 0, 0, 0);
+        Servers.fill(plain, new Random(42), entries);
+        long plainBytes = usedHeap() - before;
+        plain = null;
+
+        before = usedHeap();
+        Registry pooled = new Registry(null, 0, 0, 0, StringPool.DEFAULT_SIZE);
+        Servers.fill(pooled, new Random(42), entries);
+        long pooledBytes = usedHeap() - before;
+        StringPool strings = pooled.getStrings();
+
+        System.out.printf("%d servers%n", entries);
+        System.out.printf("Without pool: %,d bytes (%.1f per server)%n", plainBytes, (double) plainBytes / entries);
+        System.out.printf("With pool:    %,d bytes (%.1f per server, %d pooled strings, hit ratio %.3f)%n",
+                pooledBytes, (double) pooledBytes / entries, strings.getSize(),
+                (double) strings.getHits() / (strings.getHits() + strings.getMisses()));
+        //Keep the registry reachable until here
+        if (pooled.getServerCount() == 0) {
+            System.out.println();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        //Repeat until the collector doesn't free anything anymore
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
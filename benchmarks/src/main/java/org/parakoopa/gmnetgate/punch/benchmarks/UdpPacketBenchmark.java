@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.benchmarks;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.parakoopa.gmnetgate.punch.Registry;
+import org.parakoopa.gmnetgate.punch.Server;
+import org.parakoopa.gmnetgate.punch.UDPPacket;
+
+/**
+ * Parsing of the UDP packets (UDPPacket.run() without the logging), and the
+ * registration a reg packet causes.
+ * @author Parakoopa
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UdpPacketBenchmark {
+
+    /** GM:Studio header of the UDP packets. */
+    private static final byte[] HEADER = {(byte) 0xde, (byte) 0xc0, (byte) 0xad, (byte) 0xde, 12, 0, 0, 0, 0, 0, 0, 0};
+
+    /** A packet in a recieve buffer. */
+    @State(Scope.Thread)
+    public static class Packet {
+        /** crlf: "reg\r\nconnect" */
+        @Param({"reg", "connect", "crlf", "unknown"})
+        public String packet;
+
+        private byte[] data;
+        private int length;
+
+        @Setup
+        public void setup() {
+            String command = "crlf".equals(this.packet) ? "reg\r\nconnect" : this.packet;
+            //Like a recieve buffer: The packet isn't at the start and there are zeros after it.
+            byte[] bytes = (command + "\0").getBytes(StandardCharsets.US_ASCII);
+            this.data = new byte[1024];
+            System.arraycopy(HEADER, 0, this.data, 16, HEADER.length);
+            System.arraycopy(bytes, 0, this.data, 16 + HEADER.length, bytes.length);
+            this.length = HEADER.length + bytes.length + 4;
+        }
+    }
+
+    private Registry registry;
+    private InetAddress[] senders;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        this.registry = new Registry();
+        this.senders = new InetAddress[1024];
+        for (int i = 0; i < this.senders.length; i++) {
+            this.senders[i] = InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i});
+        }
+    }
+
+    @Benchmark
+    public int parseCommand(Packet packet) {
+        return UDPPacket.parseCommand(packet.data, 16, packet.length);
+    }
+
+    /** What a reg packet does after parsing, for 1024 senders. */
+    @Benchmark
+    public Server register() {
+        InetAddress sender = this.senders[this.next++ & 1023];
+        Server serverObj = this.registry.getServer(sender);
+        serverObj.setPort(6510);
+        this.registry.setData(serverObj, 1, "<INV>");
+        return serverObj;
+    }
+}
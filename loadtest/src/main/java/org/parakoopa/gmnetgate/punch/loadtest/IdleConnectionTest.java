@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Loopback load test for the TCP transports of GMnet GATE.PUNCH.
+ *
+ * Opens more and more idle game server connections (each sends "reg2" once and
+ * then stays open, like a running game) and after each step measures the
+ * resident memory and thread count of the master server process and the
+ * accept-to-first-byte latency of new connections ("version" command).
+ * Run it once per --tcp-mode of the master server to compare them.
+ *
+ * Many connections need a high open file limit (ulimit -n) on both sides. To
+ * get more than ~28k connections to one port, the connections are spread over
+ * several loopback source addresses (127.0.0.1, 127.0.0.2, ...).
+ *
+ * @author Parakoopa
+ */
+public class IdleConnectionTest {
+
+    private static String host = "127.0.0.1";
+    private static int port = 6510;
+    /** PID of the master server process (or 0, then memory is not measured). */
+    private static int pid = 0;
+    private static int[] steps = {1000, 5000, 10000, 25000, 50000};
+    private static int probes = 100;
+    private static int sources = 4;
+
+    /** All open idle connections. */
+    private final List<Socket> connections = new ArrayList<>();
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(OptionBuilder.withLongOpt("host")
+                .withDescription("Address of the master server. Default: " + host)
+                .hasArg()
+                .withArgName("HOST")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("port")
+                .withDescription("TCP port of the master server. Default: " + port)
+                .hasArg()
+                .withArgName("PORT")
+                .create("p"));
+        options.addOption(OptionBuilder.withLongOpt("pid")
+                .withDescription("PID of the master server, to read its memory and thread count from /proc.")
+                .hasArg()
+                .withArgName("PID")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("steps")
+                .withDescription("Comma seperated numbers of idle connections to measure at. Default: 1000,5000,10000,25000,50000")
+                .hasArg()
+                .withArgName("STEPS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("probes")
+                .withDescription("Number of latency probes per step. Default: " + probes)
+                .hasArg()
+                .withArgName("PROBES")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("sources")
+                .withDescription("Number of loopback source addresses to spread the connections over. Default: " + sources)
+                .hasArg()
+                .withArgName("SOURCES")
+                .create());
+        options.addOption("h", "help", false, "Print this help text.");
+        try {
+            CommandLineParser parser = new BasicParser();
+            CommandLine line = parser.parse(options, args);
+            if (line.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("java -jar gmnet_gatepunch_loadtest.jar", "Idle connection load test for GMnet GATE.PUNCH.", options, "", true);
+                System.exit(0);
+            }
+            if (line.hasOption("host")) {
+                host = line.getOptionValue("host");
+            }
+            if (line.hasOption("port")) {
+                port = Integer.valueOf(line.getOptionValue("port"));
+            }
+            if (line.hasOption("pid")) {
+                pid = Integer.valueOf(line.getOptionValue("pid"));
+            }
+            if (line.hasOption("steps")) {
+                String[] parts = line.getOptionValue("steps").split(",");
+                steps = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    steps[i] = Integer.valueOf(parts[i].trim());
+                }
+            }
+            if (line.hasOption("probes")) {
+                probes = Integer.valueOf(line.getOptionValue("probes"));
+            }
+            if (line.hasOption("sources")) {
+                sources = Integer.valueOf(line.getOptionValue("sources"));
+            }
+        } catch (ParseException ex) {
+            Logger.getLogger(IdleConnectionTest.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        new IdleConnectionTest().run();
+    }
+
+    /**
+     * Runs all steps and prints one result line per step.
+     */
+    public void run() {
+        System.out.println("connections\trss_kb\tthreads\tp50_ms\tp99_ms\tmax_ms");
+        try {
+            for (int step : steps) {
+                while (this.connections.size() < step) {
+                    this.connections.add(this.openIdleConnection(this.connections.size()));
+                }
+                //Give the master server some time to process all registrations.
+                Thread.sleep(2000);
+                double[] latencies = new double[probes];
+                for (int i = 0; i < probes; i++) {
+                    latencies[i] = this.probe();
+                }
+                Arrays.sort(latencies);
+                System.out.println(String.format("%d\t%s\t%s\t%.3f\t%.3f\t%.3f",
+                        step,
+                        readStatus("VmRSS"),
+                        readStatus("Threads"),
+                        percentile(latencies, 0.50),
+                        percentile(latencies, 0.99),
+                        latencies[latencies.length - 1]));
+            }
+        } catch (IOException | InterruptedException ex) {
+            System.out.println("Stopped after " + this.connections.size() + " connections: " + ex);
+        } finally {
+            for (Socket socket : this.connections) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    //Already closed.
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a connection that registers as a game server and then stays idle.
+     * @param n Number of the connection (to pick the source address)
+     * @return The socket
+     * @throws IOException
+     */
+    private Socket openIdleConnection(int n) throws IOException {
+        Socket socket = new Socket();
+        if (sources > 1) {
+            socket.bind(new InetSocketAddress("127.0.0." + (1 + n % sources), 0));
+        }
+        socket.connect(new InetSocketAddress(host, port));
+        socket.getOutputStream().write(("reg2\n1.2.5\nLoadTest\n" + n + "\n\n\n\n\n\n\n").getBytes(StandardCharsets.US_ASCII));
+        return socket;
+    }
+
+    /**
+     * Measures the time from the start of a new connection until the first
+     * byte of the response to "version" arrives.
+     * @return Latency in ms
+     * @throws IOException
+     */
+    private double probe() throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.setSoTimeout(10000);
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port));
+            socket.getOutputStream().write("version\n".getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            if (in.read() != 246) {
+                throw new IOException("Unexpected response to version");
+            }
+            return (System.nanoTime() - start) / 1e6;
+        }
+    }
+
+    /**
+     * Reads a value of /proc/PID/status of the master server.
+     * @param key Name of the value
+     * @return The value (without unit) or "-"
+     */
+    private static String readStatus(String key) {
+        if (pid == 0) {
+            return "-";
+        }
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith(key + ":")) {
+                    return line.substring(key.length() + 1).trim().split("\\s+")[0];
+                }
+            }
+        } catch (IOException ex) {
+            //Process gone or not on Linux.
+        }
+        return "-";
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the latencies and errors of one kind of request of the
+ * LoadGenerator. All latencies are kept, so percentiles are exact.
+ *
+ * @author Parakoopa
+ */
+class Latencies {
+
+    private final String name;
+    /** Latencies in ns, in the order they were recorded. */
+    private long[] values = new long[1024];
+    private int count = 0;
+    /** Number of errors by reason. */
+    private final Map<String, AtomicLong> errors = new TreeMap<>();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /**
+     * @param name Name of the request in the report
+     */
+    Latencies(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return Name of the request in the report
+     */
+    String getName() {
+        return this.name;
+    }
+
+    /**
+     * Records a successful request.
+     * @param nanos Latency in ns
+     */
+    synchronized void record(long nanos) {
+        if (this.count == this.values.length) {
+            this.values = Arrays.copyOf(this.values, this.count * 2);
+        }
+        this.values[this.count++] = nanos;
+    }
+
+    /**
+     * Records a failed request.
+     * @param reason What went wrong, errors are grouped by it
+     */
+    void error(String reason) {
+        AtomicLong counter;
+        synchronized (this.errors) {
+            counter = this.errors.get(reason);
+            if (counter == null) {
+                counter = new AtomicLong();
+                this.errors.put(reason, counter);
+            }
+        }
+        counter.incrementAndGet();
+        this.errorCount.incrementAndGet();
+    }
+
+    /**
+     * @return Number of successful requests
+     */
+    synchronized int getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return Number of failed requests
+     */
+    long getErrorCount() {
+        return this.errorCount.get();
+    }
+
+    /**
+     * @return Number of errors by reason
+     */
+    Map<String, Long> getErrors() {
+        Map<String, Long> copy = new TreeMap<>();
+        synchronized (this.errors) {
+            for (Map.Entry<String, AtomicLong> entry : this.errors.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @param from Number of latencies to skip (the count of an earlier call to getCount())
+     * @return The latencies recorded after the first "from" ones, sorted
+     */
+    synchronized long[] sorted(int from) {
+        long[] copy = Arrays.copyOfRange(this.values, Math.min(from, this.count), this.count);
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    /**
+     * @param sorted Sorted latencies in ns
+     * @param p Percentile (0.5 = median)
+     * @return The latency in ms, or NaN if there are none
+     */
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        return sorted[Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1))] / 1e6;
+    }
+}
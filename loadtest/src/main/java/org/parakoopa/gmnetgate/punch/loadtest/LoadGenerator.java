@@ -0,0 +1,738 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Loopback load generator for GMnet GATE.PUNCH, for capacity planning of a
+ * single master server.
+ *
+ * Simulates game servers and clients like GM:Studio runs them:
+ * - Every game server sends a "reg" UDP packet (with the 12 byte GM:Studio
+ *   header) and then registers with "reg2" on a TCP connection it keeps open.
+ * - Clients send a "connect" UDP packet and then "connect" on a new TCP
+ *   connection. The handshake is complete when the client got the 255
+ *   response and the game server got the 255 message about the client.
+ * - Lobby requests ask for the "lobby2" list on a new TCP connection.
+ * - "reg" UDP packets of game servers that never register via TCP.
+ * The master server tells servers and clients apart by their IP, so every
+ * simulated game server and client gets its own loopback address
+ * (127.1.x.x servers, 127.2.x.x clients, 127.3.x.x lobby requests,
+ * 127.4.x.x UDP only servers). This works on Linux out of the box.
+ *
+ * Requests are started at fixed rates, no matter how long earlier requests
+ * take. Latencies are measured from the time a request should have been
+ * started, so a master server that falls behind shows it in the latencies.
+ * Every --interval seconds a line with the latest numbers is printed, at the
+ * end the percentiles and errors of the whole run.
+ *
+ * Many game servers need a high open file limit (ulimit -n) on both sides.
+ *
+ * @author Parakoopa
+ */
+public class LoadGenerator {
+
+    /** GM:Studio header of UDP packets. */
+    private static final byte[] HEADER = {(byte) 0xde, (byte) 0xc0, (byte) 0xad, (byte) 0xde, 12, 0, 0, 0, 0, 0, 0, 0};
+
+    private static String host = "127.0.0.1";
+    private static int port = 6510;
+    private static int servers = 1000;
+    private static int games = 10;
+    private static String version = "1.2.5";
+    private static int clients = 256;
+    /** Handshakes per second. */
+    private static double connectRate = 100;
+    /** Lobby requests per second. */
+    private static double lobbyRate = 10;
+    /** "reg" UDP packets of UDP only servers per second. */
+    private static double udpRate = 0;
+    /** Weights of the lobby queries (all, game, top20). */
+    private static int[] lobbyMix = {1, 1, 1};
+    private static int duration = 30;
+    private static int interval = 5;
+    private static int threads = 64;
+    private static int timeout = 5000;
+
+    private final Latencies connect = new Latencies("connect");
+    private final Latencies handshake = new Latencies("handshake");
+    private final Latencies lobby = new Latencies("lobby2");
+    private final Latencies udp = new Latencies("udp_reg");
+
+    /** IPs of the simulated game servers. */
+    private final List<String> serverIps = new ArrayList<>();
+    /** TCP connections of the game servers. */
+    private final List<SocketChannel> serverChannels = new ArrayList<>();
+    /** Clients that are not in a handshake right now. */
+    private BlockingQueue<SimulatedClient> freeClients;
+    /** Handshakes waiting for the message to the game server, by client IP. */
+    private final Map<String, Handshake> handshakes = new ConcurrentHashMap<>();
+    /** Messages to game servers that belong to no (or a timed out) handshake. */
+    private final AtomicLong unmatchedRelays = new AtomicLong();
+    private final AtomicInteger nextLobbySource = new AtomicInteger();
+    private final AtomicInteger nextUdpSource = new AtomicInteger();
+    private DatagramSocket[] udpSources;
+    private ExecutorService workers;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(OptionBuilder.withLongOpt("host")
+                .withDescription("Address of the master server. Default: " + host)
+                .hasArg()
+                .withArgName("HOST")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("port")
+                .withDescription("TCP and UDP port of the master server. Default: " + port)
+                .hasArg()
+                .withArgName("PORT")
+                .create("p"));
+        options.addOption(OptionBuilder.withLongOpt("servers")
+                .withDescription("Number of game servers to register (max. 65534). Default: " + servers)
+                .hasArg()
+                .withArgName("SERVERS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("games")
+                .withDescription("Number of different games (data1) of the game servers. Default: " + games)
+                .hasArg()
+                .withArgName("GAMES")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("version")
+                .withDescription("GMnet version the game servers send with reg2. Default: " + version)
+                .hasArg()
+                .withArgName("VERSION")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("clients")
+                .withDescription("Number of client addresses, limits the handshakes running at the same time. Default: " + clients)
+                .hasArg()
+                .withArgName("CLIENTS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("connect-rate")
+                .withDescription("Handshakes per second. Default: " + connectRate)
+                .hasArg()
+                .withArgName("RATE")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("lobby-rate")
+                .withDescription("Lobby requests per second. Default: " + lobbyRate)
+                .hasArg()
+                .withArgName("RATE")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("udp-rate")
+                .withDescription("\"reg\" UDP packets of game servers that never register via TCP per second. Default: " + udpRate)
+                .hasArg()
+                .withArgName("RATE")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("lobby-mix")
+                .withDescription("Weights of the lobby queries all (no filter, by date), game (one game, by data2) and "
+                        + "top20 (one game, newest 20). Default: all:1,game:1,top20:1")
+                .hasArg()
+                .withArgName("MIX")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("duration")
+                .withDescription("Seconds to run. Default: " + duration)
+                .hasArg()
+                .withArgName("SECONDS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("interval")
+                .withDescription("Seconds between the progress lines. Default: " + interval)
+                .hasArg()
+                .withArgName("SECONDS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("threads")
+                .withDescription("Number of threads that run the requests. Default: " + threads)
+                .hasArg()
+                .withArgName("THREADS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("timeout")
+                .withDescription("Milliseconds to wait for a response. Default: " + timeout)
+                .hasArg()
+                .withArgName("MS")
+                .create());
+        options.addOption("h", "help", false, "Print this help text.");
+        try {
+            CommandLineParser parser = new BasicParser();
+            CommandLine line = parser.parse(options, args);
+            if (line.hasOption("help")) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp("java -cp gmnet_gatepunch_loadtest.jar org.parakoopa.gmnetgate.punch.loadtest.LoadGenerator",
+                        "Load generator for GMnet GATE.PUNCH.", options, "", true);
+                System.exit(0);
+            }
+            if (line.hasOption("host")) {
+                host = line.getOptionValue("host");
+            }
+            if (line.hasOption("port")) {
+                port = Integer.valueOf(line.getOptionValue("port"));
+            }
+            if (line.hasOption("servers")) {
+                servers = Math.min(65534, Integer.valueOf(line.getOptionValue("servers")));
+            }
+            if (line.hasOption("games")) {
+                games = Integer.valueOf(line.getOptionValue("games"));
+            }
+            if (line.hasOption("version")) {
+                version = line.getOptionValue("version");
+            }
+            if (line.hasOption("clients")) {
+                clients = Math.min(65534, Integer.valueOf(line.getOptionValue("clients")));
+            }
+            if (line.hasOption("connect-rate")) {
+                connectRate = Double.valueOf(line.getOptionValue("connect-rate"));
+            }
+            if (line.hasOption("lobby-rate")) {
+                lobbyRate = Double.valueOf(line.getOptionValue("lobby-rate"));
+            }
+            if (line.hasOption("udp-rate")) {
+                udpRate = Double.valueOf(line.getOptionValue("udp-rate"));
+            }
+            if (line.hasOption("lobby-mix")) {
+                lobbyMix = new int[3];
+                for (String part : line.getOptionValue("lobby-mix").split(",")) {
+                    String[] weight = part.split(":");
+                    lobbyMix[Query.valueOf(weight[0].trim().toUpperCase()).ordinal()] = Integer.valueOf(weight[1].trim());
+                }
+            }
+            if (line.hasOption("duration")) {
+                duration = Integer.valueOf(line.getOptionValue("duration"));
+            }
+            if (line.hasOption("interval")) {
+                interval = Integer.valueOf(line.getOptionValue("interval"));
+            }
+            if (line.hasOption("threads")) {
+                threads = Integer.valueOf(line.getOptionValue("threads"));
+            }
+            if (line.hasOption("timeout")) {
+                timeout = Integer.valueOf(line.getOptionValue("timeout"));
+            }
+        } catch (ParseException ex) {
+            Logger.getLogger(LoadGenerator.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        new LoadGenerator().run();
+    }
+
+    /**
+     * Lobby queries of the --lobby-mix.
+     */
+    private enum Query {
+        /** No filters, newest first. */
+        ALL,
+        /** Servers of one game, sorted by data2. */
+        GAME,
+        /** Servers of one game, newest 20. */
+        TOP20;
+
+        /**
+         * @return A lobby2 command for this query
+         */
+        byte[] command() {
+            String game = "Game " + ThreadLocalRandom.current().nextInt(games);
+            switch (this) {
+                case GAME:
+                    return ("lobby2\n" + game + "\n\n\n\n\n\n\n\ndata2\nASC\n\n").getBytes(StandardCharsets.US_ASCII);
+                case TOP20:
+                    return ("lobby2\n" + game + "\n\n\n\n\n\n\n\ndate\nDESC\n20\n").getBytes(StandardCharsets.US_ASCII);
+                default:
+                    return "lobby2\n\n\n\n\n\n\n\n\ndate\nDESC\n\n".getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+    }
+
+    /**
+     * A simulated client: Own IP and the UDP socket for its "connect" packets.
+     */
+    private static class SimulatedClient {
+        private final InetAddress address;
+        private final DatagramSocket udp;
+
+        SimulatedClient(InetAddress address) throws IOException {
+            this.address = address;
+            this.udp = new DatagramSocket(new InetSocketAddress(address, 0));
+        }
+    }
+
+    /**
+     * A handshake waiting for the message to the game server.
+     */
+    private static class Handshake {
+        private final CountDownLatch relayed = new CountDownLatch(1);
+        private volatile long relayTime;
+    }
+
+    /**
+     * Registers the game servers, runs the requests for --duration seconds and
+     * prints the results.
+     */
+    public void run() {
+        Thread relayReader = null;
+        try {
+            this.registerServers();
+            this.freeClients = new ArrayBlockingQueue<>(clients);
+            for (int n = 0; n < clients; n++) {
+                this.freeClients.add(new SimulatedClient(address(2, n)));
+            }
+            this.udpSources = new DatagramSocket[udpRate > 0 ? 256 : 0];
+            for (int n = 0; n < this.udpSources.length; n++) {
+                this.udpSources[n] = new DatagramSocket(new InetSocketAddress(address(4, n), 0));
+            }
+            relayReader = new Thread() {
+                @Override
+                public void run() {
+                    LoadGenerator.this.readRelays();
+                }
+            };
+            relayReader.setDaemon(true);
+            relayReader.start();
+            this.workers = Executors.newFixedThreadPool(threads);
+            System.out.println(String.format("Registered %d game servers, running for %d s: %.1f handshakes/s, "
+                    + "%.1f lobby requests/s, %.1f UDP reg/s", servers, duration, connectRate, lobbyRate, udpRate));
+            this.pace();
+            this.workers.shutdown();
+            this.workers.awaitTermination(timeout * 2, TimeUnit.MILLISECONDS);
+            this.printSummary();
+        } catch (IOException | InterruptedException ex) {
+            System.out.println("Stopped: " + ex);
+        } finally {
+            this.running = false;
+            if (this.workers != null) {
+                this.workers.shutdownNow();
+            }
+            for (SocketChannel channel : this.serverChannels) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    //Already closed.
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers all game servers like GM:Studio does: "reg" via UDP first,
+     * "reg2" on the TCP connection afterwards.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void registerServers() throws IOException, InterruptedException {
+        for (int n = 0; n < servers; n++) {
+            InetAddress address = address(1, n);
+            this.serverIps.add(address.getHostAddress());
+            try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(address, 0))) {
+                sendUdp(socket, "reg");
+            }
+        }
+        //A late "reg" would make the server invalid again.
+        Thread.sleep(500);
+        for (int n = 0; n < servers; n++) {
+            SocketChannel channel = SocketChannel.open();
+            channel.bind(new InetSocketAddress(this.serverIps.get(n), 0));
+            channel.connect(new InetSocketAddress(host, port));
+            String data = "Game " + (n % games) + "\nRoom " + n + "\n" + (n % 16) + "\n"
+                    + (n % 4 == 0 ? "private" : "public") + "\n1.0\n\n\n\n";
+            ByteBuffer reg2 = ByteBuffer.wrap(("reg2\n" + version + "\n" + data).getBytes(StandardCharsets.US_ASCII));
+            while (reg2.hasRemaining()) {
+                channel.write(reg2);
+            }
+            this.serverChannels.add(channel);
+        }
+        //Give the master server some time to process all registrations.
+        Thread.sleep(1000);
+    }
+
+    /**
+     * Starts the requests at their rates until --duration is over, and prints
+     * the progress lines.
+     * @throws InterruptedException
+     */
+    private void pace() throws InterruptedException {
+        double[] rates = {connectRate, lobbyRate, udpRate};
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(interval);
+        long[] next = {start, start, start};
+        long[] started = new long[rates.length];
+        int[] reported = new int[4];
+        long[] reportedErrors = new long[2];
+        System.out.println("time_s\tconnect_ok\tconnect_err\tconnect_p99_ms\thandshake_p99_ms\tlobby_ok\tlobby_err\tlobby_p99_ms\tudp_sent");
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            if (now >= nextReport) {
+                this.printProgress((now - start) / 1e9, reported, reportedErrors);
+                nextReport += TimeUnit.SECONDS.toNanos(interval);
+            }
+            long wake = Math.min(end, nextReport);
+            for (int i = 0; i < rates.length; i++) {
+                if (rates[i] <= 0) {
+                    continue;
+                }
+                //Start everything that is due, even if we are late.
+                while (next[i] <= now) {
+                    this.submit(i, next[i]);
+                    started[i]++;
+                    next[i] = start + (long) (started[i] * 1e9 / rates[i]);
+                }
+                wake = Math.min(wake, next[i]);
+            }
+            LockSupport.parkNanos(wake - System.nanoTime());
+        }
+    }
+
+    /**
+     * Starts a request.
+     * @param type 0: handshake, 1: lobby, 2: UDP reg
+     * @param scheduled When the request should start (System.nanoTime())
+     */
+    private void submit(final int type, final long scheduled) {
+        this.workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                switch (type) {
+                    case 0:
+                        LoadGenerator.this.handshake(scheduled);
+                        break;
+                    case 1:
+                        LoadGenerator.this.lobby(scheduled);
+                        break;
+                    default:
+                        LoadGenerator.this.udpReg();
+                }
+            }
+        });
+    }
+
+    /**
+     * A client connects to a random game server.
+     * @param scheduled When the handshake should have started
+     */
+    private void handshake(long scheduled) {
+        SimulatedClient client;
+        try {
+            client = this.freeClients.take();
+        } catch (InterruptedException ex) {
+            return;
+        }
+        String clientIp = client.address.getHostAddress();
+        String serverIp = this.serverIps.get(ThreadLocalRandom.current().nextInt(this.serverIps.size()));
+        Handshake waiting = new Handshake();
+        this.handshakes.put(clientIp, waiting);
+        try (Socket socket = new Socket()) {
+            sendUdp(client.udp, "connect");
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+            socket.bind(new InetSocketAddress(client.address, 0));
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.getOutputStream().write(("connect\n" + serverIp + "\n").getBytes(StandardCharsets.US_ASCII));
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            int code = in.read();
+            if (code == 254) {
+                this.connect.error("254 failed");
+                return;
+            } else if (code != 255) {
+                this.connect.error(code == -1 ? "closed" : "unexpected response");
+                return;
+            }
+            //IP and port of the server, each ends with a 0
+            String ip = readUntil(in, 0);
+            readUntil(in, 0);
+            long responded = System.nanoTime();
+            if (!serverIp.equals(ip)) {
+                this.connect.error("wrong server");
+                return;
+            }
+            this.connect.record(responded - scheduled);
+            long left = timeout - TimeUnit.NANOSECONDS.toMillis(responded - scheduled);
+            if (!waiting.relayed.await(Math.max(0, left), TimeUnit.MILLISECONDS)) {
+                this.handshake.error("no message to server");
+                return;
+            }
+            this.handshake.record(Math.max(responded, waiting.relayTime) - scheduled);
+        } catch (SocketTimeoutException ex) {
+            this.connect.error("timeout");
+        } catch (IOException ex) {
+            this.connect.error(ex.getClass().getSimpleName());
+        } catch (InterruptedException ex) {
+            //Stopped.
+        } finally {
+            this.handshakes.remove(clientIp);
+            this.freeClients.add(client);
+        }
+    }
+
+    /**
+     * Requests the lobby with a query of the --lobby-mix.
+     * @param scheduled When the request should have started
+     */
+    private void lobby(long scheduled) {
+        int source = this.nextLobbySource.getAndIncrement() & 255;
+        try (Socket socket = new Socket()) {
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+            socket.bind(new InetSocketAddress(address(3, source), 0));
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.getOutputStream().write(randomQuery().command());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            int code = in.read();
+            if (code != 249) {
+                this.lobby.error(code == -1 ? "closed" : "unexpected response");
+                return;
+            }
+            //The JSON ends with a line break
+            readUntil(in, '\n');
+            this.lobby.record(System.nanoTime() - scheduled);
+        } catch (SocketTimeoutException ex) {
+            this.lobby.error("timeout");
+        } catch (IOException ex) {
+            this.lobby.error(ex.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * A game server that never registers via TCP sends "reg".
+     */
+    private void udpReg() {
+        try {
+            long start = System.nanoTime();
+            sendUdp(this.udpSources[this.nextUdpSource.getAndIncrement() & 255], "reg");
+            this.udp.record(System.nanoTime() - start);
+        } catch (IOException ex) {
+            this.udp.error(ex.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * @return A query of the --lobby-mix
+     */
+    private static Query randomQuery() {
+        int total = 0;
+        for (int weight : lobbyMix) {
+            total += weight;
+        }
+        int pick = ThreadLocalRandom.current().nextInt(Math.max(1, total));
+        for (Query query : Query.values()) {
+            pick -= lobbyMix[query.ordinal()];
+            if (pick < 0) {
+                return query;
+            }
+        }
+        return Query.ALL;
+    }
+
+    /**
+     * Reads the messages the game servers get about connecting clients
+     * (255, IP, 0, port) and completes the handshakes of these clients.
+     */
+    private void readRelays() {
+        try (Selector selector = Selector.open()) {
+            for (SocketChannel channel : this.serverChannels) {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new ByteArrayOutputStream());
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            while (this.running) {
+                selector.select(1000);
+                long now = System.nanoTime();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    buffer.clear();
+                    int read = ((SocketChannel) key.channel()).read(buffer);
+                    if (read < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    ByteArrayOutputStream ip = (ByteArrayOutputStream) key.attachment();
+                    for (int i = 0; i < read; i++) {
+                        int b = buffer.get(i) & 0xFF;
+                        if (b == 255) {
+                            //The port has no end marker, the next message starts with 255.
+                            ip.reset();
+                            ip.write(b);
+                        } else if (ip.size() > 0 && b == 0) {
+                            String clientIp = new String(ip.toByteArray(), 1, ip.size() - 1, StandardCharsets.US_ASCII);
+                            Handshake waiting = this.handshakes.get(clientIp);
+                            if (waiting != null) {
+                                waiting.relayTime = now;
+                                waiting.relayed.countDown();
+                            } else {
+                                this.unmatchedRelays.incrementAndGet();
+                            }
+                            ip.reset();
+                        } else if (ip.size() > 0) {
+                            ip.write(b);
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException ex) {
+            if (this.running) {
+                System.out.println("Reading the game server connections failed: " + ex);
+            }
+        }
+    }
+
+    /**
+     * Prints the numbers since the last progress line.
+     * @param seconds Time since the start
+     * @param reported Counts of connect, handshake, lobby and UDP reg at the last progress line
+     * @param reportedErrors Errors of connect and lobby at the last progress line
+     */
+    private void printProgress(double seconds, int[] reported, long[] reportedErrors) {
+        Latencies[] all = {this.connect, this.handshake, this.lobby, this.udp};
+        long[][] sorted = new long[all.length][];
+        for (int i = 0; i < all.length; i++) {
+            sorted[i] = all[i].sorted(reported[i]);
+            reported[i] += sorted[i].length;
+        }
+        long connectErrors = this.connect.getErrorCount() + this.handshake.getErrorCount() - reportedErrors[0];
+        long lobbyErrors = this.lobby.getErrorCount() - reportedErrors[1];
+        reportedErrors[0] += connectErrors;
+        reportedErrors[1] += lobbyErrors;
+        System.out.println(String.format("%.0f\t%d\t%d\t%.3f\t%.3f\t%d\t%d\t%.3f\t%d",
+                seconds,
+                sorted[0].length,
+                connectErrors,
+                Latencies.percentile(sorted[0], 0.99),
+                Latencies.percentile(sorted[1], 0.99),
+                sorted[2].length,
+                lobbyErrors,
+                Latencies.percentile(sorted[2], 0.99),
+                sorted[3].length));
+    }
+
+    /**
+     * Prints the percentiles and errors of the whole run.
+     */
+    private void printSummary() {
+        System.out.println();
+        System.out.println("request\tok\terrors\tok_per_s\tp50_ms\tp90_ms\tp99_ms\tp99.9_ms\tmax_ms");
+        for (Latencies latencies : new Latencies[] {this.connect, this.handshake, this.lobby, this.udp}) {
+            long[] sorted = latencies.sorted(0);
+            if (sorted.length == 0 && latencies.getErrorCount() == 0) {
+                //Not used in this run
+                continue;
+            }
+            System.out.println(String.format("%s\t%d\t%d\t%.1f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f",
+                    latencies.getName(),
+                    sorted.length,
+                    latencies.getErrorCount(),
+                    sorted.length / (double) duration,
+                    Latencies.percentile(sorted, 0.50),
+                    Latencies.percentile(sorted, 0.90),
+                    Latencies.percentile(sorted, 0.99),
+                    Latencies.percentile(sorted, 0.999),
+                    Latencies.percentile(sorted, 1.0)));
+        }
+        for (Latencies latencies : new Latencies[] {this.connect, this.handshake, this.lobby, this.udp}) {
+            long total = latencies.getCount() + latencies.getErrorCount();
+            for (Map.Entry<String, Long> error : latencies.getErrors().entrySet()) {
+                System.out.println(String.format("%s error: %s: %d (%.2f%%)",
+                        latencies.getName(), error.getKey(), error.getValue(), error.getValue() * 100.0 / total));
+            }
+        }
+        if (this.unmatchedRelays.get() > 0) {
+            System.out.println("Messages to game servers after their handshake timed out: " + this.unmatchedRelays.get());
+        }
+    }
+
+    /**
+     * Sends a GM:Studio UDP packet to the master server.
+     * @param socket Socket to send from
+     * @param command The command
+     * @throws IOException
+     */
+    private static void sendUdp(DatagramSocket socket, String command) throws IOException {
+        byte[] bytes = command.getBytes(StandardCharsets.US_ASCII);
+        byte[] data = new byte[HEADER.length + bytes.length + 1];
+        System.arraycopy(HEADER, 0, data, 0, HEADER.length);
+        System.arraycopy(bytes, 0, data, HEADER.length, bytes.length);
+        socket.send(new DatagramPacket(data, data.length, new InetSocketAddress(host, port)));
+    }
+
+    /**
+     * Reads until (not including) a byte.
+     * @param in Stream to read from
+     * @param end The byte to stop at
+     * @return What was read before it
+     * @throws IOException If the stream ends before
+     */
+    private static String readUntil(InputStream in, int end) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != end) {
+            if (b == -1) {
+                throw new IOException("Connection closed");
+            }
+            out.write(b);
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param net Second byte of the address
+     * @param n Number of the server/client
+     * @return Loopback address 127.net.x.x for n
+     */
+    private static InetAddress address(int net, int n) throws IOException {
+        int number = n + 1;
+        return InetAddress.getByAddress(new byte[] {127, (byte) net, (byte) (number >> 8), (byte) number});
+    }
+}
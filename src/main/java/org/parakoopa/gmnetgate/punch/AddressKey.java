@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * Packs IPv4 addresses into a long, the key of the servers and clients in the
+ * Registry. Other addresses (IPv6) have no key and are stored by their String.
+ * @author Parakoopa
+ */
+public final class AddressKey {
+
+    /** Key of addresses that can't be packed. */
+    public static final long NONE = -1;
+
+    private AddressKey() {
+    }
+
+    /**
+     * @param address An address
+     * @return Its key or NONE if it isn't an IPv4 address
+     */
+    public static long of(InetAddress address) {
+        if (!(address instanceof Inet4Address)) {
+            return NONE;
+        }
+        byte[] bytes = address.getAddress();
+        return ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16) | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
+    }
+
+    /**
+     * Parses an IPv4 address. Only accepts the form that
+     * InetAddress.getHostAddress() returns (no leading zeros), so an address
+     * has the same key as its String had before.
+     * @param ip The address
+     * @return Its key or NONE if it isn't an IPv4 address in that form
+     */
+    public static long parse(String ip) {
+        long key = 0;
+        int parts = 0;
+        int i = 0;
+        int length = ip.length();
+        while (i < length) {
+            int start = i;
+            int part = 0;
+            while (i < length && ip.charAt(i) != '.') {
+                char c = ip.charAt(i);
+                if (c < '0' || c > '9' || i - start == 3 || (i > start && ip.charAt(start) == '0')) {
+                    return NONE;
+                }
+                part = part * 10 + (c - '0');
+                i++;
+            }
+            if (i == start || part > 255 || ++parts > 4) {
+                return NONE;
+            }
+            key = (key << 8) | part;
+            if (i < length) {
+                //Skip the dot, the address may not end with it.
+                if (++i == length) {
+                    return NONE;
+                }
+            }
+        }
+        return parts == 4 ? key : NONE;
+    }
+
+    /**
+     * @param key Key of an IPv4 address
+     * @return The address as returned by InetAddress.getHostAddress()
+     */
+    public static String toString(long key) {
+        return ((key >> 24) & 255) + "." + ((key >> 16) & 255) + "." + ((key >> 8) & 255) + "." + (key & 255);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rate limit per IP (token bucket), checked before a packet is parsed or a
+ * connection gets a thread, so one misbehaving peer can't keep the server
+ * busy.
+ *
+ * The buckets are in a fixed table of longs, so a flood of (spoofed)
+ * addresses allocates nothing. Each slot holds the time when its bucket is
+ * full again ("theoretical arrival time", in microseconds since start) and
+ * a 16 bit tag of the address, updated with compareAndSet. An address can
+ * use one of 4 neighbouring slots, a slot with a full bucket is taken over.
+ * Only if all of them are busy with other addresses, it shares a bucket.
+ * @author Parakoopa
+ */
+public class AdmissionControl {
+
+    /** Number of slots. Together with the tag an IPv4 address has its own slot until it collides with an active one. */
+    private static final int SLOTS = 1 << 16;
+    private static final int TAG_BITS = 16;
+    private static final long TAG_MASK = (1L << TAG_BITS) - 1;
+    /** Number of slots an address can use. */
+    private static final int PROBES = 4;
+
+    /** Time (us) one request uses, 0 = unlimited. */
+    private final long interval;
+    /** How far (us) the bucket may be behind: Requests that may come at once - 1. */
+    private final long tolerance;
+    private final AtomicLongArray slots;
+    /** Random, so nobody can pick addresses that share a slot. */
+    private final int seed = ThreadLocalRandom.current().nextInt();
+    private final long start = System.nanoTime();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param rate Requests per second and IP (0 = unlimited)
+     * @param burst Requests an IP may send at once (at least 1)
+     */
+    public AdmissionControl(double rate, int burst) {
+        if (rate > 0) {
+            this.interval = Math.max(1, (long) (1000000 / rate));
+            this.tolerance = this.interval * (Math.max(1, burst) - 1);
+            this.slots = new AtomicLongArray(SLOTS);
+        } else {
+            this.interval = 0;
+            this.tolerance = 0;
+            this.slots = null;
+        }
+    }
+
+    /**
+     * Takes a token of the address.
+     * @param address The peer
+     * @return False if the peer is over its limit and the request must be dropped.
+     */
+    public boolean admit(InetAddress address) {
+        if (this.interval == 0) {
+            return true;
+        }
+        //hashCode of an IPv4 address is the address itself, the mix keeps all 32 bits apart
+        int hash = mix(address.hashCode() ^ this.seed);
+        long tag = (hash >>> TAG_BITS) & TAG_MASK;
+        long now = (System.nanoTime() - this.start) / 1000;
+        while (true) {
+            //Bucket of this address in one of the PROBES slots: its own one, a full one or (all
+            //of them are busy with other addresses) the first one, which is shared then.
+            int index = hash & (SLOTS - 1);
+            long state = this.slots.get(index);
+            for (int i = 0, free = -1; i < PROBES; i++) {
+                int probe = (hash + i) & (SLOTS - 1);
+                long probeState = this.slots.get(probe);
+                if ((probeState & TAG_MASK) == tag && (probeState >>> TAG_BITS) > now) {
+                    index = probe;
+                    state = probeState;
+                    break;
+                }
+                if (free < 0 && (probeState >>> TAG_BITS) <= now) {
+                    free = probe;
+                    index = probe;
+                    state = probeState;
+                }
+            }
+            long tat = state >>> TAG_BITS;
+            long owner = state & TAG_MASK;
+            if (tat <= now) {
+                //Bucket is full, it's ours now
+                tat = now;
+                owner = tag;
+            }
+            if (tat - now > this.tolerance) {
+                this.dropped.increment();
+                return false;
+            }
+            if (this.slots.compareAndSet(index, state, ((tat + this.interval) << TAG_BITS) | owner)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return Number of requests that were dropped
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Parses a limit like --udp-limit takes it.
+     * @param limit "RATE" or "RATE:BURST" (BURST defaults to RATE)
+     * @return The admission control
+     * @throws IllegalArgumentException If it's no limit, the rate is negative or the burst is below 1
+     */
+    public static AdmissionControl parse(String limit) {
+        int colon = limit.indexOf(':');
+        double rate = Double.parseDouble(colon < 0 ? limit : limit.substring(0, colon));
+        if (!(rate >= 0) || Double.isInfinite(rate)) {
+            throw new IllegalArgumentException("Invalid rate " + rate);
+        }
+        int burst = colon < 0 ? (int) Math.ceil(rate) : Integer.parseInt(limit.substring(colon + 1));
+        if (colon >= 0 && burst < 1) {
+            throw new IllegalArgumentException("Invalid burst " + burst);
+        }
+        return new AdmissionControl(rate, burst);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, a bijection on int.
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the log lines of Mediator.log() in the background.
+ * The network threads only put the line and its time into a lock-free ring
+ * buffer. One writer thread formats the timestamps (the formatted time is
+ * reused as long as the minute doesn't change), keeps the log file open and
+ * writes everything that is waiting at once. If the writer can't keep up and
+ * the buffer is full, lines are dropped instead of blocking the network
+ * threads; the number of dropped lines is logged.
+ * When there is nothing to write the writer is parked, the first line that
+ * is queued after that wakes it up.
+ * @author Parakoopa
+ */
+public class AsyncLog extends Thread {
+
+    /** Number of lines the buffer can hold (power of two). */
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    /** Console (or null). */
+    private final PrintStream console;
+    /** Logfile (or null). */
+    private final String file;
+    private Writer fileWriter = null;
+
+    /*
+     * Ring buffer (bounded multi-producer, single-consumer queue).
+     * A slot can be written when its sequence equals the position of the
+     * producer, and read when it equals the position of the consumer + 1.
+     */
+    private final String[] lines = new String[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    /** Next position to write (producers). */
+    private final AtomicLong tail = new AtomicLong();
+    /** Next position to read (writer thread only). */
+    private long head = 0;
+
+    private final LongAdder dropped = new LongAdder();
+    private long reportedDropped = 0;
+    /** True while the writer is parked (or about to be), offer() wakes it up. */
+    private volatile boolean idle = false;
+
+    /** The timestamp of the current minute. */
+    private final DateFormat date = DateFormat.getDateTimeInstance(
+            DateFormat.SHORT,
+            DateFormat.SHORT,
+            Locale.getDefault());
+    private long cachedMinute = -1;
+    private String cachedDate;
+
+    private final StringBuilder batch = new StringBuilder(16384);
+
+    /**
+     * @param console Where console output goes (or null)
+     * @param file Logfile (or null)
+     */
+    public AsyncLog(PrintStream console, String file) {
+        super("Log Writer");
+        this.setDaemon(true);
+        this.console = console;
+        this.file = file;
+        for (int i = 0; i < CAPACITY; i++) {
+            this.sequences.set(i, i);
+        }
+        //Write what's left when the server stops
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                AsyncLog.this.flush();
+            }
+        });
+    }
+
+    /**
+     * Queues a line. Never blocks.
+     * @param line The line
+     * @return False if the buffer was full and the line was dropped.
+     */
+    public boolean offer(String line) {
+        long time = System.currentTimeMillis();
+        long pos = this.tail.get();
+        while (true) {
+            int index = (int) (pos & MASK);
+            long diff = this.sequences.get(index) - pos;
+            if (diff == 0) {
+                if (this.tail.compareAndSet(pos, pos + 1)) {
+                    this.lines[index] = line;
+                    this.times[index] = time;
+                    //Not lazySet: the writer has to see the line before it parks, or this has to see idle.
+                    this.sequences.set(index, pos + 1);
+                    this.wakeUp();
+                    return true;
+                }
+                pos = this.tail.get();
+            } else if (diff < 0) {
+                //Full
+                this.dropped.increment();
+                this.wakeUp();
+                return false;
+            } else {
+                //Another producer took this slot
+                pos = this.tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return Number of lines that were dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Unparks the writer if it's waiting for lines.
+     */
+    private void wakeUp() {
+        if (this.idle) {
+            this.idle = false;
+            LockSupport.unpark(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (!this.flush()) {
+                this.idle = true;
+                //Check again, a line might have been queued before idle was set.
+                if (this.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                this.idle = false;
+            }
+        }
+    }
+
+    /**
+     * @return True if there are no lines (and no dropped lines) to write.
+     */
+    private synchronized boolean isEmpty() {
+        return this.sequences.get((int) (this.head & MASK)) != this.head + 1
+                && this.dropped.sum() == this.reportedDropped;
+    }
+
+    /**
+     * Writes all waiting lines.
+     * @return False if there was nothing to write.
+     */
+    synchronized boolean flush() {
+        this.batch.setLength(0);
+        while (true) {
+            int index = (int) (this.head & MASK);
+            if (this.sequences.get(index) != this.head + 1) {
+                break;
+            }
+            String line = this.lines[index];
+            long time = this.times[index];
+            this.lines[index] = null;
+            this.sequences.lazySet(index, this.head + CAPACITY);
+            this.head++;
+            this.batch.append(this.format(time)).append(" : ").append(line).append(System.lineSeparator());
+        }
+        long dropped = this.dropped.sum();
+        if (dropped != this.reportedDropped) {
+            this.batch.append(this.format(System.currentTimeMillis())).append(" : ")
+                    .append(dropped - this.reportedDropped).append(" log lines dropped, the log is too slow.")
+                    .append(System.lineSeparator());
+            this.reportedDropped = dropped;
+        }
+        if (this.batch.length() == 0) {
+            return false;
+        }
+        /* CONSOLE OUTPUT */
+        if (this.console != null) {
+            this.console.print(this.batch);
+            this.console.flush();
+        }
+        /* FILE LOG */
+        if (this.file != null) {
+            try {
+                if (this.fileWriter == null) {
+                    this.fileWriter = new BufferedWriter(new FileWriter(this.file, true));
+                }
+                this.fileWriter.append(this.batch);
+                this.fileWriter.flush();
+            } catch (IOException ex) {
+                Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE, null, ex);
+                //Open the file again for the next lines, but don't leak this one.
+                if (this.fileWriter != null) {
+                    try {
+                        this.fileWriter.close();
+                    } catch (IOException ex2) {
+                        //Broken anyway.
+                    }
+                    this.fileWriter = null;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The formatted time (only minutes are shown, so it's only formatted once per minute)
+     */
+    private String format(long time) {
+        long minute = time / 60000;
+        if (minute != this.cachedMinute) {
+            this.cachedMinute = minute;
+            this.cachedDate = this.date.format(new Date(time));
+        }
+        return this.cachedDate;
+    }
+}
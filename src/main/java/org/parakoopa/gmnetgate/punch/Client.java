@@ -29,16 +29,29 @@ public class Client {
      /**
      * Contains the Ports of the Client.
      */
-    private Integer port = 0;
+    private volatile int port = 0;
+
+    /**
+     * Removes the client if it doesn't connect via TCP in time (or null).
+     */
+    private TimerWheel.Timeout expiry = null;
 
      /**
      * Contains the Ports of the Client.
      */
-    public Integer getPort() {
+    public int getPort() {
         return port;
     }
 
-    public void setPort(Integer port) {
+    public void setPort(int port) {
         this.port = port;
     }
+
+    TimerWheel.Timeout getExpiry() {
+        return expiry;
+    }
+
+    void setExpiry(TimerWheel.Timeout expiry) {
+        this.expiry = expiry;
+    }
 }
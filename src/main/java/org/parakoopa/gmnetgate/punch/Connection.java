@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * A TCP connection to a game server or client.
+ * This hides the transport (one thread per socket or the NIO selector loops)
+ * from the command handling, so the same commands can run on both.
+ * @author Parakoopa
+ */
+public abstract class Connection {
+
+    /** IP of the peer. */
+    private final String hostAddress;
+    /** Key of the IP in the Registry (see AddressKey). */
+    private final long key;
+    /** Remote port of the peer. */
+    private final int port;
+    /** Prefix for all log lines of this connection. */
+    private final String debugString;
+    /** True, if the "reg2" command was used on this connection **/
+    private boolean isServer = false;
+
+    /**
+     * @param address Address of the peer.
+     * @param port Remote port of the peer.
+     */
+    protected Connection(InetAddress address, int port) {
+        this.hostAddress = address.getHostAddress();
+        this.key = AddressKey.of(address);
+        this.port = port;
+        this.debugString = this.hostAddress+":"+port+" | TCP | ";
+    }
+
+    /**
+     * Sends the bytes to the peer.
+     * @param data Bytes to send
+     * @throws IOException If the connection is broken.
+     */
+    public abstract void send(byte[] data) throws IOException;
+
+    /**
+     * Queues the bytes for the peer and returns without waiting for them to
+     * be written. The messages are written in order by the writer of the
+     * connection. At most --write-queue messages can wait, if the peer doesn't
+     * read them in --write-timeout seconds the connection is closed.
+     * @param data Bytes to send
+     * @return False if the queue is full (or this connection has none, or is closed)
+     */
+    public abstract boolean queue(byte[] data);
+
+    /**
+     * Makes sure queue() works for this connection. Must be called by the
+     * thread that runs the commands of this connection.
+     */
+    public void enableWriteQueue() {
+    }
+
+    /**
+     * Runs the task on the writer of this connection. What the task queues
+     * is sent after the messages that were queued before it.
+     * @param task The task
+     * @return False if the connection is closed (or has no write queue)
+     */
+    public abstract boolean execute(Runnable task);
+
+    /**
+     * @return Whether or not this connection was closed.
+     */
+    public abstract boolean isClosed();
+
+    /**
+     * Closes this connection without any cleanup.
+     * @throws IOException
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * Closes this connection and cleans up (destroy), like after a failed
+     * write. Can be called from any thread.
+     */
+    public abstract void disconnect();
+
+    public String getHostAddress() {
+        return hostAddress;
+    }
+
+    /**
+     * @return Key of the IP in the Registry (AddressKey.NONE if it isn't an IPv4 address)
+     */
+    public long getKey() {
+        return key;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getDebugString() {
+        return debugString;
+    }
+
+    public boolean isServer() {
+        return isServer;
+    }
+
+    public void setServer(boolean isServer) {
+        this.isServer = isServer;
+    }
+
+    /**
+     * Cleanup, when they loose TCP connection, the server data can't be used
+     * anymore, so it's safe to remove. Unless the server registered again
+     * with another connection.
+     * @param main Mediator class instance that this connection belongs to.
+     */
+    protected void destroy(Mediator main) {
+        main.getCommandHandler().getSubscriptions().unsubscribe(this);
+        if (this.isServer && main.destroyServer(this)) {
+            Mediator.log(this.debugString+" Server deleted!",false);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.UnaryOperator;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent map from address keys (see AddressKey) to servers or clients.
+ * The keys are stored as primitive longs in open addressing tables (linear
+ * probing), so there are no key objects and no entry objects. The map is
+ * split into stripes, each with its own lock; writes lock one stripe and
+ * reads usually don't lock at all (optimistic reads, that are retried with
+ * the lock if a write happened at the same time).
+ * @param <V> Type of the values
+ * @author Parakoopa
+ */
+public class EndpointMap<V> {
+
+    private static final int STRIPES = 64;
+    /** Initial (and smallest) number of slots of a stripe. */
+    private static final int MIN_CAPACITY = 16;
+    /** Marks an empty slot. Keys are never negative. */
+    private static final long EMPTY = -1;
+
+    /**
+     * The slots of a stripe. Replaced as a whole when the stripe grows or
+     * shrinks, so an optimistic reader always sees arrays of the same length.
+     */
+    private static final class Table {
+        final long[] keys;
+        final Object[] values;
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            Arrays.fill(this.keys, EMPTY);
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        volatile Table table = new Table(MIN_CAPACITY);
+        /** Guarded by the write lock. */
+        int size = 0;
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public EndpointMap() {
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Spreads the bits of the key (addresses of one network only differ in
+     * the last bits).
+     */
+    private static long hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private Stripe stripe(long hash) {
+        return this.stripes[(int) (hash >>> 58) & (STRIPES - 1)];
+    }
+
+    private static void checkKey(long key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Invalid key " + key);
+        }
+    }
+
+    /**
+     * @return Slot of the key or -1 if it isn't in the table
+     */
+    private static int find(Table table, long key, long hash) {
+        int slot = (int) hash & table.mask;
+        //Bounded, an optimistic reader might see a table in the middle of a change.
+        for (int probes = 0; probes <= table.mask; probes++) {
+            long current = table.keys[slot];
+            if (current == key) {
+                return slot;
+            }
+            if (current == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & table.mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param key The key
+     * @return The value of the key or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        checkKey(key);
+        long hash = hash(key);
+        Stripe stripe = this.stripe(hash);
+        long stamp = stripe.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Table table = stripe.table;
+            int slot = find(table, key, hash);
+            Object value = slot < 0 ? null : table.values[slot];
+            if (stripe.lock.validate(stamp)) {
+                return (V) value;
+            }
+        }
+        stamp = stripe.lock.readLock();
+        try {
+            Table table = stripe.table;
+            int slot = find(table, key, hash);
+            return slot < 0 ? null : (V) table.values[slot];
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the value of the key. If there is none, it is created and
+     * stored. Creating the value is atomic.
+     * @param key The key
+     * @param create Creates the value from the key
+     * @return The (new) value of the key
+     */
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(long key, LongFunction<? extends V> create) {
+        V value = this.get(key);
+        if (value != null) {
+            return value;
+        }
+        long hash = hash(key);
+        Stripe stripe = this.stripe(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            Table table = stripe.table;
+            int slot = find(table, key, hash);
+            if (slot >= 0) {
+                return (V) table.values[slot];
+            }
+            value = create.apply(key);
+            if (value != null) {
+                insert(stripe, key, hash, value);
+            }
+            return value;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replaces or removes the value of the key atomically, if there is one.
+     * @param key The key
+     * @param remap Gets the current value and returns the new one (or null to remove it)
+     * @return The new value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V computeIfPresent(long key, UnaryOperator<V> remap) {
+        checkKey(key);
+        long hash = hash(key);
+        Stripe stripe = this.stripe(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            Table table = stripe.table;
+            int slot = find(table, key, hash);
+            if (slot < 0) {
+                return null;
+            }
+            V value = remap.apply((V) table.values[slot]);
+            if (value == null) {
+                delete(stripe, slot);
+            } else {
+                table.values[slot] = value;
+            }
+            return value;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param key The key
+     * @return The removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        checkKey(key);
+        long hash = hash(key);
+        Stripe stripe = this.stripe(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            Table table = stripe.table;
+            int slot = find(table, key, hash);
+            if (slot < 0) {
+                return null;
+            }
+            V value = (V) table.values[slot];
+            delete(stripe, slot);
+            return value;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return Number of entries. Not exact while other threads change the map.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : this.stripes) {
+            long stamp = stripe.lock.readLock();
+            size += stripe.size;
+            stripe.lock.unlockRead(stamp);
+        }
+        return size;
+    }
+
+    /**
+     * Calls the action for all values. Each stripe is locked while its values
+     * are visited, so the action must not change this map.
+     * @param action The action
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super V> action) {
+        for (Stripe stripe : this.stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                for (Object value : stripe.table.values) {
+                    if (value != null) {
+                        action.accept((V) value);
+                    }
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Adds a key that isn't in the stripe. Needs the write lock.
+     */
+    private static void insert(Stripe stripe, long key, long hash, Object value) {
+        Table table = stripe.table;
+        if ((stripe.size + 1) * 2 > table.keys.length) {
+            table = resize(stripe, table.keys.length * 2);
+        }
+        int slot = (int) hash & table.mask;
+        while (table.keys[slot] != EMPTY) {
+            slot = (slot + 1) & table.mask;
+        }
+        //Value first, an optimistic reader that finds the key has to validate anyway.
+        table.values[slot] = value;
+        table.keys[slot] = key;
+        stripe.size++;
+    }
+
+    /**
+     * Removes the entry in the slot and moves the following entries of its
+     * probe sequence back, so no tombstones are needed. Needs the write lock.
+     */
+    private static void delete(Stripe stripe, int slot) {
+        Table table = stripe.table;
+        int gap = slot;
+        int next = (gap + 1) & table.mask;
+        while (table.keys[next] != EMPTY) {
+            int home = (int) hash(table.keys[next]) & table.mask;
+            //Move the entry into the gap if the gap lies between its home slot and its slot.
+            if (((next - home) & table.mask) >= ((next - gap) & table.mask)) {
+                table.keys[gap] = table.keys[next];
+                table.values[gap] = table.values[next];
+                gap = next;
+            }
+            next = (next + 1) & table.mask;
+        }
+        table.keys[gap] = EMPTY;
+        table.values[gap] = null;
+        stripe.size--;
+        if (table.keys.length > MIN_CAPACITY && stripe.size * 8 < table.keys.length) {
+            resize(stripe, table.keys.length / 2);
+        }
+    }
+
+    /**
+     * Moves all entries of the stripe into a new table. Needs the write lock.
+     */
+    private static Table resize(Stripe stripe, int capacity) {
+        Table old = stripe.table;
+        Table table = new Table(capacity);
+        for (int i = 0; i < old.keys.length; i++) {
+            long key = old.keys[i];
+            if (key != EMPTY) {
+                int slot = (int) hash(key) & table.mask;
+                while (table.keys[slot] != EMPTY) {
+                    slot = (slot + 1) & table.mask;
+                }
+                table.keys[slot] = key;
+                table.values[slot] = old.values[i];
+            }
+        }
+        stripe.table = table;
+        return table;
+    }
+}
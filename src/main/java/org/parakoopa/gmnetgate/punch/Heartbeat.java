@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Heartbeats of the game server connections, to find servers that vanished
+ * without closing their connection (crash, network gone) and would
+ * otherwise stay in the lobby forever.
+ * GM:Studio can't answer a heartbeat of our own, so TCP keepalive is used:
+ * The kernel sends the probes (no thread per server and nothing the game
+ * sees) every --heartbeat seconds once a connection is idle, and after
+ * --heartbeat-misses unanswered probes it ends the connection. The
+ * connection then removes its server like after any other disconnect.
+ *
+ * The intervals are set with jdk.net.ExtendedSocketOptions (Java 11+ on
+ * Linux/macOS), which are looked up by reflection. Without them keepalive
+ * uses the intervals of the system (usually hours).
+ * @author Parakoopa
+ */
+public final class Heartbeat {
+
+    private static final SocketOption<Integer> KEEPIDLE = extendedOption("TCP_KEEPIDLE");
+    private static final SocketOption<Integer> KEEPINTERVAL = extendedOption("TCP_KEEPINTERVAL");
+    private static final SocketOption<Integer> KEEPCOUNT = extendedOption("TCP_KEEPCOUNT");
+    /** Socket.setOption (Java 9+) or null. */
+    private static final Method SET_OPTION = socketSetOption();
+
+    private Heartbeat() {
+    }
+
+    /**
+     * @return True if the intervals can be set, otherwise the system ones are used
+     */
+    public static boolean isSupported() {
+        return KEEPIDLE != null && KEEPINTERVAL != null && KEEPCOUNT != null;
+    }
+
+    /**
+     * Starts the heartbeats of a game server connection (thread mode).
+     * @param socket The connection
+     * @throws IOException
+     */
+    public static void enable(Socket socket) throws IOException {
+        if (Mediator.getHeartbeat() <= 0) {
+            return;
+        }
+        socket.setKeepAlive(true);
+        if (isSupported() && SET_OPTION != null) {
+            try {
+                SET_OPTION.invoke(socket, KEEPIDLE, Mediator.getHeartbeat());
+                SET_OPTION.invoke(socket, KEEPINTERVAL, Mediator.getHeartbeat());
+                SET_OPTION.invoke(socket, KEEPCOUNT, Mediator.getHeartbeatMisses());
+            } catch (ReflectiveOperationException ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+
+    /**
+     * Starts the heartbeats of a game server connection (NIO mode).
+     * @param channel The connection
+     * @throws IOException
+     */
+    public static void enable(SocketChannel channel) throws IOException {
+        if (Mediator.getHeartbeat() <= 0) {
+            return;
+        }
+        channel.socket().setKeepAlive(true);
+        if (isSupported()) {
+            channel.setOption(KEEPIDLE, Mediator.getHeartbeat());
+            channel.setOption(KEEPINTERVAL, Mediator.getHeartbeat());
+            channel.setOption(KEEPCOUNT, Mediator.getHeartbeatMisses());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Integer> extendedOption(String name) {
+        try {
+            return (SocketOption<Integer>) Class.forName("jdk.net.ExtendedSocketOptions").getField(name).get(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static Method socketSetOption() {
+        try {
+            return Socket.class.getMethod("setOption", SocketOption.class, Object.class);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations in buckets like an HDR histogram: every power of two is
+ * split into 32 buckets of the same width, so a value is known with about 3%
+ * precision from 1 ns up to about 18 minutes, with a fixed number of buckets.
+ * Recording only increments striped counters (LongAdder), it never locks.
+ * @author Parakoopa
+ */
+public class LatencyHistogram {
+
+    /** 2^SUB_BITS buckets per power of two. */
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Larger values are counted as 2^MAX_BITS - 1 ns. */
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private final LongAdder[] buckets = new LongAdder[(MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos A duration (ns)
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        this.buckets[index(value)].increment();
+        this.count.increment();
+        this.sum.add(value);
+        this.max.accumulate(value);
+    }
+
+    /**
+     * Records the time since the start.
+     * @param startNanos System.nanoTime() at the start
+     */
+    public void recordSince(long startNanos) {
+        this.record(System.nanoTime() - startNanos);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return Largest value that is counted in the bucket
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @return Number of recorded values
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return Sum of all recorded values (ns)
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * @return Largest recorded value (ns)
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the values at the quantiles. The values that are recorded while
+     * this runs might be counted or not.
+     * @param quantiles Quantiles (0-1) in ascending order
+     * @return The value (ns) for each quantile, 0 if nothing was recorded
+     */
+    public long[] getValuesAt(double... quantiles) {
+        long[] counts = new long[this.buckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.buckets[i].sum();
+            total += counts[i];
+        }
+        long[] values = new long[quantiles.length];
+        if (total == 0) {
+            return values;
+        }
+        int bucket = 0;
+        long seen = counts[0];
+        for (int q = 0; q < quantiles.length; q++) {
+            long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+            while (seen < rank && bucket < counts.length - 1) {
+                seen += counts[++bucket];
+            }
+            values[q] = Math.min(highestValue(bucket), this.getMax());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits the bytes of a TCP connection into the lines of the protocol.
+ * Lines end with \n, \r or \r\n, like with BufferedReader.readLine(). The
+ * lines are cleaned the same way replaceAll("\\p{C}", "") did it before
+ * (control, format, private use, surrogate and unassigned characters are
+ * removed), but without a regex: ASCII lines are filtered byte by byte and
+ * only lines with other characters are decoded with the default charset
+ * first.
+ * One instance is used for the whole connection. TCPConnection reads with
+ * readLine(), NIOConnection passes the recieved data to nextLine().
+ * @author Parakoopa
+ */
+public class LineReader {
+
+    /** True if the default charset decodes the bytes 0-127 to ASCII. Otherwise every line is decoded. */
+    private static final boolean ASCII_COMPATIBLE;
+
+    static {
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        ASCII_COMPATIBLE = new String(ascii, Charset.defaultCharset())
+                .equals(new String(ascii, StandardCharsets.US_ASCII));
+    }
+
+    /** Stream of the blocking transport (or null). */
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+
+    /** Start of a line that didn't end in the recieved data yet. */
+    private byte[] line = new byte[128];
+    private int lineLength = 0;
+    /** True if the last line ended with \r. A following \n belongs to that line ending. */
+    private boolean skipLF = false;
+    /** Index after the bytes used by the last call of scan(). */
+    private int scanned;
+    /** ASCII characters that are left after cleaning. */
+    private byte[] clean = new byte[128];
+
+    /**
+     * Creates a reader that reads from a stream (blocking transport).
+     * @param in The input stream of the socket
+     */
+    public LineReader(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[1024];
+    }
+
+    /**
+     * Creates a reader that gets its data from nextLine() (NIO transport).
+     */
+    public LineReader() {
+        this.in = null;
+        this.buffer = null;
+    }
+
+    /**
+     * Reads the next line from the stream. Blocks until it is complete.
+     * @return The cleaned line or null if the stream ended.
+     * @throws IOException
+     */
+    public String readLine() throws IOException {
+        while (true) {
+            if (this.position == this.limit) {
+                int read = this.in.read(this.buffer);
+                if (read < 0) {
+                    return this.remaining();
+                }
+                this.position = 0;
+                this.limit = read;
+            }
+            String result = this.scan(this.buffer, this.position, this.limit);
+            this.position = this.scanned;
+            if (result != null) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Takes bytes from the buffer until a line is complete.
+     * Bytes of an incomplete line are kept for the next call.
+     * @param data Recieved data (a heap buffer). Its position is moved behind the used bytes.
+     * @return The cleaned line or null if the data ended before the line.
+     */
+    public String nextLine(ByteBuffer data) {
+        int offset = data.arrayOffset();
+        String result = this.scan(data.array(), offset + data.position(), offset + data.limit());
+        data.position(this.scanned - offset);
+        return result;
+    }
+
+    /**
+     * Returns the unfinished line after the peer disconnected.
+     * The last line doesn't need a line ending.
+     * @return The cleaned line or null if there was nothing left.
+     */
+    public String remaining() {
+        if (this.lineLength == 0) {
+            return null;
+        }
+        String result = this.clean(this.line, 0, this.lineLength);
+        this.lineLength = 0;
+        return result;
+    }
+
+    /**
+     * Looks for the end of the current line in data[from, to).
+     * Sets scanned to the index after the used bytes.
+     * @return The cleaned line or null if the line didn't end.
+     */
+    private String scan(byte[] data, int from, int to) {
+        int start = from;
+        if (this.skipLF && start < to) {
+            this.skipLF = false;
+            if (data[start] == '\n') {
+                start++;
+            }
+        }
+        for (int i = start; i < to; i++) {
+            byte b = data[i];
+            if (b == '\n' || b == '\r') {
+                this.skipLF = (b == '\r');
+                this.scanned = i + 1;
+                if (this.lineLength == 0) {
+                    //The whole line is in data, no need to copy it.
+                    return this.clean(data, start, i - start);
+                }
+                this.append(data, start, i - start);
+                String result = this.clean(this.line, 0, this.lineLength);
+                this.lineLength = 0;
+                return result;
+            }
+        }
+        this.append(data, start, to - start);
+        this.scanned = to;
+        return null;
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        if (this.lineLength + length > this.line.length) {
+            this.line = Arrays.copyOf(this.line, Math.max(this.line.length * 2, this.lineLength + length));
+        }
+        System.arraycopy(data, offset, this.line, this.lineLength, length);
+        this.lineLength += length;
+    }
+
+    /**
+     * Decodes the line and removes the characters matched by \p{C}.
+     */
+    private String clean(byte[] data, int offset, int length) {
+        if (!ASCII_COMPATIBLE) {
+            return cleanDecoded(new String(data, offset, length));
+        }
+        int cleanLength = 0;
+        boolean removed = false;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (b < 0) {
+                //Not ASCII
+                return cleanDecoded(new String(data, offset, length));
+            }
+            if (b < 0x20 || b == 0x7F) {
+                //ASCII control character
+                if (!removed) {
+                    removed = true;
+                    if (this.clean.length < length) {
+                        this.clean = new byte[Math.max(this.clean.length * 2, length)];
+                    }
+                    System.arraycopy(data, offset, this.clean, 0, i - offset);
+                    cleanLength = i - offset;
+                }
+            } else if (removed) {
+                this.clean[cleanLength++] = b;
+            }
+        }
+        if (removed) {
+            return new String(this.clean, 0, cleanLength, StandardCharsets.ISO_8859_1);
+        }
+        return new String(data, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Removes the characters matched by \p{C} from a decoded line.
+     */
+    private static String cleanDecoded(String str) {
+        StringBuilder result = null;
+        for (int i = 0; i < str.length(); ) {
+            int codePoint = str.codePointAt(i);
+            int next = i + Character.charCount(codePoint);
+            if (isOther(codePoint)) {
+                if (result == null) {
+                    result = new StringBuilder(str.length()).append(str, 0, i);
+                }
+            } else if (result != null) {
+                result.append(str, i, next);
+            }
+            i = next;
+        }
+        return result == null ? str : result.toString();
+    }
+
+    /**
+     * @return True if the character is in the unicode category C ("other").
+     */
+    private static boolean isOther(int codePoint) {
+        switch (Character.getType(codePoint)) {
+            case Character.CONTROL:
+            case Character.FORMAT:
+            case Character.PRIVATE_USE:
+            case Character.SURROGATE:
+            case Character.UNASSIGNED:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds the lobby (list of servers) for the lobby commands.
+ * @author Parakoopa
+ */
+public class Lobby {
+
+    /** Writes the JSON of the lobby. One per thread, it reuses its buffer. */
+    private static final ThreadLocal<LobbyEncoder> ENCODER = ThreadLocal.withInitial(LobbyEncoder::new);
+    /** Writes the binary lobby. One per thread, it reuses its buffers. */
+    private static final ThreadLocal<LobbyBinaryEncoder> BINARY_ENCODER = ThreadLocal.withInitial(LobbyBinaryEncoder::new);
+
+    private final Registry registry;
+    /** Responses of recent requests. */
+    private final LobbyCache cache;
+    /** Sorted lobbies for paginated requests. */
+    private final LobbyPages pages;
+    /** Filter and sort the ServerColumns of the snapshots instead of the server objects. */
+    private final boolean columns;
+    /** Time to build a response (or null). */
+    private final LatencyHistogram buildTime;
+
+    /**
+     * @param registry Registry that contains the servers.
+     * @param cacheSize Number of responses to cache (0: no cache).
+     */
+    public Lobby(Registry registry, int cacheSize) {
+        this(registry, cacheSize, null);
+    }
+
+    /**
+     * @param registry Registry that contains the servers.
+     * @param cacheSize Number of responses to cache (0: no cache).
+     * @param buildTime Records the time to build a response that wasn't cached (or null).
+     */
+    public Lobby(Registry registry, int cacheSize, LatencyHistogram buildTime) {
+        this(registry, cacheSize, Mediator.getLobbySnapshots(), buildTime);
+    }
+
+    /**
+     * @param registry Registry that contains the servers.
+     * @param cacheSize Number of responses to cache (0: no cache).
+     * @param snapshots Number of sorted lobbies that are kept for paginated requests.
+     * @param buildTime Records the time to build a response that wasn't cached (or null).
+     */
+    public Lobby(Registry registry, int cacheSize, int snapshots, LatencyHistogram buildTime) {
+        this(registry, cacheSize, snapshots, Mediator.isLobbyColumns(), buildTime);
+    }
+
+    /**
+     * @param registry Registry that contains the servers.
+     * @param cacheSize Number of responses to cache (0: no cache).
+     * @param snapshots Number of sorted lobbies that are kept for paginated requests.
+     * @param columns Filter and sort the servers as ServerColumns.
+     * @param buildTime Records the time to build a response that wasn't cached (or null).
+     */
+    public Lobby(Registry registry, int cacheSize, int snapshots, boolean columns, LatencyHistogram buildTime) {
+        this.registry = registry;
+        this.cache = new LobbyCache(cacheSize);
+        this.pages = new LobbyPages(registry, snapshots);
+        this.columns = columns;
+        this.buildTime = buildTime;
+    }
+
+    /**
+     * Builds the 249 lobby response, or the 241 response if the limit line
+     * asks for a page (see LobbyPages).
+     * @param args The 11 filter lines of the lobby2 command.
+     * @return The response
+     */
+    public byte[] lobby2(String[] args) {
+        return this.lobby(args, false);
+    }
+
+    /**
+     * Builds the 242 lobby response (same servers as lobby2, binary format).
+     * @param args The 11 filter lines of the lobby3 command.
+     * @return The response
+     * @see LobbyBinaryEncoder
+     */
+    public byte[] lobby3(String[] args) {
+        return this.lobby(args, true);
+    }
+
+    private byte[] lobby(String[] args, boolean binary) {
+        if (LobbyPages.isPage(args[10])) {
+            //Pages come from the snapshots, not from the cache.
+            long start = System.nanoTime();
+            LobbyPages.Page page = this.pages.page(args);
+            byte[] response;
+            if (binary) {
+                response = BINARY_ENCODER.get().encode(page.getServers(), page.getCursor());
+            } else {
+                response = ENCODER.get().encode(page.getServers(), page.getCursor());
+            }
+            if (this.buildTime != null) {
+                this.buildTime.recordSince(start);
+            }
+            return response;
+        }
+        //The same request for the same servers always gets the same response.
+        String request = String.join("\n", args);
+        if (binary) {
+            //Requests never contain line breaks in their lines, so this can't clash with lobby2.
+            request = "lobby3\n" + request;
+        }
+        //Everything is read from one snapshot, so the response belongs to its generation.
+        RegistrySnapshot snapshot = this.registry.getSnapshot();
+        long generation = snapshot.getGeneration();
+        byte[] response = this.cache.get(request, generation);
+        if (response == null) {
+            long start = System.nanoTime();
+            response = this.build(snapshot, args, binary);
+            if (this.buildTime != null) {
+                this.buildTime.recordSince(start);
+            }
+            this.cache.put(request, generation, response);
+        }
+        return response;
+    }
+
+    /**
+     * Builds the lobby response without the cache.
+     * @param snapshot Servers of the registry
+     * @param args The 11 filter lines of the lobby command.
+     * @param binary 242 response instead of 249
+     * @return The response
+     */
+    private byte[] build(RegistrySnapshot snapshot, String[] args, boolean binary) {
+        Server[] arr = this.query(snapshot, args);
+        if (binary) {
+            return BINARY_ENCODER.get().encode(arr);
+        }
+        return ENCODER.get().encode(arr);
+    }
+
+    /**
+     * @return The cache of the lobby responses
+     */
+    public LobbyCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * @return The snapshots of the paginated requests
+     */
+    public LobbyPages getPages() {
+        return this.pages;
+    }
+
+    /**
+     * Finds, sorts and limits the servers for a lobby request.
+     * @param args The 8 data filters, sortby, sortby direction and limit.
+     * @return The servers of the lobby
+     */
+    public Server[] query(String[] args) {
+        return this.query(this.registry.getSnapshot(), args);
+    }
+
+    private Server[] query(RegistrySnapshot snapshot, String[] args) {
+        if (this.columns) {
+            return this.queryColumns(snapshot.getColumns(), args);
+        }
+        final String filter_sortby = args[8];
+        final String filter_sortby_dir = args[9];
+        String filter_limit = args[10];
+
+        //Only servers that match the 8 data filters
+        List<Server> servers = snapshot.findServers(args);
+        Comparator<Server> comparator = getComparator(filter_sortby, filter_sortby_dir);
+
+        if (!"".equals(filter_limit)) {
+            int limit = Integer.valueOf(filter_limit);
+            if (limit >= 0 && limit < servers.size()) {
+                //Only the first few are needed, don't sort all of them.
+                return top(servers, comparator, limit);
+            }
+            Server[] arr = sort(servers, comparator);
+            if (limit <= arr.length) {
+                arr = Arrays.copyOfRange(arr, 0, limit);
+            }
+            return arr;
+        }
+        return sort(servers, comparator);
+    }
+
+    /**
+     * Like query(), but on the columns. Only the servers of the result are
+     * turned into objects.
+     */
+    private Server[] queryColumns(ServerColumns serverColumns, String[] args) {
+        int[] rows = serverColumns.sort(serverColumns.find(args), args[8], args[9]);
+        String filter_limit = args[10];
+        if (!"".equals(filter_limit)) {
+            int limit = Integer.valueOf(filter_limit);
+            if (limit <= rows.length) {
+                rows = Arrays.copyOfRange(rows, 0, limit);
+            }
+        }
+        Server[] arr = new Server[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            arr[i] = serverColumns.view(rows[i]);
+        }
+        return arr;
+    }
+
+    /**
+     * Returns the order of the lobby.
+     * @param filter_sortby "date" (default) or "data1"-"data8"
+     * @param filter_sortby_dir "ASC" or anything else
+     * @return Comparator for the servers
+     */
+    public static Comparator<Server> getComparator(final String filter_sortby, final String filter_sortby_dir) {
+        return new Comparator<Server>() {
+            @Override
+            public int compare(Server o1, Server o2) {
+                int mp = 1;
+                int rt = 0;
+                if ("ASC".equals(filter_sortby_dir)) {
+                    mp = -1;
+                }
+                switch (filter_sortby) {
+                    default:
+                    case "date":
+                        rt = Long.compare(o1.getCreatedTime(), o2.getCreatedTime()) * mp;
+                    break;
+                    case "data1":
+                        rt = o1.getData1().compareTo(o2.getData1()) * mp;
+                    break;
+                    case "data2":
+                        rt = o1.getData2().compareTo(o2.getData2()) * mp;
+                    break;
+                    case "data3":
+                        rt = o1.getData3().compareTo(o2.getData3()) * mp;
+                    break;
+                    case "data4":
+                        rt = o1.getData4().compareTo(o2.getData4()) * mp;
+                    break;
+                    case "data5":
+                        rt = o1.getData5().compareTo(o2.getData5()) * mp;
+                    break;
+                    case "data6":
+                        rt = o1.getData6().compareTo(o2.getData6()) * mp;
+                    break;
+                    case "data7":
+                        rt = o1.getData7().compareTo(o2.getData7()) * mp;
+                    break;
+                    case "data8":
+                        rt = o1.getData8().compareTo(o2.getData8()) * mp;
+                    break;
+                }
+                return rt;
+            }
+        };
+    }
+
+    /**
+     * Sorts all servers. The sort is stable, equal servers keep their order.
+     * @param servers The servers
+     * @param comparator Order
+     * @return The sorted servers
+     */
+    public static Server[] sort(List<Server> servers, Comparator<Server> comparator) {
+        Server[] arr = servers.toArray(new Server[servers.size()]);
+        Arrays.sort(arr, comparator);
+        return arr;
+    }
+
+    /**
+     * Returns the first servers in sorted order, without sorting all of them
+     * (O(n log k) instead of O(n log n)). The result is the same as the first
+     * limit servers of sort(), including the order of equal servers.
+     * @param servers The servers
+     * @param comparator Order
+     * @param limit Number of servers to return (0 <= limit <= servers.size())
+     * @return The first servers
+     */
+    public static Server[] top(List<Server> servers, Comparator<Server> comparator, int limit) {
+        Server[] arr = servers.toArray(new Server[servers.size()]);
+        if (limit == 0) {
+            return new Server[0];
+        }
+        //Max-heap of the indices of the best servers so far, the worst one is at the top.
+        //Equal servers are ordered by their index, like in a stable sort.
+        int[] heap = new int[limit];
+        int size = 0;
+        for (int i = 0; i < arr.length; i++) {
+            if (size < limit) {
+                //Sift up
+                int pos = size++;
+                while (pos > 0) {
+                    int parent = (pos - 1) / 2;
+                    if (!before(arr, comparator, heap[parent], i)) {
+                        break;
+                    }
+                    heap[pos] = heap[parent];
+                    pos = parent;
+                }
+                heap[pos] = i;
+            } else if (before(arr, comparator, i, heap[0])) {
+                //Replace the worst one and sift down
+                int pos = 0;
+                while (true) {
+                    int child = 2 * pos + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && before(arr, comparator, heap[child], heap[child + 1])) {
+                        child++;
+                    }
+                    if (!before(arr, comparator, i, heap[child])) {
+                        break;
+                    }
+                    heap[pos] = heap[child];
+                    pos = child;
+                }
+                heap[pos] = i;
+            }
+        }
+        //Put the selected servers in their original order, then a stable sort gives the final order.
+        Arrays.sort(heap);
+        Server[] result = new Server[limit];
+        for (int i = 0; i < limit; i++) {
+            result[i] = arr[heap[i]];
+        }
+        Arrays.sort(result, comparator);
+        return result;
+    }
+
+    /**
+     * @return Whether or not server a comes before server b (by order, then by index)
+     */
+    private static boolean before(Server[] arr, Comparator<Server> comparator, int a, int b) {
+        int rt = comparator.compare(arr[a], arr[b]);
+        return rt < 0 || (rt == 0 && a < b);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the lobby in a compact binary format (for the lobby3 command).
+ * Every distinct string (ip and data1-data8) is only sent once in a
+ * dictionary, servers refer to it by index. The timestamps are the difference
+ * to the previous server, so a lobby sorted by date only needs one or two
+ * bytes for them.
+ * <pre>
+ * u8      242
+ * u32     Number of bytes that follow (little endian, like GameMaker buffers)
+ * varint  Number of strings in the dictionary
+ *         Per string: varint length in bytes, UTF-8 bytes
+ * varint  Number of servers
+ *         Per server: zigzag varint createdTime minus createdTime of the
+ *         previous server (0 for the first one), then 9 varint dictionary
+ *         indices for ip and data1-data8
+ * varint  Only for a page of the lobby (see LobbyPages): Length of the
+ *         cursor of the next page (0 after the last page), ASCII bytes
+ * </pre>
+ * A varint is an unsigned number in groups of 7 bits, lowest group first.
+ * The highest bit of a byte is set if another byte follows.
+ * Zigzag maps 0, -1, 1, -2... to 0, 1, 2, 3...
+ * The servers are the same ones in the same order as in the 249 response.
+ * Null strings are sent as empty strings.
+ * An encoder is not thread-safe, use one per thread.
+ * @author Parakoopa
+ */
+public class LobbyBinaryEncoder {
+
+    /** First byte of the response. */
+    public static final int LOBBY = 242;
+
+    private byte[] buffer = new byte[8192];
+    private int length;
+    /** String to index in the dictionary. Cleared for every response. */
+    private final HashMap<String, Integer> dictionary = new HashMap<>();
+    /** Dictionary indices of the servers, 9 per server. */
+    private int[] indices = new int[9 * 256];
+
+    /**
+     * Builds the 242 lobby response.
+     * @param servers Servers of the lobby
+     * @return 242, the length and the lobby
+     */
+    public byte[] encode(Server[] servers) {
+        return this.encode(servers, null);
+    }
+
+    /**
+     * Builds the 242 lobby response.
+     * @param servers Servers of the lobby or page
+     * @param cursor Cursor of the next page, null if the lobby isn't paginated
+     * @return 242, the length, the lobby and the cursor
+     */
+    public byte[] encode(Server[] servers, String cursor) {
+        this.length = 0;
+        this.dictionary.clear();
+        if (this.indices.length < servers.length * 9) {
+            this.indices = new int[Math.max(this.indices.length * 2, servers.length * 9)];
+        }
+        this.write(LOBBY);
+        //Length is filled in at the end
+        this.length += 4;
+
+        //Find the distinct strings first, the dictionary comes before the servers.
+        int index = 0;
+        for (Server serverObj : servers) {
+            this.indices[index++] = this.index(serverObj.getIp());
+            for (int field = 1; field <= 8; field++) {
+                this.indices[index++] = this.index(serverObj.getData(field));
+            }
+        }
+        String[] strings = new String[this.dictionary.size()];
+        for (Map.Entry<String, Integer> entry : this.dictionary.entrySet()) {
+            strings[entry.getValue()] = entry.getKey();
+        }
+        this.writeVarint(strings.length);
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            this.writeVarint(bytes.length);
+            this.write(bytes);
+        }
+
+        this.writeVarint(servers.length);
+        index = 0;
+        long previous = 0;
+        for (Server serverObj : servers) {
+            long createdTime = serverObj.getCreatedTime();
+            long delta = createdTime - previous;
+            this.writeVarint((delta << 1) ^ (delta >> 63));
+            previous = createdTime;
+            for (int i = 0; i < 9; i++) {
+                this.writeVarint(this.indices[index++]);
+            }
+        }
+
+        if (cursor != null) {
+            byte[] bytes = cursor.getBytes(StandardCharsets.US_ASCII);
+            this.writeVarint(bytes.length);
+            this.write(bytes);
+        }
+
+        int following = this.length - 5;
+        this.buffer[1] = (byte) following;
+        this.buffer[2] = (byte) (following >>> 8);
+        this.buffer[3] = (byte) (following >>> 16);
+        this.buffer[4] = (byte) (following >>> 24);
+        return Arrays.copyOf(this.buffer, this.length);
+    }
+
+    /**
+     * @return Index of the string in the dictionary, adds it if needed.
+     */
+    private int index(String value) {
+        if (value == null) {
+            value = "";
+        }
+        Integer index = this.dictionary.get(value);
+        if (index == null) {
+            index = this.dictionary.size();
+            this.dictionary.put(value, index);
+        }
+        return index;
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            this.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        this.write((int) value);
+    }
+
+    private void write(int b) {
+        if (this.length >= this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + 1));
+        }
+        this.buffer[this.length++] = (byte) b;
+    }
+
+    private void write(byte[] bytes) {
+        if (this.length + bytes.length > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + bytes.length));
+        }
+        System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+        this.length += bytes.length;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache for complete lobby responses.
+ * Every entry remembers the generation of the Registry it was built with and
+ * is only used as long as the registry didn't change. If the cache is full,
+ * the entry that wasn't used for the longest time is removed.
+ * @author Parakoopa
+ */
+public class LobbyCache {
+
+    private final int size;
+    /** Request (all lines) to entry, in access order. Guarded by itself. */
+    private final LinkedHashMap<String, CachedLobby> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param size Maximum number of responses. 0 disables the cache.
+     */
+    public LobbyCache(final int size) {
+        this.size = size;
+        this.entries = new LinkedHashMap<String, CachedLobby>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedLobby> eldest) {
+                return this.size() > size;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached response, if it was built with this generation of the registry.
+     * @param request The request lines
+     * @param generation Current generation of the registry
+     * @return The response or null
+     */
+    public byte[] get(String request, long generation) {
+        if (this.size == 0) {
+            return null;
+        }
+        CachedLobby entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(request);
+        }
+        if (entry != null && entry.generation == generation) {
+            this.hits.increment();
+            return entry.response;
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores a response.
+     * @param request The request lines
+     * @param generation Generation of the registry that was read <b>before</b> the response was built
+     * @param response The response
+     */
+    public void put(String request, long generation, byte[] response) {
+        if (this.size == 0) {
+            return;
+        }
+        synchronized (this.entries) {
+            this.entries.put(request, new CachedLobby(generation, response));
+        }
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * A cached response.
+     */
+    private static class CachedLobby {
+        private final long generation;
+        private final byte[] response;
+
+        private CachedLobby(long generation, byte[] response) {
+            this.generation = generation;
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes the JSON of the lobby (the @Expose fields of Server) directly into a
+ * reusable byte buffer.
+ * The output is exactly the same as the one of
+ * new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create().toJson(servers).getBytes():
+ * Same field order, null fields are left out and strings are escaped HTML
+ * safe like Gson does it.
+ * An encoder is not thread-safe, use one per thread.
+ * @author Parakoopa
+ */
+public class LobbyEncoder {
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[][] NAMES = {
+        name("ip"), name("data1"), name("data2"), name("data3"), name("data4"),
+        name("data5"), name("data6"), name("data7"), name("data8"), name("createdTime")
+    };
+    /** Charset of the JSON, the default charset (like String.getBytes()). */
+    private final Charset charset;
+    private final boolean utf8;
+
+    private byte[] buffer = new byte[8192];
+    private int length;
+
+    public LobbyEncoder() {
+        this(Charset.defaultCharset());
+    }
+
+    /**
+     * @param charset Charset of the JSON
+     */
+    LobbyEncoder(Charset charset) {
+        this.charset = charset;
+        this.utf8 = charset.equals(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds the 249 lobby response.
+     * @param servers Servers of the lobby
+     * @return 249, the JSON array of the servers and a line break
+     */
+    public byte[] encode(Server[] servers) {
+        this.length = 0;
+        this.write(249);
+        this.writeServers(servers);
+        this.write(10);
+        return Arrays.copyOf(this.buffer, this.length);
+    }
+
+    /**
+     * Builds the 241 response for a page of the lobby.
+     * @param servers Servers of the page
+     * @param cursor Cursor of the next page (ASCII, empty after the last page)
+     * @return 241, the cursor, a line break, the JSON array of the servers and a line break
+     */
+    public byte[] encode(Server[] servers, String cursor) {
+        this.length = 0;
+        this.write(241);
+        this.write(cursor.getBytes(StandardCharsets.US_ASCII));
+        this.write(10);
+        this.writeServers(servers);
+        this.write(10);
+        return Arrays.copyOf(this.buffer, this.length);
+    }
+
+    /**
+     * Builds a message about one server (for the lobby subscriptions).
+     * @param code First byte of the message
+     * @param serverObj The server
+     * @return The code, the JSON object of the server and a line break
+     */
+    public byte[] encode(int code, Server serverObj) {
+        this.length = 0;
+        this.write(code);
+        this.writeServer(serverObj);
+        this.write(10);
+        return Arrays.copyOf(this.buffer, this.length);
+    }
+
+    private void writeServers(Server[] servers) {
+        this.write('[');
+        for (int i = 0; i < servers.length; i++) {
+            if (i > 0) {
+                this.write(',');
+            }
+            this.writeServer(servers[i]);
+        }
+        this.write(']');
+    }
+
+    private void writeServer(Server serverObj) {
+        this.write('{');
+        boolean first = true;
+        first = this.writeField(0, serverObj.getIp(), first);
+        for (int field = 1; field <= 8; field++) {
+            first = this.writeField(field, serverObj.getData(field), first);
+        }
+        if (!first) {
+            this.write(',');
+        }
+        this.write(NAMES[9]);
+        this.writeLong(serverObj.getCreatedTime());
+        this.write('}');
+    }
+
+    /**
+     * @return False, if the field was written (so the next one needs a comma)
+     */
+    private boolean writeField(int name, String value, boolean first) {
+        if (value == null) {
+            //Gson leaves out null fields.
+            return first;
+        }
+        if (!first) {
+            this.write(',');
+        }
+        this.write(NAMES[name]);
+        this.writeString(value);
+        return false;
+    }
+
+    private void writeString(String value) {
+        if (!this.utf8) {
+            //Rare case: Let the JDK do the encoding.
+            StringBuilder escaped = new StringBuilder(value.length() + 2);
+            escaped.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                String replacement = replacement(c);
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+            escaped.append('"');
+            this.write(escaped.toString().getBytes(this.charset));
+            return;
+        }
+        this.write('"');
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"': this.write('\\'); this.write('"'); break;
+                    case '\\': this.write('\\'); this.write('\\'); break;
+                    case '\t': this.write('\\'); this.write('t'); break;
+                    case '\b': this.write('\\'); this.write('b'); break;
+                    case '\n': this.write('\\'); this.write('n'); break;
+                    case '\r': this.write('\\'); this.write('r'); break;
+                    case '\f': this.write('\\'); this.write('f'); break;
+                    case '<': case '>': case '&': case '=': case '\'':
+                        this.writeUnicodeEscape(c);
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            this.writeUnicodeEscape(c);
+                        } else {
+                            this.write(c);
+                        }
+                }
+            } else if (c == '\u2028' || c == '\u2029') {
+                this.writeUnicodeEscape(c);
+            } else if (c < 0x800) {
+                this.write(0xc0 | (c >> 6));
+                this.write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                this.write(0xf0 | (cp >> 18));
+                this.write(0x80 | ((cp >> 12) & 0x3f));
+                this.write(0x80 | ((cp >> 6) & 0x3f));
+                this.write(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                //Unpaired surrogate, String.getBytes() replaces it.
+                this.write('?');
+            } else {
+                this.write(0xe0 | (c >> 12));
+                this.write(0x80 | ((c >> 6) & 0x3f));
+                this.write(0x80 | (c & 0x3f));
+            }
+        }
+        this.write('"');
+    }
+
+    /**
+     * @return How Gson escapes the char (or null)
+     */
+    private static String replacement(char c) {
+        switch (c) {
+            case '"': return "\\\"";
+            case '\\': return "\\\\";
+            case '\t': return "\\t";
+            case '\b': return "\\b";
+            case '\n': return "\\n";
+            case '\r': return "\\r";
+            case '\f': return "\\f";
+            case '<': case '>': case '&': case '=': case '\'': case '\u2028': case '\u2029':
+                return String.format("\\u%04x", (int) c);
+            default:
+                return c < 0x20 ? String.format("\\u%04x", (int) c) : null;
+        }
+    }
+
+    private void writeUnicodeEscape(char c) {
+        this.write('\\');
+        this.write('u');
+        this.write(HEX[(c >> 12) & 0xf]);
+        this.write(HEX[(c >> 8) & 0xf]);
+        this.write(HEX[(c >> 4) & 0xf]);
+        this.write(HEX[c & 0xf]);
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            this.write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (value < 0) {
+            this.write('-');
+            value = -value;
+        }
+        int start = this.length;
+        do {
+            this.write((int) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        //Digits were written backwards
+        for (int i = start, j = this.length - 1; i < j; i++, j--) {
+            byte tmp = this.buffer[i];
+            this.buffer[i] = this.buffer[j];
+            this.buffer[j] = tmp;
+        }
+    }
+
+    private void write(int b) {
+        if (this.length == this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+        }
+        this.buffer[this.length++] = (byte) b;
+    }
+
+    private void write(byte[] bytes) {
+        if (this.length + bytes.length > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + bytes.length));
+        }
+        System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+        this.length += bytes.length;
+    }
+
+    /**
+     * @return "name": as bytes
+     */
+    private static byte[] name(String name) {
+        return ("\"" + name + "\":").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pagination of the lobby. A client asks for a page by sending "LIMIT,CURSOR"
+ * as the limit line of lobby2/lobby3 ("20," is the first page of 20 servers).
+ * The response contains the cursor of the next page, which is empty after the
+ * last page. A limit below 1 is treated as 1. Requests with a plain number as
+ * limit line are not paginated and work like before.
+ *
+ * The first page sorts all matching servers once and keeps the result as a
+ * snapshot, the following pages are copied out of it. The snapshot never
+ * changes, so reg2 or destroyed servers don't move servers between the pages
+ * (no server is shown twice or skipped). Servers are ordered like in lobby2,
+ * equal servers by their IP.
+ *
+ * The cursor also contains the sort value and IP of the last server of the
+ * page. If the snapshot is gone (too old or too many clients are paging),
+ * the next page starts after this server in a new snapshot.
+ * @author Parakoopa
+ */
+public class LobbyPages {
+
+    /** A snapshot that is older is not used for the next page anymore (ms). */
+    private static final long MAX_AGE = 60000;
+    private static final Base64.Encoder CURSOR_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder CURSOR_DECODER = Base64.getUrlDecoder();
+
+    private final Registry registry;
+    private final AtomicLong ids = new AtomicLong();
+    /** Snapshots by id, in access order. Guarded by itself. */
+    private final LinkedHashMap<Long, Snapshot> snapshots;
+    /** Newest snapshot for a request (filters and order). Guarded by snapshots. */
+    private final HashMap<String, Snapshot> latest = new HashMap<>();
+
+    /**
+     * @param registry Registry that contains the servers.
+     * @param size Maximum number of snapshots.
+     */
+    public LobbyPages(Registry registry, final int size) {
+        this.registry = registry;
+        this.snapshots = new LinkedHashMap<Long, Snapshot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Snapshot> eldest) {
+                if (this.size() > size) {
+                    latest.remove(eldest.getValue().request, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param limit The limit line of a lobby request
+     * @return Whether or not the request asks for a page
+     */
+    public static boolean isPage(String limit) {
+        return limit.indexOf(',') >= 0;
+    }
+
+    /**
+     * Returns a page of the lobby.
+     * @param args The 11 filter lines of the lobby command, the limit line is "LIMIT,CURSOR".
+     * @return The servers of the page and the cursor of the next one
+     * @throws IllegalArgumentException If the cursor is invalid
+     */
+    public Page page(String[] args) {
+        String limitLine = args[10];
+        int comma = limitLine.indexOf(',');
+        //A page has at least one server. An empty page would have to end with an
+        //empty cursor (the client would think it's the last page) or repeat the cursor.
+        int limit = Math.max(1, Integer.valueOf(limitLine.substring(0, comma)));
+        String cursor = limitLine.substring(comma + 1);
+        String request = String.join("\n", Arrays.copyOf(args, 10));
+
+        Snapshot snapshot;
+        int offset = 0;
+        if (cursor.isEmpty()) {
+            snapshot = this.snapshot(request, args);
+        } else {
+            //id, offset, IP and sort value of the last server
+            String[] parts = new String(CURSOR_DECODER.decode(cursor), StandardCharsets.UTF_8).split("\n", 4);
+            int cursorOffset = parts.length == 4 ? Integer.valueOf(parts[1]) : -1;
+            if (cursorOffset < 0) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            Snapshot previous;
+            synchronized (this.snapshots) {
+                previous = this.snapshots.get(Long.valueOf(parts[0]));
+            }
+            if (previous != null && previous.request.equals(request)
+                    && System.currentTimeMillis() - previous.created < MAX_AGE) {
+                snapshot = previous;
+                offset = Math.min(cursorOffset, snapshot.entries.length);
+            } else {
+                snapshot = this.snapshot(request, args);
+                offset = snapshot.after(new Entry(null, parts[2], parts[3], args[8]));
+            }
+        }
+
+        int end = (int) Math.min((long) offset + limit, snapshot.entries.length);
+        Server[] servers = new Server[end - offset];
+        for (int i = offset; i < end; i++) {
+            servers[i - offset] = snapshot.entries[i].server;
+        }
+        String next = "";
+        if (end < snapshot.entries.length) {
+            Entry last = snapshot.entries[end - 1];
+            String value = last.date ? Long.toString(last.time) : last.text;
+            next = CURSOR_ENCODER.encodeToString((snapshot.id + "\n" + end + "\n" + last.ip + "\n" + value)
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        return new Page(servers, next);
+    }
+
+    /**
+     * @return Number of snapshots
+     */
+    public int getSnapshotCount() {
+        synchronized (this.snapshots) {
+            return this.snapshots.size();
+        }
+    }
+
+    /**
+     * Returns the newest snapshot of the request, or sorts the servers again if
+     * the registry changed since then.
+     */
+    private Snapshot snapshot(String request, String[] args) {
+        RegistrySnapshot servers = this.registry.getSnapshot();
+        long generation = servers.getGeneration();
+        synchronized (this.snapshots) {
+            Snapshot snapshot = this.latest.get(request);
+            if (snapshot != null && snapshot.generation == generation
+                    && System.currentTimeMillis() - snapshot.created < MAX_AGE) {
+                //Keep it in the LRU order
+                this.snapshots.get(snapshot.id);
+                return snapshot;
+            }
+        }
+        List<Server> matching = servers.findServers(args);
+        Entry[] entries = new Entry[matching.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry(matching.get(i), args[8]);
+        }
+        final int direction = "ASC".equals(args[9]) ? -1 : 1;
+        Arrays.sort(entries, (a, b) -> a.compareTo(b, direction));
+        Snapshot snapshot = new Snapshot(this.ids.incrementAndGet(), request, generation, entries, direction);
+        synchronized (this.snapshots) {
+            this.snapshots.put(snapshot.id, snapshot);
+            this.latest.put(request, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * A page of the lobby.
+     */
+    public static class Page {
+
+        private final Server[] servers;
+        private final String cursor;
+
+        public Page(Server[] servers, String cursor) {
+            this.servers = servers;
+            this.cursor = cursor;
+        }
+
+        /**
+         * @return The servers of the page
+         */
+        public Server[] getServers() {
+            return servers;
+        }
+
+        /**
+         * @return Cursor of the next page, empty after the last page
+         */
+        public String getCursor() {
+            return cursor;
+        }
+    }
+
+    /**
+     * The sorted servers of a request at one time.
+     */
+    private static class Snapshot {
+
+        private final long id;
+        private final String request;
+        private final long generation;
+        private final long created = System.currentTimeMillis();
+        private final Entry[] entries;
+        private final int direction;
+
+        private Snapshot(long id, String request, long generation, Entry[] entries, int direction) {
+            this.id = id;
+            this.request = request;
+            this.generation = generation;
+            this.entries = entries;
+            this.direction = direction;
+        }
+
+        /**
+         * @return Index of the first entry after the given one (binary search)
+         */
+        private int after(Entry entry) {
+            int low = 0;
+            int high = this.entries.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (this.entries[mid].compareTo(entry, this.direction) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * A server of a snapshot and its sort value.
+     */
+    private static class Entry {
+
+        private final Server server;
+        private final String ip;
+        private final boolean date;
+        private final long time;
+        private final String text;
+
+        private Entry(Server server, String sortby) {
+            this.server = server;
+            this.ip = server.getIp();
+            int field = field(sortby);
+            this.date = field == 0;
+            this.time = server.getCreatedTime();
+            this.text = this.date ? null : server.getData(field);
+        }
+
+        /**
+         * The last server of a page, from a cursor.
+         */
+        private Entry(Server server, String ip, String value, String sortby) {
+            this.server = server;
+            this.ip = ip;
+            this.date = field(sortby) == 0;
+            try {
+                this.time = this.date ? Long.parseLong(value) : 0;
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid cursor", ex);
+            }
+            this.text = this.date ? null : value;
+        }
+
+        /**
+         * Same order as Lobby.getComparator(), then by IP.
+         */
+        private int compareTo(Entry other, int direction) {
+            int rt = this.date ? Long.compare(this.time, other.time) : this.text.compareTo(other.text);
+            if (rt != 0) {
+                return rt * direction;
+            }
+            return this.ip.compareTo(other.ip);
+        }
+
+        /**
+         * @return 1-8 for "data1"-"data8", 0 for the date (default)
+         */
+        private static int field(String sortby) {
+            if (sortby.length() == 5 && sortby.startsWith("data") && sortby.charAt(4) >= '1' && sortby.charAt(4) <= '8') {
+                return sortby.charAt(4) - '0';
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Lobby subscriptions: Instead of asking for the lobby again and again with
+ * lobby2, a client sends "subscribe" with the 8 data filters once. It gets
+ * the matching servers (249, like lobby2 sorted by date) and after that a
+ * message whenever a matching server changes:
+ * 245 added, 244 changed, 243 removed, each followed by the JSON object of
+ * the server and a line break. Servers are identified by their ip.
+ * "unsubscribe" ends it, as does closing the connection.
+ *
+ * Gets the changes from the Registry. The thread that changed a server only
+ * notes it in the subscriptions it concerns; the messages are built and
+ * queued by the writer of each connection (Connection.execute()), with the
+ * data the server has by then. Every subscription remembers the servers it
+ * sent, so it knows if a change adds, changes or removes one.
+ * If the client doesn't read its messages, its connection is closed.
+ * @author Parakoopa
+ */
+public class LobbySubscriptions implements Consumer<Server> {
+
+    /** Message: A server matches the filters now. */
+    public static final int ADDED = 245;
+    /** Message: The data of a matching server changed. */
+    public static final int CHANGED = 244;
+    /** Message: A server doesn't match the filters anymore (or is gone). */
+    public static final int REMOVED = 243;
+
+    /** Writes the JSON of the servers. One per thread, it reuses its buffer. */
+    private static final ThreadLocal<LobbyEncoder> ENCODER = ThreadLocal.withInitial(LobbyEncoder::new);
+
+    private final Registry registry;
+    private final ConcurrentHashMap<Connection, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final LongAdder messages = new LongAdder();
+
+    /**
+     * @param registry Registry that contains the servers. Its change listener is set to this.
+     */
+    public LobbySubscriptions(Registry registry) {
+        this.registry = registry;
+        registry.setChangeListener(this);
+    }
+
+    /**
+     * Subscribes a connection (replaces an older subscription of it) and sends
+     * the matching servers.
+     * @param conn The connection. Its write queue must be enabled.
+     * @param filters The 8 data filters
+     * @throws IOException If the connection is broken.
+     */
+    public void subscribe(Connection conn, String[] filters) throws IOException {
+        Subscription subscription = new Subscription(conn, filters.clone());
+        //Changes from now on are noted and sent after the list.
+        this.subscriptions.put(conn, subscription);
+        if (conn.isClosed()) {
+            //It might have been cleaned up before it was added.
+            this.subscriptions.remove(conn, subscription);
+            throw new IOException("Socket is closed");
+        }
+        ArrayList<Server> servers = this.registry.findServers(filters);
+        Server[] arr = Lobby.sort(servers, Lobby.getComparator("date", "DESC"));
+        byte[] list = ENCODER.get().encode(arr);
+        synchronized (subscription) {
+            subscription.known.addAll(servers);
+            if (!conn.queue(list)) {
+                this.subscriptions.remove(conn, subscription);
+                throw new IOException("Write queue full");
+            }
+            subscription.listSent = true;
+        }
+        subscription.schedule();
+    }
+
+    /**
+     * Ends the subscription of a connection (if it has one).
+     * @param conn The connection
+     */
+    public void unsubscribe(Connection conn) {
+        this.subscriptions.remove(conn);
+    }
+
+    /**
+     * A server changed or was removed: Notes it in the subscriptions it
+     * concerns. Called by the thread that changed it.
+     * @param serverObj The server
+     */
+    @Override
+    public void accept(Server serverObj) {
+        for (Subscription subscription : this.subscriptions.values()) {
+            subscription.changed(serverObj);
+        }
+    }
+
+    /**
+     * @return Number of subscriptions
+     */
+    public int getCount() {
+        return this.subscriptions.size();
+    }
+
+    /**
+     * @return Number of sent messages (added, changed, removed)
+     */
+    public long getMessages() {
+        return this.messages.sum();
+    }
+
+    /**
+     * The filters of a connection, the servers it knows about and the
+     * changed servers it wasn't told about yet.
+     */
+    private class Subscription implements Runnable {
+        private final Connection conn;
+        private final String[] filters;
+        /** Servers that were sent and not removed yet. Guarded by this. */
+        private final Set<Server> known = new HashSet<>();
+        /** Changed servers, in order. Guarded by this. */
+        private LinkedHashSet<Server> pending = new LinkedHashSet<>();
+        /** True once the list of the matching servers is queued. Guarded by this. */
+        private boolean listSent = false;
+        /** True while the writer has to send the pending changes. Guarded by this. */
+        private boolean scheduled = false;
+
+        Subscription(Connection conn, String[] filters) {
+            this.conn = conn;
+            this.filters = filters;
+        }
+
+        /**
+         * Notes the change, if this subscription needs a message about it.
+         * Until the list is sent every change is noted: The list might have
+         * the server even if it was removed since then. run() decides once
+         * known is filled.
+         */
+        void changed(Server serverObj) {
+            synchronized (this) {
+                if (this.listSent && !this.pending.contains(serverObj) && !this.known.contains(serverObj)
+                        && (serverObj.isRemoved() || !Registry.matches(serverObj, this.filters))) {
+                    return;
+                }
+                this.pending.add(serverObj);
+            }
+            this.schedule();
+        }
+
+        /**
+         * Lets the writer of the connection send the pending changes, unless
+         * it already will or the list isn't sent yet.
+         */
+        void schedule() {
+            synchronized (this) {
+                if (this.scheduled || !this.listSent || this.pending.isEmpty()) {
+                    return;
+                }
+                this.scheduled = true;
+            }
+            if (!this.conn.execute(this)) {
+                //Closed, destroy ends the subscription.
+                synchronized (this) {
+                    this.scheduled = false;
+                }
+            }
+        }
+
+        /**
+         * Sends the messages about the pending changes. Runs on the writer of
+         * the connection.
+         */
+        @Override
+        public void run() {
+            Set<Server> changed;
+            int[] types;
+            synchronized (this) {
+                this.scheduled = false;
+                changed = this.pending;
+                this.pending = new LinkedHashSet<>();
+                types = new int[changed.size()];
+                int i = 0;
+                for (Server serverObj : changed) {
+                    if (!serverObj.isRemoved() && Registry.matches(serverObj, this.filters)) {
+                        types[i++] = this.known.add(serverObj) ? ADDED : CHANGED;
+                    } else {
+                        types[i++] = this.known.remove(serverObj) ? REMOVED : 0;
+                    }
+                }
+            }
+            if (subscriptions.get(this.conn) != this) {
+                //Unsubscribed (or replaced) in the meantime.
+                return;
+            }
+            int i = 0;
+            for (Server serverObj : changed) {
+                int message = types[i++];
+                if (message == 0) {
+                    continue;
+                }
+                messages.increment();
+                if (!this.conn.queue(ENCODER.get().encode(message, serverObj))) {
+                    //The client doesn't read its messages, it would miss some.
+                    subscriptions.remove(this.conn, this);
+                    if (Mediator.isLogged(true)) {
+                        Mediator.log(this.conn.getDebugString()+" Subscription ended (too many waiting messages)",true);
+                    }
+                    this.conn.disconnect();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -21,19 +21,12 @@
  */
 package org.parakoopa.gmnetgate.punch;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.DateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.cli.BasicParser;
@@ -60,6 +53,24 @@ public class Mediator {
      */
     private static int port = 6510;
 
+    /**
+     * --tcp-mode How TCP connections are handled. "thread" (one thread per
+     * connection), "virtual" (one virtual thread per connection, Java 21+)
+     * or "nio" (selector based event loops).
+     */
+    private static String tcpMode = "thread";
+
+    /**
+     * --tcp-threads Number of event loops in the "nio" TCP mode.
+     */
+    private static int tcpThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * --udp-workers Number of threads (and with SO_REUSEPORT sockets) that
+     * recieve UDP packets.
+     */
+    private static int udpWorkers = 1;
+
     /**
      * --version (read only) Version of this master server
      */
@@ -90,6 +101,81 @@ public class Mediator {
      */
     private static boolean lobby = true;
 
+    /**
+     * --lobby-cache Number of lobby responses that are cached.
+     */
+    private static int lobbyCacheSize = 1024;
+
+    /**
+     * --lobby-columns Filter and sort the lobby in columns instead of server objects.
+     */
+    private static boolean lobbyColumns = false;
+
+    /**
+     * --lobby-snapshots Number of sorted lobbies kept for paginated requests.
+     */
+    private static int lobbySnapshots = 16;
+
+    /**
+     * --string-pool Maximum number of data strings that are shared between servers.
+     */
+    private static int stringPoolSize = StringPool.DEFAULT_SIZE;
+
+    /**
+     * --snapshot-interval Minimum milliseconds between two snapshots of the servers.
+     */
+    private static int snapshotInterval = 10;
+
+    /**
+     * --server-ttl Seconds a server created by UDP may stay without
+     * registering via TCP (0 = forever).
+     */
+    private static int serverTtl = 60;
+
+    /**
+     * --client-ttl Seconds a client created by UDP may stay without
+     * connecting via TCP (0 = forever).
+     */
+    private static int clientTtl = 60;
+
+    /**
+     * --write-queue Number of messages that may wait to be sent to a game
+     * server.
+     */
+    private static int writeQueueSize = 64;
+
+    /**
+     * --write-timeout Seconds a peer may take to read what is sent to it.
+     */
+    private static int writeTimeout = 10;
+
+    /**
+     * --heartbeat Seconds between the heartbeats of idle game server
+     * connections (0 = disabled).
+     */
+    private static int heartbeat = 15;
+
+    /**
+     * --heartbeat-misses Number of unanswered heartbeats until a game server
+     * is removed.
+     */
+    private static int heartbeatMisses = 3;
+
+    /**
+     * --udp-limit UDP packets per second and IP ("RATE" or "RATE:BURST", 0 = unlimited).
+     */
+    private static String udpLimit = "0";
+
+    /**
+     * --tcp-limit TCP connections per second and IP ("RATE" or "RATE:BURST", 0 = unlimited).
+     */
+    private static String tcpLimit = "0";
+
+    /**
+     * --metrics-port Port of the metrics endpoint (0 = disabled).
+     */
+    private static int metricsPort = 0;
+
     /**
      * --testing Enable or disable debugging with HTMT.
      */
@@ -106,26 +192,39 @@ public class Mediator {
     private static boolean dbg_servers = false;
 
     /**
-     * Object that represents a server. Contains TCP socket, port, and the 5
-     * data-strings
+     * All known servers and clients.
      */
-    private HashMap<String, Server> serverMap;
+    private Registry registry;
     /**
-     * Object that represents a client Contains only port right now.
+     * Runs the timeouts (expiry of the registry).
      */
-    private HashMap<String, Client> clientMap;
+    private TimerWheel timer;
+    /**
+     * Creates the threads of the TCPConnections and their writers (not used
+     * with --tcp-mode nio).
+     */
+    private ThreadFactory connectionThreads;
+    /**
+     * Rate limits of UDP packets and TCP connections.
+     */
+    private AdmissionControl udpAdmission;
+    private AdmissionControl tcpAdmission;
+    /**
+     * Counters and latencies.
+     */
+    private Metrics metrics;
     /**
      * TCP Server.
      */
     private ServerSocket server;
     /**
-     * UDP Server.
+     * Executes the TCP commands for all connections.
      */
-    private DatagramSocket server_udp;
+    private TCPCommandHandler commandHandler;
     /**
-     * Recieving buffer for UDP.
+     * UDP Server.
      */
-    byte[] receiveData = new byte[1024];
+    private UDPListener server_udp;
 
     /**
      * Command-line main-method. Currently no command line paramters are
@@ -147,10 +246,106 @@ public class Mediator {
                 .hasArg()
                 .withArgName("PORT")
                 .create("p"));
+        options.addOption(OptionBuilder.withLongOpt("tcp-mode")
+                .withDescription("How TCP connections are handled: 'thread' (one thread per connection),"
+                        + " 'virtual' (one virtual thread per connection, needs Java 21)"
+                        + " or 'nio' (a few selector based event loops). Default: " + Mediator.tcpMode)
+                .hasArg()
+                .withArgName("MODE")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("tcp-threads")
+                .withDescription("Number of event loops in the 'nio' TCP mode. Default: number of processors")
+                .hasArg()
+                .withArgName("THREADS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("udp-workers")
+                .withDescription("Number of threads that recieve UDP packets. Default: " + Mediator.udpWorkers)
+                .hasArg()
+                .withArgName("THREADS")
+                .create());
         options.addOption("h", "help", false, "Print this help text.");
         options.addOption(OptionBuilder.withLongOpt("disable-lobby")
                 .withDescription("Ignore all requests of listing the connected servers.")
                 .create());
+        options.addOption(OptionBuilder.withLongOpt("lobby-cache")
+                .withDescription("Number of lobby responses that are cached (0 disables the cache). Default: " + Mediator.lobbyCacheSize)
+                .hasArg()
+                .withArgName("SIZE")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("lobby-columns")
+                .withDescription("Filter and sort the lobby in a copy of the servers that stores the data strings as"
+                        + " dictionary codes in arrays, instead of the server objects.")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("lobby-snapshots")
+                .withDescription("Number of sorted lobbies that are kept for clients that request the lobby page by page. Default: " + Mediator.lobbySnapshots)
+                .hasArg()
+                .withArgName("SIZE")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("snapshot-interval")
+                .withDescription("Minimum milliseconds between two snapshots of the servers for the lobby. Changes within"
+                        + " this time are collected into one snapshot (0 makes a snapshot after every change). Default: " + Mediator.snapshotInterval)
+                .hasArg()
+                .withArgName("MS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("string-pool")
+                .withDescription("Maximum number of distinct data strings that servers share instead of keeping"
+                        + " their own copy (0 disables it). Default: " + Mediator.stringPoolSize)
+                .hasArg()
+                .withArgName("SIZE")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("server-ttl")
+                .withDescription("Seconds a server that registered via UDP may stay without registering via TCP"
+                        + " (0 keeps it forever). Default: " + Mediator.serverTtl)
+                .hasArg()
+                .withArgName("SECONDS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("client-ttl")
+                .withDescription("Seconds a client that registered via UDP may stay without connecting via TCP"
+                        + " (0 keeps it forever). Default: " + Mediator.clientTtl)
+                .hasArg()
+                .withArgName("SECONDS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("write-queue")
+                .withDescription("Number of messages that may wait to be sent to a game server. If the queue is full,"
+                        + " clients can't connect to it. Default: " + Mediator.writeQueueSize)
+                .hasArg()
+                .withArgName("SIZE")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("write-timeout")
+                .withDescription("Seconds a peer may take to read what is sent to it before its connection is closed."
+                        + " Default: " + Mediator.writeTimeout)
+                .hasArg()
+                .withArgName("SECONDS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("heartbeat")
+                .withDescription("Seconds between the heartbeats (TCP keepalive) of idle game server connections"
+                        + " (0 disables them). Default: " + Mediator.heartbeat)
+                .hasArg()
+                .withArgName("SECONDS")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("heartbeat-misses")
+                .withDescription("Number of unanswered heartbeats until a game server is removed. Default: " + Mediator.heartbeatMisses)
+                .hasArg()
+                .withArgName("COUNT")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("udp-limit")
+                .withDescription("UDP packets per second one IP may send, optionally with the number it may send at once"
+                        + " (RATE or RATE:BURST). Packets over the limit are dropped. Default: unlimited")
+                .hasArg()
+                .withArgName("LIMIT")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("tcp-limit")
+                .withDescription("TCP connections per second one IP may open (RATE or RATE:BURST)."
+                        + " Connections over the limit are closed right away. Default: unlimited")
+                .hasArg()
+                .withArgName("LIMIT")
+                .create());
+        options.addOption(OptionBuilder.withLongOpt("metrics-port")
+                .withDescription("Serve metrics in the Prometheus text format on this port"
+                        + " (http://127.0.0.1:PORT/metrics, only reachable locally). Default: disabled")
+                .hasArg()
+                .withArgName("PORT")
+                .create());
         options.addOption(OptionBuilder.withLongOpt("version")
                 .withDescription("Print version information and exit.")
                 .create());
@@ -201,9 +396,63 @@ public class Mediator {
             if (line.hasOption("port")) {
                 Mediator.port = Integer.valueOf(line.getOptionValue("port"));
             }
+            if (line.hasOption("tcp-mode")) {
+                Mediator.tcpMode = line.getOptionValue("tcp-mode");
+                if (!"thread".equals(tcpMode) && !"virtual".equals(tcpMode) && !"nio".equals(tcpMode)) {
+                    Mediator.exitWithError("Unknown --tcp-mode '" + tcpMode + "'. Use 'thread', 'virtual' or 'nio'.");
+                }
+            }
+            if (line.hasOption("tcp-threads")) {
+                Mediator.tcpThreads = Mediator.getThreadCount(line, "tcp-threads");
+            }
+            if (line.hasOption("udp-workers")) {
+                Mediator.udpWorkers = Mediator.getThreadCount(line, "udp-workers");
+            }
             if (line.hasOption("disable-lobby")) {
                 Mediator.lobby = false;
             }
+            if (line.hasOption("lobby-cache")) {
+                Mediator.lobbyCacheSize = Mediator.getNumber(line, "lobby-cache", 0);
+            }
+            if (line.hasOption("lobby-columns")) {
+                Mediator.lobbyColumns = true;
+            }
+            if (line.hasOption("lobby-snapshots")) {
+                Mediator.lobbySnapshots = Mediator.getNumber(line, "lobby-snapshots", 1);
+            }
+            if (line.hasOption("write-queue")) {
+                Mediator.writeQueueSize = Mediator.getNumber(line, "write-queue", 1);
+            }
+            if (line.hasOption("write-timeout")) {
+                Mediator.writeTimeout = Mediator.getNumber(line, "write-timeout", 1);
+            }
+            if (line.hasOption("heartbeat")) {
+                Mediator.heartbeat = Integer.valueOf(line.getOptionValue("heartbeat"));
+            }
+            if (line.hasOption("heartbeat-misses")) {
+                Mediator.heartbeatMisses = Mediator.getNumber(line, "heartbeat-misses", 1);
+            }
+            if (line.hasOption("udp-limit")) {
+                Mediator.udpLimit = Mediator.getLimit(line, "udp-limit");
+            }
+            if (line.hasOption("tcp-limit")) {
+                Mediator.tcpLimit = Mediator.getLimit(line, "tcp-limit");
+            }
+            if (line.hasOption("metrics-port")) {
+                Mediator.metricsPort = Integer.valueOf(line.getOptionValue("metrics-port"));
+            }
+            if (line.hasOption("snapshot-interval")) {
+                Mediator.snapshotInterval = Mediator.getNumber(line, "snapshot-interval", 0);
+            }
+            if (line.hasOption("string-pool")) {
+                Mediator.stringPoolSize = Mediator.getNumber(line, "string-pool", 0);
+            }
+            if (line.hasOption("server-ttl")) {
+                Mediator.serverTtl = Integer.valueOf(line.getOptionValue("server-ttl"));
+            }
+            if (line.hasOption("client-ttl")) {
+                Mediator.clientTtl = Integer.valueOf(line.getOptionValue("client-ttl"));
+            }
         } catch (ParseException ex) {
             Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -212,75 +461,131 @@ public class Mediator {
         new Mediator();
     }
 
+    /**
+     * Reads an option with a number of threads.
+     * @param line The parsed command line
+     * @param option Name of the option
+     * @return The number, at least 1
+     */
+    private static int getThreadCount(CommandLine line, String option) {
+        return Mediator.getNumber(line, option, 1);
+    }
+
+    /**
+     * Reads an option with a number. Exits if it isn't a number or is too small.
+     * @param line The parsed command line
+     * @param option Name of the option
+     * @param min Smallest allowed value
+     * @return The number, at least min
+     */
+    private static int getNumber(CommandLine line, String option, int min) {
+        String value = line.getOptionValue(option);
+        int number = min;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            Mediator.exitWithError("--" + option + " must be a number, got '" + value + "'.");
+        }
+        if (number < min) {
+            Mediator.exitWithError("--" + option + " must be at least " + min + ", got " + number + ".");
+        }
+        return number;
+    }
+
+    /**
+     * Reads an option with a rate limit (see AdmissionControl.parse). Exits if it's invalid.
+     * @param line The parsed command line
+     * @param option Name of the option
+     * @return The limit
+     */
+    private static String getLimit(CommandLine line, String option) {
+        String value = line.getOptionValue(option);
+        try {
+            AdmissionControl.parse(value);
+        } catch (IllegalArgumentException ex) {
+            Mediator.exitWithError("--" + option + " must be RATE or RATE:BURST (RATE at least 0, BURST at least 1), got '" + value + "'.");
+        }
+        return value;
+    }
+
+    /**
+     * Prints the error of an invalid option and exits.
+     * @param message The error
+     */
+    private static void exitWithError(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+
     public Mediator() {
         try {
             //Set up some local variables
-            server = new ServerSocket(port);
-            server_udp = new DatagramSocket(port);
-            serverMap = new HashMap();
-            clientMap = new HashMap();
+            metrics = new Metrics();
+            udpAdmission = AdmissionControl.parse(udpLimit);
+            tcpAdmission = AdmissionControl.parse(tcpLimit);
+            server_udp = new UDPListener(this, port, udpWorkers);
+            timer = new TimerWheel("Timer", 1000, 512);
+            registry = new Registry(timer, serverTtl * 1000L, clientTtl * 1000L, snapshotInterval, stringPoolSize);
+            commandHandler = new TCPCommandHandler(this);
             final Mediator me = this;
 
             Mediator.log("GMnet GATE.PUNCH STARTED", false);
             Mediator.log("Starting UDP and TCP servers on port " + port, false);
 
             //Start two new threads for the servers, just to be on the safe side.
-            new Thread() {
-                @Override
-                //START UDP SERVER
-                public void run() {
-                    Mediator.log("Loaded UDP Listener", true);
-                    //When packet is processed: Continue with next packet
-                    while (true) {
-                        try {
-                            //Create incoming packet and wait for it.
-                            DatagramPacket packet = new DatagramPacket(receiveData, receiveData.length);
-                            server_udp.receive(packet);
-                            //When a packet arrivied: Deal with it. 
-                            UDPPacket packetHandler = new UDPPacket(me, packet, server_udp);
-                            //This was once also a seperate thread, that's why the method is called run.
-                            //annother thread is not needed though.
-                            //it is propably even more efficient to just swap the packet out instead of
-                            //creating a new class above. Do what you want :)
-                            packetHandler.run();
-                        } catch (IOException ex) {
-                            //Print all exceptions.
-                            ex.printStackTrace();
-                        }
-                    }
-                }
-            }.start();
-            new Thread() {
-                @Override
-                //START TCP SERVER
-                public void run() {
-                    Mediator.log("Loaded TCP Listener", true);
-                    //When connection thread is created: Wait for next connection
-                    while (true) {
-                        try {
-                            //Wait for connection
-                            Socket client = server.accept();
-                            //When connection is opened: Start thread that handles it.
-                            TCPConnection connectionHandler = new TCPConnection(me, client, server);
-                            new Thread(connectionHandler).start();
-                        } catch (IOException ex) {
-                            //Print all exceptions.
-                            ex.printStackTrace();
+            //START UDP SERVER
+            server_udp.start();
+            timer.start();
+            metrics.start(timer, server_udp);
+            if (heartbeat > 0 && !Heartbeat.isSupported()) {
+                Mediator.log("Heartbeat intervals need Java 11 or newer. Using the keepalive intervals of the system.", false);
+            }
+            if (metricsPort > 0) {
+                new MetricsServer(this, metricsPort).start();
+            }
+            if ("nio".equals(tcpMode)) {
+                //START TCP SERVER (selector based)
+                new NIOListener(this, port, tcpThreads).start();
+            } else {
+                server = new ServerSocket(port);
+                connectionThreads = createConnectionThreadFactory();
+                new Thread() {
+                    @Override
+                    //START TCP SERVER
+                    public void run() {
+                        Mediator.log("Loaded TCP Listener", true);
+                        //When connection thread is created: Wait for next connection
+                        while (true) {
+                            try {
+                                //Wait for connection
+                                Socket client = server.accept();
+                                if (!tcpAdmission.admit(client.getInetAddress())) {
+                                    //Too many connections of this IP
+                                    client.close();
+                                    continue;
+                                }
+                                //When connection is opened: Start thread that handles it.
+                                TCPConnection connectionHandler = new TCPConnection(me, client, server);
+                                connectionThreads.newThread(connectionHandler).start();
+                            } catch (IOException ex) {
+                                //Print all exceptions.
+                                ex.printStackTrace();
+                            }
                         }
                     }
-                }
-            }.start();
+                }.start();
+            }
             if (Mediator.dbg_servers) {
                 for (int i = 0; i<50; i++) {
                     Server serverObj = this.getServer(UUID.randomUUID().toString());
-                    serverObj.setData1(UUID.randomUUID().toString());
-                    serverObj.setData2(UUID.randomUUID().toString());
-                    serverObj.setData3(UUID.randomUUID().toString());
-                    serverObj.setData4(UUID.randomUUID().toString());
-                    serverObj.setData5(UUID.randomUUID().toString());
-                    serverObj.setData6(UUID.randomUUID().toString());
-                    serverObj.setData7(UUID.randomUUID().toString());
-                    serverObj.setData8(UUID.randomUUID().toString());
+                    registry.setData(serverObj, 1, UUID.randomUUID().toString());
+                    registry.setData(serverObj, 2, UUID.randomUUID().toString());
+                    registry.setData(serverObj, 3, UUID.randomUUID().toString());
+                    registry.setData(serverObj, 4, UUID.randomUUID().toString());
+                    registry.setData(serverObj, 5, UUID.randomUUID().toString());
+                    registry.setData(serverObj, 6, UUID.randomUUID().toString());
+                    registry.setData(serverObj, 7, UUID.randomUUID().toString());
+                    registry.setData(serverObj, 8, UUID.randomUUID().toString());
                 }
             }
         } catch (IOException ex) {
@@ -290,22 +595,34 @@ public class Mediator {
     }
 
     /**
-     * Returns server HashMap. Each server object contains TCP socket, port, and
-     * the 5 data-strings
+     * Creates the factory for the threads of the TCPConnections.
+     * For --tcp-mode virtual these are virtual threads. They are looked up
+     * by reflection, so this still runs on Java versions without them, in
+     * that case normal threads are used.
      *
-     * @return HashMap containing the server objects
+     * @return Factory for connection threads
      */
-    public HashMap<String, Server> getServerMap() {
-        return serverMap;
+    private static ThreadFactory createConnectionThreadFactory() {
+        if ("virtual".equals(tcpMode)) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                Mediator.log("Using virtual threads for TCP connections", true);
+                return (ThreadFactory) factory.invoke(builder);
+            } catch (ReflectiveOperationException ex) {
+                Mediator.log("Virtual threads need Java 21 or newer. Using normal threads for TCP connections.", false);
+            }
+        }
+        return Thread::new;
     }
 
     /**
-     * Returns client HashMap. Each client object contains port
+     * Returns the registry that contains all server and client objects.
      *
-     * @return HashMap containing the client objects
+     * @return The registry
      */
-    public HashMap<String, Client> getClientMap() {
-        return clientMap;
+    public Registry getRegistry() {
+        return registry;
     }
 
     /**
@@ -313,17 +630,10 @@ public class Mediator {
      * exist).
      *
      * @param ip IP of the server
+     * @return server object with that ip
      */
-    
     public Server getServer(String ip) {
-        Server serverObj;
-        if (serverMap.containsKey(ip)) {
-            serverObj = serverMap.get(ip);
-        } else {
-            serverObj = new Server(ip);
-            serverMap.put(ip, serverObj);
-        }
-        return serverObj;
+        return registry.getServer(ip);
     }
 
     /**
@@ -334,47 +644,128 @@ public class Mediator {
      * @return client object with that ip
      */
     public Client getClient(String ip) {
-        Client clientObj;
-        if (clientMap.containsKey(ip)) {
-            clientObj = clientMap.get(ip);
-        } else {
-            clientObj = new Client();
-            clientMap.put(ip, clientObj);
-        }
-        return clientObj;
+        return registry.getClient(ip);
     }
 
     /**
      * Remove this IP from the server list.
      *
-     * @param hostAddress
+     * @param ip IP of the server
      */
     void destroyServer(String ip) {
-        serverMap.remove(ip);
+        registry.destroyServer(ip);
+    }
+
+    /**
+     * Remove the server of the connection from the server list, if it still
+     * belongs to the connection.
+     *
+     * @param connection Connection that registered the server
+     * @return True if the server was removed
+     */
+    boolean destroyServer(Connection connection) {
+        return registry.destroyServer(connection);
     }
 
     /**
      * Remove this IP from the client list.
      *
-     * @param hostAddress
+     * @param ip IP of the client
      */
     void destroyClient(String ip) {
-        clientMap.remove(ip);
+        registry.destroyClient(ip);
+    }
+
+    /**
+     * @return Rate limit of the UDP packets
+     */
+    public AdmissionControl getUdpAdmission() {
+        return udpAdmission;
+    }
+
+    /**
+     * @return Rate limit of the TCP connections
+     */
+    public AdmissionControl getTcpAdmission() {
+        return tcpAdmission;
+    }
+
+    /**
+     * @return The timer for timeouts
+     */
+    public TimerWheel getTimer() {
+        return timer;
+    }
+
+    /**
+     * @return Factory for the threads of the TCPConnections
+     */
+    public ThreadFactory getConnectionThreads() {
+        return connectionThreads;
     }
 
     /**
-     * Recieving buffer for UDP.
+     * @return The counters and latencies of this server
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The UDP server
+     */
+    public UDPListener getUdpListener() {
+        return server_udp;
+    }
+
+    /**
+     * Returns the handler that executes the TCP commands.
      *
-     * @return A buffer.
+     * @return The command handler
      */
-    public byte[] getReceiveData() {
-        return receiveData;
+    public TCPCommandHandler getCommandHandler() {
+        return commandHandler;
     }
 
     public static boolean isLobby() {
         return lobby;
     }
 
+    public static int getLobbyCacheSize() {
+        return lobbyCacheSize;
+    }
+
+    public static int getStringPoolSize() {
+        return stringPoolSize;
+    }
+
+    public static boolean isLobbyColumns() {
+        return lobbyColumns;
+    }
+
+    public static int getLobbySnapshots() {
+        return lobbySnapshots;
+    }
+
+    public static int getWriteQueueSize() {
+        return writeQueueSize;
+    }
+
+    /**
+     * @return Time (ms) a peer may take to read what is sent to it
+     */
+    public static long getWriteTimeout() {
+        return writeTimeout * 1000L;
+    }
+
+    public static int getHeartbeat() {
+        return heartbeat;
+    }
+
+    public static int getHeartbeatMisses() {
+        return heartbeatMisses;
+    }
+
     public static boolean isTesting() {
         return testing;
     }
@@ -391,33 +782,54 @@ public class Mediator {
         return udphpMin;
     }
 
+    /**
+     * Whether or not a log line would be written anywhere. Use this to skip
+     * building log strings that would be thrown away.
+     *
+     * @param verbose boolean Is this a line that is only logged with --verbose?
+     * @return True if log() would output the line.
+     */
+    public static boolean isLogged(boolean verbose) {
+        if (verbose && !Mediator.verbose) {
+            return false;
+        }
+        return !Mediator.quiet || Mediator.log != null;
+    }
+
     /**
      * Logs to the console (if quiet was not set) and to the logfile if
-     * specified The logfile will also get timestamps for each event.
+     * specified. Each line gets a timestamp.
+     * The line is only queued, it is written in the background by AsyncLog.
      *
      * @param str String to log
      * @param verbose boolean Should this be logged only with --verbose?
      */
     public static void log(String str, boolean verbose) {
         //Don't print verbose lines if not requested
-        if (verbose && !Mediator.verbose) {
+        if (!isLogged(verbose)) {
             return;
         }
-        DateFormat date = DateFormat.getDateTimeInstance(
-                DateFormat.SHORT,
-                DateFormat.SHORT,
-                Locale.getDefault());
-        /* CONSOLE OUTPUT */
-        if (!Mediator.quiet) {
-            System.out.println(date.format(new Date()) + " : " + str);
-        }
-        /* FILE LOG */
-        if (Mediator.log != null) {
-            try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(Mediator.log, true)))) {
-                out.println(date.format(new Date()) + " : " + str);
-            } catch (IOException ex) {
-                Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE, null, ex);
-            }
+        LogHolder.LOG.offer(str);
+    }
+
+    /**
+     * Returns the log writer. Created when the first line is logged, after
+     * the command line was parsed.
+     *
+     * @return The log writer
+     */
+    public static AsyncLog getLog() {
+        return LogHolder.LOG;
+    }
+
+    /**
+     * Starts the log writer on first use.
+     */
+    private static class LogHolder {
+        private static final AsyncLog LOG = new AsyncLog(Mediator.quiet ? null : System.out, Mediator.log);
+
+        static {
+            LOG.start();
         }
     }
 
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of the master server.
+ * Everything is recorded with striped counters (LongAdder), so the network
+ * threads never wait for each other. The values are written in the
+ * Prometheus text format by the MetricsServer.
+ * @author Parakoopa
+ */
+public class Metrics {
+
+    /** Names of the UDP commands, index: UDPPacket result + 2. */
+    private static final String[] UDP_COMMANDS = {"no_command", "too_short", "unknown", "reg", "connect"};
+    /** Names of the TCP commands. The last one counts all unknown commands. */
+    private static final String[] TCP_COMMANDS = {"reg2", "connect", "lobby2", "lobby3", "subscribe", "unsubscribe", "istesting", "testinginfos", "version", "unknown"};
+    /** Results of the connect command. */
+    private static final String[] CONNECT_RESULTS = {"connected", "server_not_found", "server_unreachable"};
+
+    /** Result of connect: Ports were sent (255). */
+    public static final int CONNECTED = 0;
+    /** Result of connect: No such server (254). */
+    public static final int SERVER_NOT_FOUND = 1;
+    /** Result of connect: Server has no open connection (254). */
+    public static final int SERVER_UNREACHABLE = 2;
+
+    /** Reasons why data for a peer was not written. */
+    private static final String[] WRITE_FAILURES = {"queue_full", "timeout"};
+
+    /** Write failure: The write queue of the connection was full. */
+    public static final int QUEUE_FULL = 0;
+    /** Write failure: The peer didn't read in time, the connection was closed. */
+    public static final int WRITE_TIMEOUT = 1;
+
+    /** Quantiles of the latency summaries. */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LongAdder[] udpCommands = newCounters(UDP_COMMANDS.length);
+    private final LongAdder[] tcpCommands = newCounters(TCP_COMMANDS.length);
+    private final LongAdder[] connectResults = newCounters(CONNECT_RESULTS.length);
+    private final LongAdder[] writeFailures = newCounters(WRITE_FAILURES.length);
+    private final LongAdder openConnections = new LongAdder();
+    private final LatencyHistogram lobbyBuild = new LatencyHistogram();
+    private final LatencyHistogram connectRelay = new LatencyHistogram();
+
+    /** UDP packets per second, updated every second by the timer. */
+    private volatile double udpRate = 0;
+
+    private static LongAdder[] newCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * Counts a UDP packet.
+     * @param command Result of UDPPacket.parseCommand()
+     */
+    public void countUdp(int command) {
+        this.udpCommands[command + 2].increment();
+    }
+
+    /**
+     * Counts a TCP command.
+     * @param command The command
+     */
+    public void countTcp(String command) {
+        int index;
+        switch (command) {
+            case "reg2": index = 0; break;
+            case "connect": index = 1; break;
+            case "lobby2": index = 2; break;
+            case "lobby3": index = 3; break;
+            case "subscribe": index = 4; break;
+            case "unsubscribe": index = 5; break;
+            case "istesting": index = 6; break;
+            case "testinginfos": index = 7; break;
+            case "version": index = 8; break;
+            default: index = 9;
+        }
+        this.tcpCommands[index].increment();
+    }
+
+    /**
+     * Counts the result of a connect command.
+     * @param result CONNECTED, SERVER_NOT_FOUND or SERVER_UNREACHABLE
+     */
+    public void countConnect(int result) {
+        this.connectResults[result].increment();
+    }
+
+    /**
+     * Counts data for a peer that was not written.
+     * @param reason QUEUE_FULL or WRITE_TIMEOUT
+     */
+    public void countWriteFailure(int reason) {
+        this.writeFailures[reason].increment();
+    }
+
+    public void connectionOpened() {
+        this.openConnections.increment();
+    }
+
+    public void connectionClosed() {
+        this.openConnections.decrement();
+    }
+
+    /**
+     * @return Time to build a lobby response that wasn't cached
+     */
+    public LatencyHistogram getLobbyBuild() {
+        return this.lobbyBuild;
+    }
+
+    /**
+     * @return Time from a client's connect command until the ports were queued for both
+     */
+    public LatencyHistogram getConnectRelay() {
+        return this.connectRelay;
+    }
+
+    /**
+     * Measures the UDP packets per second every second.
+     * @param timer The timer
+     * @param udp The UDP listener
+     */
+    public void start(final TimerWheel timer, final UDPListener udp) {
+        timer.schedule(new TimerWheel.Timeout() {
+            private long lastPackets = udp.getPackets();
+            private long lastTime = System.nanoTime();
+
+            @Override
+            protected void expire(long now) {
+                long packets = udp.getPackets();
+                long time = System.nanoTime();
+                udpRate = (packets - this.lastPackets) * 1e9 / Math.max(1, time - this.lastTime);
+                this.lastPackets = packets;
+                this.lastTime = time;
+                timer.schedule(this, now + 1000);
+            }
+        }, System.currentTimeMillis() + 1000);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     * @param main Mediator class instance for the gauges
+     * @return The text
+     */
+    public String write(Mediator main) {
+        StringBuilder out = new StringBuilder(4096);
+        Registry registry = main.getRegistry();
+        LobbyCache cache = main.getCommandHandler().getLobby().getCache();
+        UDPListener udp = main.getUdpListener();
+
+        header(out, "gmnet_udp_packets_total", "counter", "UDP packets by command.");
+        for (int i = 0; i < UDP_COMMANDS.length; i++) {
+            value(out, "gmnet_udp_packets_total{command=\"" + UDP_COMMANDS[i] + "\"}", this.udpCommands[i].sum());
+        }
+        header(out, "gmnet_udp_packets_per_second", "gauge", "UDP packets per second (last second).");
+        value(out, "gmnet_udp_packets_per_second", this.udpRate);
+        long drops = udp.getKernelDrops();
+        if (drops >= 0) {
+            header(out, "gmnet_udp_kernel_drops", "gauge", "UDP packets dropped by the kernel (full receive buffer).");
+            value(out, "gmnet_udp_kernel_drops", drops);
+        }
+        header(out, "gmnet_admission_dropped_total", "counter", "UDP packets and TCP connections dropped by the per IP rate limits.");
+        value(out, "gmnet_admission_dropped_total{transport=\"udp\"}", main.getUdpAdmission().getDropped());
+        value(out, "gmnet_admission_dropped_total{transport=\"tcp\"}", main.getTcpAdmission().getDropped());
+        header(out, "gmnet_tcp_commands_total", "counter", "TCP commands by command.");
+        for (int i = 0; i < TCP_COMMANDS.length; i++) {
+            value(out, "gmnet_tcp_commands_total{command=\"" + TCP_COMMANDS[i] + "\"}", this.tcpCommands[i].sum());
+        }
+        header(out, "gmnet_connect_total", "counter", "Results of connect: connected (255) or failed (254).");
+        for (int i = 0; i < CONNECT_RESULTS.length; i++) {
+            value(out, "gmnet_connect_total{result=\"" + CONNECT_RESULTS[i] + "\"}", this.connectResults[i].sum());
+        }
+        summary(out, "gmnet_lobby_build_seconds", "Time to build a lobby response that wasn't cached.", this.lobbyBuild);
+        summary(out, "gmnet_connect_relay_seconds", "Time from a connect command until the ports were queued for both peers.", this.connectRelay);
+        header(out, "gmnet_lobby_cache_total", "counter", "Lobby requests answered from the cache (hit) or built (miss).");
+        value(out, "gmnet_lobby_cache_total{result=\"hit\"}", cache.getHits());
+        value(out, "gmnet_lobby_cache_total{result=\"miss\"}", cache.getMisses());
+        header(out, "gmnet_lobby_snapshots", "gauge", "Sorted lobbies kept for paginated lobby requests.");
+        value(out, "gmnet_lobby_snapshots", main.getCommandHandler().getLobby().getPages().getSnapshotCount());
+
+        LobbySubscriptions subscriptions = main.getCommandHandler().getSubscriptions();
+        header(out, "gmnet_lobby_subscriptions", "gauge", "Clients subscribed to lobby changes.");
+        value(out, "gmnet_lobby_subscriptions", subscriptions.getCount());
+        header(out, "gmnet_lobby_subscription_messages_total", "counter", "Messages about added, changed and removed servers sent to subscribed clients.");
+        value(out, "gmnet_lobby_subscription_messages_total", subscriptions.getMessages());
+
+        //Same servers as the lobby sees
+        RegistrySnapshot snapshot = registry.getSnapshot();
+        header(out, "gmnet_servers", "gauge", "Known servers.");
+        value(out, "gmnet_servers", snapshot.getServerCount());
+        header(out, "gmnet_registry_generation", "gauge", "Generation of the registry snapshot that the lobby and the metrics read.");
+        value(out, "gmnet_registry_generation", snapshot.getGeneration());
+        header(out, "gmnet_registry_snapshots_total", "counter", "Snapshots of the registry that were built.");
+        value(out, "gmnet_registry_snapshots_total", registry.getSnapshotCount());
+        StringPool strings = registry.getStrings();
+        header(out, "gmnet_string_pool_size", "gauge", "Distinct data strings shared by the servers.");
+        value(out, "gmnet_string_pool_size", strings.getSize());
+        header(out, "gmnet_string_pool_lookups_total", "counter", "Data strings of reg2 that were replaced by a shared one (hit) or not (miss).");
+        long hits = strings.getHits();
+        long misses = strings.getMisses();
+        value(out, "gmnet_string_pool_lookups_total{result=\"hit\"}", hits);
+        value(out, "gmnet_string_pool_lookups_total{result=\"miss\"}", misses);
+        header(out, "gmnet_string_pool_hit_ratio", "gauge", "Share of the data strings of reg2 that were replaced by a shared one.");
+        value(out, "gmnet_string_pool_hit_ratio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        header(out, "gmnet_clients", "gauge", "Clients that wait for their connect.");
+        value(out, "gmnet_clients", registry.getClientCount());
+        header(out, "gmnet_expired_total", "counter", "Servers and clients removed because they didn't use TCP in time.");
+        value(out, "gmnet_expired_total{type=\"server\"}", registry.getExpiredServers());
+        value(out, "gmnet_expired_total{type=\"client\"}", registry.getExpiredClients());
+        header(out, "gmnet_tcp_write_failures_total", "counter", "Data for peers that was not written: queue full or write timeout.");
+        for (int i = 0; i < WRITE_FAILURES.length; i++) {
+            value(out, "gmnet_tcp_write_failures_total{reason=\"" + WRITE_FAILURES[i] + "\"}", this.writeFailures[i].sum());
+        }
+        header(out, "gmnet_tcp_connections", "gauge", "Open TCP connections.");
+        value(out, "gmnet_tcp_connections", this.openConnections.sum());
+        header(out, "gmnet_threads", "gauge", "Live JVM threads (without virtual threads).");
+        value(out, "gmnet_threads", ManagementFactory.getThreadMXBean().getThreadCount());
+        header(out, "gmnet_log_dropped_total", "counter", "Log lines dropped because the log was too slow.");
+        value(out, "gmnet_log_dropped_total", Mediator.getLog().getDropped());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void value(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void value(StringBuilder out, String name, double value) {
+        out.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, "summary", help);
+        long[] values = histogram.getValuesAt(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+                    .append(seconds(values[i])).append('\n');
+        }
+        out.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        header(out, name + "_max", "gauge", "Largest value of " + name + ".");
+        out.append(name).append("_max ").append(seconds(histogram.getMax())).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
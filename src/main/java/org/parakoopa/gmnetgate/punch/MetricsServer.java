@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A tiny HTTP server on its own port that answers every GET /metrics (or /)
+ * with the metrics in the Prometheus text format. It only listens on the
+ * loopback interface. Requests are handled one after another on this thread,
+ * they are rare and cheap.
+ * @author Parakoopa
+ */
+public class MetricsServer extends Thread {
+
+    /** Time a scraper has to send its request (ms). */
+    private static final int REQUEST_TIMEOUT = 2000;
+
+    private final Mediator main;
+    private final ServerSocket server;
+
+    /**
+     * Binds the port.
+     * @param main Mediator class instance that this server was created with.
+     * @param port The port to listen on.
+     * @throws IOException If the port can't be bound.
+     */
+    public MetricsServer(Mediator main, int port) throws IOException {
+        super("Metrics Server");
+        this.setDaemon(true);
+        this.main = main;
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @Override
+    public void run() {
+        Mediator.log("Loaded metrics on http://" + this.server.getInetAddress().getHostAddress()
+                + ":" + this.server.getLocalPort() + "/metrics", false);
+        while (true) {
+            try (Socket client = this.server.accept()) {
+                client.setSoTimeout(REQUEST_TIMEOUT);
+                this.handle(client);
+            } catch (IOException ex) {
+                //Broken request, ignore it.
+            }
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        LineReader in = new LineReader(client.getInputStream());
+        String request = in.readLine();
+        if (request == null) {
+            return;
+        }
+        //Skip the headers
+        String header;
+        while ((header = in.readLine()) != null && !header.isEmpty()) {
+            //Not needed
+        }
+        String[] parts = request.split(" ");
+        String path = parts.length > 1 ? parts[1] : "";
+        String status;
+        String body;
+        if (!"GET".equals(parts[0])) {
+            status = "405 Method Not Allowed";
+            body = "Only GET is supported.\n";
+        } else if ("/metrics".equals(path) || "/".equals(path)) {
+            status = "200 OK";
+            body = this.main.getMetrics().write(this.main);
+        } else {
+            status = "404 Not Found";
+            body = "Try /metrics\n";
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + bytes.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        OutputStream out = client.getOutputStream();
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes);
+        out.flush();
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection handled by the NIO transport.
+ * Collects the incoming bytes into lines with a LineReader, like TCPConnection,
+ * and runs the command once all of its argument lines arrived. Outgoing data is queued and written by the event loop.
+ * At most --write-queue messages can wait, and the peer has to read them in --write-timeout seconds.
+ * Lobby requests run on a worker of the loop; the connection doesn't read
+ * until they are done, so its commands still run in order.
+ * If the peer shuts down its output, the queued data is still sent before the connection is closed.
+ * @author Parakoopa
+ */
+public class NIOConnection extends Connection {
+
+    /** Time a peer has to send all lines of a command (ms). Same as the socket timeout of TCPConnection. */
+    private static final long COMMAND_TIMEOUT = 1000;
+
+    private final Mediator main;
+    private final NIOEventLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    /** Recieving buffer of this connection. */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    /** Splits the recieved data into lines. */
+    private final LineReader reader = new LineReader();
+    /** Data that still needs to be sent. */
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    /** Number of messages in the writeQueue. */
+    private final AtomicInteger queued = new AtomicInteger();
+    /** Time (ms) since the socket buffer is full, 0 if it isn't. */
+    private long writeBlockedSince = 0;
+    private volatile boolean closed = false;
+    /** True while a command runs on a worker. Only used by the event loop. */
+    private boolean busy = false;
+    /** True after the peer shut down its output. Only used by the event loop. */
+    private boolean inputEnded = false;
+
+    /** The command that waits for its arguments (or null). */
+    private String command = null;
+    private String[] args;
+    private int argCount;
+    /** Time the last line of the current command arrived. */
+    private long lastLineTime;
+
+    /**
+     * @param main Mediator class instance that this server was created with.
+     * @param loop The event loop that handles this connection.
+     * @param channel The accepted connection.
+     */
+    public NIOConnection(Mediator main, NIOEventLoop loop, SocketChannel channel) {
+        super(channel.socket().getInetAddress(), channel.socket().getPort());
+        this.main = main;
+        this.loop = loop;
+        this.channel = channel;
+        main.getMetrics().connectionOpened();
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Queues the bytes. They are written by the event loop of this connection.
+     */
+    @Override
+    public void send(byte[] data) throws IOException {
+        if (this.isClosed()) {
+            throw new IOException("Socket is closed");
+        }
+        if (!this.queue(data)) {
+            throw new IOException("Write queue full");
+        }
+    }
+
+    @Override
+    public boolean queue(byte[] data) {
+        if (this.isClosed()) {
+            return false;
+        }
+        if (this.queued.incrementAndGet() > Mediator.getWriteQueueSize()) {
+            this.queued.decrementAndGet();
+            this.main.getMetrics().countWriteFailure(Metrics.QUEUE_FULL);
+            return false;
+        }
+        this.writeQueue.add(ByteBuffer.wrap(data));
+        if (Thread.currentThread() == this.loop) {
+            this.onWritable();
+        } else {
+            this.loop.requestWrite(this);
+        }
+        return true;
+    }
+
+    /**
+     * Game server connections get heartbeats (see Heartbeat).
+     */
+    @Override
+    public void setServer(boolean isServer) {
+        if (isServer && !this.isServer()) {
+            try {
+                Heartbeat.enable(this.channel);
+            } catch (IOException ex) {
+                if (Mediator.isLogged(true)) {
+                    Mediator.log(this.getDebugString()+" Could not start heartbeats (e: "+ex.getClass().getName()+")",true);
+                }
+            }
+        }
+        super.setServer(isServer);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Runs the task on the event loop of this connection. If the task throws,
+     * this connection is closed.
+     */
+    @Override
+    public boolean execute(Runnable task) {
+        if (this.isClosed()) {
+            return false;
+        }
+        this.loop.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                this.fail(ex);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if (Thread.currentThread() == this.loop) {
+            this.fail(new IOException("Disconnected"));
+        } else {
+            this.loop.execute(() -> this.fail(new IOException("Disconnected")));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.closed) {
+            this.main.getMetrics().connectionClosed();
+        }
+        this.closed = true;
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        this.channel.close();
+    }
+
+    /**
+     * Reads all available data and runs the completed commands.
+     * Called by the event loop.
+     */
+    void onReadable() {
+        try {
+            int read = this.channel.read(this.readBuffer);
+            if (read < 0) {
+                //Peer disconnected. The last line doesn't need a line ending.
+                this.inputEnded = true;
+                String inputLine = this.reader.remaining();
+                if (inputLine != null) {
+                    this.lineComplete(inputLine);
+                }
+                this.closeWhenDone();
+                return;
+            }
+            this.runLines();
+        } catch (Exception ex) {
+            this.fail(ex);
+        }
+    }
+
+    /**
+     * Runs the commands of the lines in the read buffer, until one of them
+     * is handed to a worker. The rest stays in the buffer.
+     * @throws IOException
+     */
+    private void runLines() throws IOException {
+        this.readBuffer.flip();
+        String inputLine;
+        while (!this.closed && !this.busy && (inputLine = this.reader.nextLine(this.readBuffer)) != null) {
+            this.lineComplete(inputLine);
+        }
+        this.readBuffer.compact();
+    }
+
+    /**
+     * Runs an expensive command on a worker. Called by the worker.
+     */
+    private void handleOnWorker(String inputCommand, String[] inputArgs) {
+        Exception error = null;
+        try {
+            this.main.getCommandHandler().handle(this, inputCommand, inputArgs);
+        } catch (Exception ex) {
+            error = ex;
+        }
+        final Exception failure = error;
+        this.loop.execute(() -> this.workerDone(failure));
+    }
+
+    /**
+     * Continues with the next commands after a worker is done.
+     * Called by the event loop.
+     * @param failure Error of the command or null
+     */
+    private void workerDone(Exception failure) {
+        this.busy = false;
+        if (failure != null) {
+            this.fail(failure);
+            return;
+        }
+        if (this.closed) {
+            //Timed out while the worker ran.
+            return;
+        }
+        try {
+            this.runLines();
+            if (this.inputEnded) {
+                this.closeWhenDone();
+            } else {
+                this.updateInterest();
+            }
+        } catch (Exception ex) {
+            this.fail(ex);
+        }
+    }
+
+    /**
+     * Closes the connection after the peer shut down its output, once the
+     * last command is done and everything queued is written.
+     * Called by the event loop.
+     */
+    private void closeWhenDone() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        if (this.busy || !this.writeQueue.isEmpty()) {
+            //onWritable or workerDone comes back here.
+            this.updateInterest();
+            return;
+        }
+        this.close();
+        if (Mediator.isLogged(true)) {
+            Mediator.log(this.getDebugString()+" Disconnected!",true);
+        }
+        this.destroy(this.main);
+    }
+
+    /**
+     * Reads only if no command runs on a worker and the peer didn't shut
+     * down its output, and waits for the socket to be writable if a write
+     * was incomplete.
+     */
+    private void updateInterest() {
+        int ops = this.writeBlockedSince != 0 ? SelectionKey.OP_WRITE : 0;
+        if (!this.busy && !this.inputEnded) {
+            ops |= SelectionKey.OP_READ;
+        }
+        this.key.interestOps(ops);
+    }
+
+    /**
+     * Writes as much of the queued data as possible.
+     * Called by the event loop.
+     */
+    void onWritable() {
+        if (this.closed) {
+            return;
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = this.writeQueue.peek()) != null) {
+                this.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    //Socket buffer is full, continue when it's writable again.
+                    if (this.writeBlockedSince == 0) {
+                        this.writeBlockedSince = System.currentTimeMillis();
+                    }
+                    this.updateInterest();
+                    return;
+                }
+                this.writeQueue.poll();
+                this.queued.decrementAndGet();
+                this.writeBlockedSince = 0;
+            }
+            if (this.inputEnded) {
+                this.closeWhenDone();
+            } else {
+                this.updateInterest();
+            }
+        } catch (Exception ex) {
+            this.fail(ex);
+        }
+    }
+
+    /**
+     * Ends the connection if the peer didn't send all lines of a command in time,
+     * or didn't read what was sent to it in time.
+     * Called by the event loop.
+     * @param now Current time
+     */
+    void checkTimeout(long now) {
+        if (this.command != null && now - this.lastLineTime > COMMAND_TIMEOUT) {
+            this.fail(new SocketTimeoutException());
+        } else if (this.writeBlockedSince != 0 && now - this.writeBlockedSince > Mediator.getWriteTimeout()) {
+            this.main.getMetrics().countWriteFailure(Metrics.WRITE_TIMEOUT);
+            this.fail(new SocketTimeoutException());
+        }
+    }
+
+    /**
+     * A line was read completely.
+     * @param inputLine The cleaned line
+     * @throws IOException
+     */
+    private void lineComplete(String inputLine) throws IOException {
+        if (this.command == null) {
+            this.command = inputLine;
+            this.args = new String[TCPCommandHandler.getArgumentCount(inputLine)];
+            this.argCount = 0;
+        } else {
+            this.args[this.argCount++] = inputLine;
+        }
+        this.lastLineTime = System.currentTimeMillis();
+        if (this.argCount == this.args.length) {
+            final String inputCommand = this.command;
+            final String[] inputArgs = this.args;
+            this.command = null;
+            if (TCPCommandHandler.isExpensive(inputCommand)) {
+                //Stop reading until the worker is done, so the commands stay in order.
+                this.busy = true;
+                this.updateInterest();
+                this.loop.getWorkers().execute(() -> this.handleOnWorker(inputCommand, inputArgs));
+            } else {
+                this.main.getCommandHandler().handle(this, inputCommand, inputArgs);
+            }
+        }
+    }
+
+    /**
+     * Ends the connection after an error. Called by the event loop.
+     * @param ex The error
+     */
+    void fail(Exception ex) {
+        if (this.closed) {
+            return;
+        }
+        try {
+            this.close();
+        } catch (IOException ex2) {
+            //Already closed.
+        }
+        if (Mediator.isLogged(true)) {
+            Mediator.log(this.getDebugString()+" Disconnected (e: "+ex.getClass().getName()+")",true);
+        }
+        this.destroy(this.main);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Event loop of the NIO transport.
+ * One thread that reads and writes all connections registered to its selector.
+ * If a handler of a connection throws, only that connection is closed, the
+ * loop keeps running for the others.
+ * @author Parakoopa
+ */
+public class NIOEventLoop extends Thread {
+
+    /** How often the command timeouts are checked (ms). */
+    private static final long TIMEOUT_CHECK_INTERVAL = 250;
+
+    private final Mediator main;
+    private final Selector selector;
+    /** Accepted connections that still need to be registered with the selector. */
+    private final Queue<SocketChannel> pendingConnections = new ConcurrentLinkedQueue<>();
+    /** Connections that got data to send from other threads. */
+    private final Queue<NIOConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    /** Tasks of other threads that have to run on this loop. */
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    /** Runs the expensive commands (see TCPCommandHandler.isExpensive). */
+    private final Executor workers;
+
+    /**
+     * @param main Mediator class instance that this server was created with.
+     * @param id Number of this loop (for the thread name)
+     * @param workers Runs the expensive commands of the connections.
+     * @throws IOException If the selector can't be opened.
+     */
+    public NIOEventLoop(Mediator main, int id, Executor workers) throws IOException {
+        super("NIO TCP Loop " + id);
+        this.main = main;
+        this.workers = workers;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a new connection to this loop. Can be called from any thread.
+     * @param client The accepted connection
+     */
+    void register(SocketChannel client) {
+        this.pendingConnections.add(client);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Makes this loop write the queued data of the connection. Can be called
+     * from any thread.
+     * @param conn The connection
+     */
+    void requestWrite(NIOConnection conn) {
+        this.pendingWrites.add(conn);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Runs the task on this loop. Can be called from any thread.
+     * @param task The task
+     */
+    void execute(Runnable task) {
+        this.pendingTasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * @return Runs the expensive commands of the connections.
+     */
+    Executor getWorkers() {
+        return this.workers;
+    }
+
+    @Override
+    public void run() {
+        long lastTimeoutCheck = System.currentTimeMillis();
+        while (true) {
+            try {
+                this.selector.select(TIMEOUT_CHECK_INTERVAL);
+                this.registerPending();
+                NIOConnection conn;
+                while ((conn = this.pendingWrites.poll()) != null) {
+                    try {
+                        conn.onWritable();
+                    } catch (RuntimeException ex) {
+                        this.fail(conn, ex);
+                    }
+                }
+                Runnable task;
+                while ((task = this.pendingTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        //Tasks of a connection close it themselves (see NIOConnection.execute).
+                        ex.printStackTrace();
+                    }
+                }
+                Iterator<SelectionKey> iter = this.selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    conn = (NIOConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            conn.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.onWritable();
+                        }
+                    } catch (RuntimeException ex) {
+                        this.fail(conn, ex);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL) {
+                    lastTimeoutCheck = now;
+                    for (SelectionKey key : this.selector.keys()) {
+                        conn = (NIOConnection) key.attachment();
+                        try {
+                            conn.checkTimeout(now);
+                        } catch (RuntimeException ex) {
+                            this.fail(conn, ex);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                //Print all exceptions.
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes a connection after its handler threw.
+     * @param conn The connection
+     * @param ex The error
+     */
+    private void fail(NIOConnection conn, RuntimeException ex) {
+        ex.printStackTrace();
+        try {
+            conn.fail(ex);
+        } catch (RuntimeException ex2) {
+            //The cleanup failed as well, at least close the channel.
+            ex2.printStackTrace();
+            try {
+                conn.close();
+            } catch (IOException ex3) {
+                //Already closed.
+            }
+        }
+    }
+
+    /**
+     * Registers all accepted connections with the selector.
+     */
+    private void registerPending() {
+        SocketChannel client;
+        while ((client = this.pendingConnections.poll()) != null) {
+            NIOConnection conn = null;
+            try {
+                //TcpNoDelay configures the socket to transfer messages immediately, otherwise GM:S won't pick them up
+                client.socket().setTcpNoDelay(true);
+                client.configureBlocking(false);
+                conn = new NIOConnection(this.main, this, client);
+                conn.setKey(client.register(this.selector, SelectionKey.OP_READ, conn));
+                if (Mediator.isLogged(true)) {
+                    Mediator.log(conn.getDebugString()+" Connected!",true);
+                }
+            } catch (IOException ex) {
+                try {
+                    if (conn != null) {
+                        conn.close();
+                    } else {
+                        client.close();
+                    }
+                } catch (IOException ex2) {
+                    //Already closed.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP listener of the NIO transport (--tcp-mode nio).
+ * Accepts the connections and hands them to a small fixed set of event loops,
+ * instead of starting one thread per connection. The loops share a pool of
+ * workers for the lobby requests.
+ * @author Parakoopa
+ */
+public class NIOListener extends Thread {
+
+    private final ServerSocketChannel server;
+    /** Rate limit of the connections per IP. */
+    private final AdmissionControl admission;
+    private final NIOEventLoop[] loops;
+    /** Loop that gets the next connection. */
+    private int next = 0;
+
+    /**
+     * Binds the TCP port and creates the event loops.
+     * @param main Mediator class instance that this server was created with.
+     * @param port The port to listen on.
+     * @param threads Number of event loops, at least 1.
+     * @throws IOException If the port can't be bound.
+     */
+    public NIOListener(Mediator main, int port, int threads) throws IOException {
+        super("NIO TCP Listener");
+        if (threads < 1) {
+            throw new IllegalArgumentException("Needs at least one event loop, got " + threads);
+        }
+        this.admission = main.getTcpAdmission();
+        this.server = ServerSocketChannel.open();
+        this.server.socket().bind(new InetSocketAddress(port));
+        this.loops = new NIOEventLoop[threads];
+        ExecutorService workers = createWorkers(Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < threads; i++) {
+            this.loops[i] = new NIOEventLoop(main, i, workers);
+        }
+    }
+
+    /**
+     * Creates the threads that run the expensive commands (lobby requests)
+     * for all event loops.
+     * @param threads Number of threads
+     * @return The workers
+     */
+    private static ExecutorService createWorkers(int threads) {
+        final AtomicInteger ids = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> new Thread(task, "NIO TCP Worker " + ids.getAndIncrement()));
+    }
+
+    @Override
+    public void run() {
+        for (NIOEventLoop loop : this.loops) {
+            loop.start();
+        }
+        Mediator.log("Loaded TCP Listener ("+this.loops.length+" NIO event loops)", true);
+        //When the connection is handed to a loop: Wait for next connection
+        while (true) {
+            try {
+                //Wait for connection
+                SocketChannel client = this.server.accept();
+                if (!this.admission.admit(client.socket().getInetAddress())) {
+                    //Too many connections of this IP
+                    client.close();
+                    continue;
+                }
+                //When connection is opened: Let the next loop handle it.
+                this.loops[this.next].register(client);
+                this.next = (this.next + 1) % this.loops.length;
+            } catch (IOException ex) {
+                //Print all exceptions.
+                ex.printStackTrace();
+            }
+        }
+    }
+}
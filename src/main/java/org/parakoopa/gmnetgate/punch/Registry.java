@@ -0,0 +1,898 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Contains all known servers and clients.
+ * The UDP workers and all TCP connections use this at the same time. The
+ * maps lock only a small part of them on writes and usually don't lock at all
+ * on reads, creating an object is atomic, so no registration can get lost.
+ * Servers and clients are stored by the key of their IPv4 address (see
+ * AddressKey), so the address doesn't need to be turned into a String for
+ * every packet. Other addresses (IPv6) are stored by their String.
+ *
+ * For the lobby, every data string has an index from value to the servers
+ * with that value. A lobby request only looks at the servers of its most
+ * selective filter instead of all servers. To keep the index up to date, the
+ * data strings of registered servers must be changed with setData().
+ *
+ * Every change that can change a lobby increases the generation. Cached
+ * lobbies are only valid for the generation they were built with. The
+ * change listener gets every server that was changed or removed (see
+ * LobbySubscriptions).
+ *
+ * Readers that look at many servers (lobby, metrics) use a RegistrySnapshot
+ * instead of the maps. A new snapshot is built by the first reader after a
+ * change while the others keep using the old one, so reads never wait. If
+ * the servers change often, the changes are collected for the snapshot
+ * interval and go into one new snapshot.
+ *
+ * Servers that were created by UDP but never registered via TCP, and clients
+ * that never sent their TCP connect, are removed by a TimerWheel after their
+ * time to live. Otherwise lost or spoofed UDP packets would fill the maps.
+ * @author Parakoopa
+ */
+public class Registry {
+
+    /**
+     * Object that represents a server. Contains TCP connection, port, and the 8
+     * data-strings
+     */
+    private final EndpointMap<Server> serverMap = new EndpointMap<>();
+    /**
+     * Servers with addresses that have no key.
+     */
+    private final ConcurrentHashMap<String, Server> otherServerMap = new ConcurrentHashMap<>();
+    /**
+     * Object that represents a client Contains only port right now.
+     */
+    private final EndpointMap<Client> clientMap = new EndpointMap<>();
+    /**
+     * Clients with addresses that have no key.
+     */
+    private final ConcurrentHashMap<String, Client> otherClientMap = new ConcurrentHashMap<>();
+    /**
+     * Index of the 8 data strings: value to servers with that value.
+     * Empty strings are not indexed, an empty filter matches everything.
+     */
+    private final List<ConcurrentHashMap<String, Set<Server>>> dataIndex = newIndex();
+    /**
+     * The data strings of the servers.
+     */
+    private final StringPool strings;
+    /**
+     * Increased after every change of the servers.
+     */
+    private final AtomicLong generation = new AtomicLong();
+    /**
+     * Gets every server whose data changed or that was removed (or null).
+     */
+    private volatile Consumer<Server> changeListener;
+
+    /**
+     * Removes the servers and clients that were only created via UDP (or null).
+     */
+    private final TimerWheel wheel;
+    /**
+     * Time (ms) a server may be invalid (<INV>) without a TCP connection.
+     */
+    private final long serverTtl;
+    /**
+     * Time (ms) a client may wait for its TCP connect.
+     */
+    private final long clientTtl;
+    private final LongAdder expiredServers = new LongAdder();
+    private final LongAdder expiredClients = new LongAdder();
+
+    /**
+     * Newest snapshot of the servers (or null before the first one).
+     */
+    private volatile RegistrySnapshot snapshot;
+    /**
+     * Held while a snapshot is built.
+     */
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    /**
+     * Servers that changed since the last snapshot.
+     */
+    private final Set<Server> dirty = ConcurrentHashMap.newKeySet();
+    /**
+     * The servers in the slots of the snapshot (null for empty slots). Guarded by the snapshot lock.
+     */
+    private final ArrayList<Server> slots = new ArrayList<>();
+    /**
+     * Number of empty slots. Guarded by the snapshot lock.
+     */
+    private int emptySlots;
+    /**
+     * Minimum time (ns) between two snapshots.
+     */
+    private final long snapshotInterval;
+    private final LongAdder snapshots = new LongAdder();
+
+    /**
+     * Creates a registry that never expires servers and clients.
+     */
+    public Registry() {
+        this(null, 0, 0);
+    }
+
+    /**
+     * @param wheel Timer for the expiry (or null to disable it)
+     * @param serverTtl Time (ms) a server may be invalid (<INV>) without a TCP connection (0 = forever)
+     * @param clientTtl Time (ms) a client may wait for its TCP connect (0 = forever)
+     */
+    public Registry(TimerWheel wheel, long serverTtl, long clientTtl) {
+        this(wheel, serverTtl, clientTtl, 0);
+    }
+
+    /**
+     * @param wheel Timer for the expiry (or null to disable it)
+     * @param serverTtl Time (ms) a server may be invalid (<INV>) without a TCP connection (0 = forever)
+     * @param clientTtl Time (ms) a client may wait for its TCP connect (0 = forever)
+     * @param snapshotInterval Minimum time (ms) between two snapshots (0 = a new one after every change)
+     */
+    public Registry(TimerWheel wheel, long serverTtl, long clientTtl, long snapshotInterval) {
+        this(wheel, serverTtl, clientTtl, snapshotInterval, StringPool.DEFAULT_SIZE);
+    }
+
+    /**
+     * @param wheel Timer for the expiry (or null to disable it)
+     * @param serverTtl Time (ms) a server may be invalid (<INV>) without a TCP connection (0 = forever)
+     * @param clientTtl Time (ms) a client may wait for its TCP connect (0 = forever)
+     * @param snapshotInterval Minimum time (ms) between two snapshots (0 = a new one after every change)
+     * @param stringPoolSize Maximum number of pooled data strings (0 = no pool)
+     */
+    public Registry(TimerWheel wheel, long serverTtl, long clientTtl, long snapshotInterval, int stringPoolSize) {
+        this.strings = new StringPool(stringPoolSize);
+        this.wheel = wheel;
+        this.serverTtl = wheel == null ? 0 : serverTtl;
+        this.clientTtl = wheel == null ? 0 : clientTtl;
+        this.snapshotInterval = TimeUnit.MILLISECONDS.toNanos(snapshotInterval);
+    }
+
+    private static List<ConcurrentHashMap<String, Set<Server>>> newIndex() {
+        List<ConcurrentHashMap<String, Set<Server>>> index = new ArrayList<>(8);
+        for (int i = 0; i < 8; i++) {
+            index.add(new ConcurrentHashMap<>());
+        }
+        return index;
+    }
+
+    /**
+     * Get the server object that represents the ip (and create it if it doesn't
+     * exist).
+     *
+     * @param ip IP of the server
+     * @return server object with that ip
+     */
+    public Server getServer(String ip) {
+        return getServer(AddressKey.parse(ip), ip);
+    }
+
+    /**
+     * Get the server object that represents the address (and create it if it
+     * doesn't exist).
+     *
+     * @param address Address of the server
+     * @return server object with that address
+     */
+    public Server getServer(InetAddress address) {
+        long key = AddressKey.of(address);
+        return getServer(key, key == AddressKey.NONE ? address.getHostAddress() : null);
+    }
+
+    /**
+     * @param key Key of the address
+     * @param ip IP of the server (only needed if there is no key)
+     */
+    private Server getServer(long key, String ip) {
+        Server serverObj = findServer(key, ip);
+        if (serverObj != null) {
+            return serverObj;
+        }
+        final boolean[] created = {false};
+        if (key != AddressKey.NONE) {
+            serverObj = serverMap.computeIfAbsent(key, k -> {
+                created[0] = true;
+                return newServer(ip != null ? ip : AddressKey.toString(k));
+            });
+        } else {
+            serverObj = otherServerMap.computeIfAbsent(ip, k -> {
+                created[0] = true;
+                return newServer(k);
+            });
+        }
+        if (created[0]) {
+            markDirty(serverObj);
+        }
+        return serverObj;
+    }
+
+    private Server newServer(String ip) {
+        Server serverObj = new Server(ip);
+        if (serverTtl > 0) {
+            serverObj.setExpiry(new ServerExpiry(serverObj));
+        }
+        return serverObj;
+    }
+
+    /**
+     * Get the server object that represents the address of the connection
+     * (and create it if it doesn't exist) and sets its TCP connection.
+     * Unlike getServer(), this can't return a server that is being removed at
+     * the same time (and so would be lost with its connection).
+     *
+     * @param connection Connection of the server
+     * @return server object with that ip
+     */
+    public Server registerServer(Connection connection) {
+        while (true) {
+            Server serverObj = getServer(connection.getKey(), connection.getHostAddress());
+            synchronized (serverObj) {
+                if (!serverObj.isRemoved()) {
+                    serverObj.setConnection(connection);
+                    return serverObj;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the server object that represents the ip.
+     *
+     * @param ip IP of the server
+     * @return server object with that ip or null
+     */
+    public Server findServer(String ip) {
+        return findServer(AddressKey.parse(ip), ip);
+    }
+
+    private Server findServer(long key, String ip) {
+        return key != AddressKey.NONE ? serverMap.get(key) : otherServerMap.get(ip);
+    }
+
+    /**
+     * Replaces or removes (remap returns null) a server atomically.
+     */
+    private Server updateServer(long key, String ip, UnaryOperator<Server> remap) {
+        if (key != AddressKey.NONE) {
+            return serverMap.computeIfPresent(key, remap);
+        }
+        return otherServerMap.computeIfPresent(ip, (k, serverObj) -> remap.apply(serverObj));
+    }
+
+    /**
+     * Get the client object that represents the ip (and create it if it doesn't
+     * exist)
+     *
+     * @param ip IP of the client
+     * @return client object with that ip
+     */
+    public Client getClient(String ip) {
+        return getClient(AddressKey.parse(ip), ip);
+    }
+
+    /**
+     * Get the client object that represents the address (and create it if it
+     * doesn't exist)
+     *
+     * @param address Address of the client
+     * @return client object with that address
+     */
+    public Client getClient(InetAddress address) {
+        long key = AddressKey.of(address);
+        return getClient(key, key == AddressKey.NONE ? address.getHostAddress() : null);
+    }
+
+    /**
+     * Get the client object that represents the address of the connection
+     * (and create it if it doesn't exist)
+     *
+     * @param connection Connection of the client
+     * @return client object with that address
+     */
+    public Client getClient(Connection connection) {
+        return getClient(connection.getKey(), connection.getHostAddress());
+    }
+
+    /**
+     * @param key Key of the address
+     * @param ip IP of the client (only needed if there is no key)
+     */
+    private Client getClient(long key, String ip) {
+        if (key != AddressKey.NONE) {
+            return clientMap.computeIfAbsent(key, k -> newClient(k, ip));
+        }
+        Client clientObj = otherClientMap.get(ip);
+        if (clientObj != null) {
+            return clientObj;
+        }
+        return otherClientMap.computeIfAbsent(ip, k -> newClient(key, k));
+    }
+
+    private Client newClient(long key, String ip) {
+        Client clientObj = new Client();
+        if (clientTtl > 0) {
+            clientObj.setExpiry(new ClientExpiry(key, ip, clientObj));
+        }
+        return clientObj;
+    }
+
+    /**
+     * Removes the server after the time to live, unless it registered via TCP
+     * until then. Called when the server was made invalid by a UDP reg.
+     *
+     * @param serverObj The server
+     */
+    public void scheduleExpiry(Server serverObj) {
+        TimerWheel.Timeout expiry = serverObj.getExpiry();
+        if (expiry != null) {
+            wheel.schedule(expiry, System.currentTimeMillis() + serverTtl);
+        }
+    }
+
+    /**
+     * Removes the client after the time to live, unless it sends its TCP
+     * connect until then. Called when the client sent a UDP connect.
+     *
+     * @param clientObj The client
+     */
+    public void scheduleExpiry(Client clientObj) {
+        TimerWheel.Timeout expiry = clientObj.getExpiry();
+        if (expiry != null) {
+            wheel.schedule(expiry, System.currentTimeMillis() + clientTtl);
+        }
+    }
+
+    /**
+     * Remove this IP from the server list.
+     *
+     * @param ip IP of the server
+     */
+    public void destroyServer(String ip) {
+        final Server[] removed = {null};
+        updateServer(AddressKey.parse(ip), ip, serverObj -> {
+            synchronized (serverObj) {
+                markRemoved(serverObj);
+            }
+            removed[0] = serverObj;
+            return null;
+        });
+        Server serverObj = removed[0];
+        if (serverObj != null) {
+            unindex(serverObj);
+            changed(serverObj);
+        }
+    }
+
+    /**
+     * Remove the server of the connection from the server list, but only if
+     * the server still belongs to this connection. If the server registered
+     * again with a new connection in the meantime, it stays.
+     *
+     * @param connection Connection that registered the server
+     * @return True if the server was removed
+     */
+    public boolean destroyServer(Connection connection) {
+        final Server[] removed = {null};
+        updateServer(connection.getKey(), connection.getHostAddress(), serverObj -> {
+            synchronized (serverObj) {
+                if (serverObj.getConnection() != connection) {
+                    return serverObj;
+                }
+                markRemoved(serverObj);
+            }
+            removed[0] = serverObj;
+            return null;
+        });
+        if (removed[0] != null) {
+            unindex(removed[0]);
+            changed(removed[0]);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets a data string of a server and updates the lobby index.
+     *
+     * @param serverObj The server
+     * @param field Number of the data string (1-8)
+     * @param data The data string
+     */
+    public void setData(Server serverObj, int field, String data) {
+        if (updateData(serverObj, field, data)) {
+            changed(serverObj);
+        }
+    }
+
+    /**
+     * Sets all 8 data strings of a server (like reg2) and updates the lobby
+     * index. The change listener is only called once.
+     *
+     * @param serverObj The server
+     * @param data The data strings 1-8
+     */
+    public void setData(Server serverObj, String[] data) {
+        boolean changed = false;
+        synchronized (serverObj) {
+            //All at once for the snapshots
+            for (int field = 1; field <= 8; field++) {
+                changed |= updateData(serverObj, field, data[field - 1]);
+            }
+        }
+        if (changed) {
+            changed(serverObj);
+        }
+    }
+
+    /**
+     * @return True if the data string was changed
+     */
+    private boolean updateData(Server serverObj, int field, String data) {
+        synchronized (serverObj) {
+            String old = serverObj.getData(field);
+            if (old.equals(data)) {
+                return false;
+            }
+            if (serverObj.isRemoved()) {
+                //Not in the lobby (and the string pool) anymore
+                serverObj.setData(field, data);
+                return false;
+            }
+            data = strings.intern(data);
+            serverObj.setData(field, data);
+            strings.release(old);
+            removeFromIndex(field, old, serverObj);
+            addToIndex(field, data, serverObj);
+        }
+        return true;
+    }
+
+    /**
+     * Puts the server into the next snapshot and increases the generation, in
+     * this order: A snapshot that has the new generation also has the server.
+     */
+    private void markDirty(Server serverObj) {
+        dirty.add(serverObj);
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @param listener Gets every server whose data changed or that was removed
+     */
+    public void setChangeListener(Consumer<Server> listener) {
+        changeListener = listener;
+    }
+
+    private void changed(Server serverObj) {
+        markDirty(serverObj);
+        Consumer<Server> listener = changeListener;
+        if (listener != null) {
+            listener.accept(serverObj);
+        }
+    }
+
+    /**
+     * Returns all valid servers that match the lobby filters.
+     * Servers with the gamename <INV> are skipped (this might happen if a
+     * server was created using UDP connection but never initialized via TCP).
+     *
+     * @param lobbyFilters The 8 data filters. An empty filter matches every server.
+     * @return The matching servers
+     */
+    public ArrayList<Server> findServers(String[] lobbyFilters) {
+        //With the pooled strings, equal data strings are the same object.
+        String[] filters = strings.canonical(lobbyFilters);
+        //Only look at the servers of the filter with the fewest servers.
+        Set<Server> candidates = null;
+        for (int i = 0; i < 8; i++) {
+            if (!"".equals(filters[i])) {
+                Set<Server> servers = dataIndex.get(i).get(filters[i]);
+                if (servers == null) {
+                    return new ArrayList<>();
+                }
+                if (candidates == null || servers.size() < candidates.size()) {
+                    candidates = servers;
+                }
+            }
+        }
+        ArrayList<Server> result = new ArrayList<>();
+        if (candidates == null) {
+            //No filters
+            forEachServer(serverObj -> {
+                if (matches(serverObj, filters)) {
+                    result.add(serverObj);
+                }
+            });
+            return result;
+        }
+        for (Server serverObj : candidates) {
+            if (matches(serverObj, filters)) {
+                result.add(serverObj);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Whether or not the server is valid and matches all filters
+     */
+    static boolean matches(Server serverObj, String[] filters) {
+        if (serverObj.getData1().equals("<INV>")) {
+            return false;
+        }
+        for (int i = 0; i < 8; i++) {
+            String filter = filters[i];
+            if (!"".equals(filter)) {
+                String data = serverObj.getData(i + 1);
+                //Pooled strings are equal by reference, others are compared.
+                if (data != filter && !data.equals(filter)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void addToIndex(int field, String data, Server serverObj) {
+        if ("".equals(data)) {
+            return;
+        }
+        dataIndex.get(field - 1).compute(data, (k, servers) -> {
+            if (servers == null) {
+                servers = ConcurrentHashMap.newKeySet();
+            }
+            servers.add(serverObj);
+            return servers;
+        });
+    }
+
+    private void removeFromIndex(int field, String data, Server serverObj) {
+        if ("".equals(data)) {
+            return;
+        }
+        dataIndex.get(field - 1).computeIfPresent(data, (k, servers) -> {
+            servers.remove(serverObj);
+            return servers.isEmpty() ? null : servers;
+        });
+    }
+
+    /**
+     * Marks the server as removed and gives its data strings back to the pool.
+     * Only servers that aren't removed hold pooled strings. Needs the lock of the server.
+     */
+    private void markRemoved(Server serverObj) {
+        if (serverObj.isRemoved()) {
+            return;
+        }
+        serverObj.setRemoved(true);
+        for (int field = 1; field <= 8; field++) {
+            strings.release(serverObj.getData(field));
+        }
+    }
+
+    /**
+     * Removes a server that was removed from the server map from the index.
+     */
+    private void unindex(Server serverObj) {
+        synchronized (serverObj) {
+            markRemoved(serverObj);
+            for (int field = 1; field <= 8; field++) {
+                removeFromIndex(field, serverObj.getData(field), serverObj);
+            }
+        }
+    }
+
+    /**
+     * Remove this IP from the client list.
+     *
+     * @param ip IP of the client
+     */
+    public void destroyClient(String ip) {
+        long key = AddressKey.parse(ip);
+        if (key != AddressKey.NONE) {
+            clientMap.remove(key);
+        } else {
+            otherClientMap.remove(ip);
+        }
+    }
+
+    /**
+     * Remove the address of the connection from the client list.
+     *
+     * @param connection Connection of the client
+     */
+    public void destroyClient(Connection connection) {
+        if (connection.getKey() != AddressKey.NONE) {
+            clientMap.remove(connection.getKey());
+        } else {
+            otherClientMap.remove(connection.getHostAddress());
+        }
+    }
+
+    /**
+     * @return Number of servers that were removed because they didn't register via TCP in time
+     */
+    public long getExpiredServers() {
+        return expiredServers.sum();
+    }
+
+    /**
+     * @return Number of clients that were removed because they didn't connect via TCP in time
+     */
+    public long getExpiredClients() {
+        return expiredClients.sum();
+    }
+
+    /**
+     * Returns the generation of the servers. It is increased after every change,
+     * so something built from the servers is still valid as long as the generation
+     * (read before building it) didn't change.
+     *
+     * @return The generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Returns the newest snapshot of the servers. It is rebuilt if the servers
+     * changed, unless the last one is younger than the snapshot interval or
+     * another thread is building one right now (then the old one is returned).
+     *
+     * @return The snapshot
+     */
+    public RegistrySnapshot getSnapshot() {
+        RegistrySnapshot current = snapshot;
+        if (current != null) {
+            if (current.getGeneration() == generation.get()
+                    || System.nanoTime() - current.getBuilt() < snapshotInterval
+                    || !snapshotLock.tryLock()) {
+                return current;
+            }
+        } else {
+            //Only the very first snapshot has to be waited for
+            snapshotLock.lock();
+        }
+        try {
+            current = snapshot;
+            //The generation is read first, later changes might be in the snapshot too.
+            //Changes of this generation are already in dirty (see markDirty).
+            long gen = generation.get();
+            if (current != null && current.getGeneration() == gen) {
+                return current;
+            }
+            if (current == null || emptySlots > slots.size() / 4) {
+                current = buildSnapshot(gen);
+            } else {
+                current = nextSnapshot(current, gen);
+            }
+            snapshot = current;
+            snapshots.increment();
+            return current;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Builds a snapshot from scratch, without empty slots. Needs the snapshot lock.
+     */
+    private RegistrySnapshot buildSnapshot(long gen) {
+        //Everything that changes from now on is copied now or in the next snapshot.
+        dirty.clear();
+        for (Server serverObj : slots) {
+            if (serverObj != null) {
+                serverObj.setSnapshotSlot(-1);
+            }
+        }
+        slots.clear();
+        emptySlots = 0;
+        ArrayList<Server> copies = new ArrayList<>(getServerCount() + 16);
+        forEachServer(serverObj -> {
+            synchronized (serverObj) {
+                if (!serverObj.isRemoved()) {
+                    serverObj.setSnapshotSlot(slots.size());
+                    slots.add(serverObj);
+                    copies.add(serverObj.copy());
+                }
+            }
+        });
+        return new RegistrySnapshot(gen, copies.toArray(new Server[copies.size()]), copies.size(), strings);
+    }
+
+    /**
+     * Makes the next snapshot from the current one and the changed servers. Needs the snapshot lock.
+     */
+    private RegistrySnapshot nextSnapshot(RegistrySnapshot current, long gen) {
+        Server[] changedServers = dirty.toArray(new Server[0]);
+        Server[] copies = Arrays.copyOf(current.getSlots(), slots.size() + changedServers.length);
+        int count = current.getServerCount();
+        int[] changed = new int[changedServers.length];
+        int changes = 0;
+        for (Server serverObj : changedServers) {
+            dirty.remove(serverObj);
+            synchronized (serverObj) {
+                int slot = serverObj.getSnapshotSlot();
+                if (serverObj.isRemoved()) {
+                    if (slot < 0) {
+                        //Created and removed between two snapshots
+                        continue;
+                    }
+                    copies[slot] = null;
+                    slots.set(slot, null);
+                    serverObj.setSnapshotSlot(-1);
+                    emptySlots++;
+                    count--;
+                } else if (slot >= 0) {
+                    copies[slot] = serverObj.copy();
+                } else {
+                    slot = slots.size();
+                    serverObj.setSnapshotSlot(slot);
+                    slots.add(serverObj);
+                    copies[slot] = serverObj.copy();
+                    count++;
+                }
+                changed[changes++] = slot;
+            }
+        }
+        if (copies.length > slots.size()) {
+            copies = Arrays.copyOf(copies, slots.size());
+        }
+        return current.next(gen, copies, count, changed, changes);
+    }
+
+    /**
+     * @return The pool of the data strings
+     */
+    public StringPool getStrings() {
+        return strings;
+    }
+
+    /**
+     * @return Number of snapshots that were built
+     */
+    public long getSnapshotCount() {
+        return snapshots.sum();
+    }
+
+    /**
+     * @return Number of servers
+     */
+    public int getServerCount() {
+        return serverMap.size() + otherServerMap.size();
+    }
+
+    /**
+     * @return Number of clients
+     */
+    public int getClientCount() {
+        return clientMap.size() + otherClientMap.size();
+    }
+
+    /**
+     * Calls the action for all servers. Can be called while other threads
+     * change the servers, the action sees the servers of some point in time
+     * during the call. The action must not add or remove servers.
+     *
+     * @param action The action
+     */
+    public void forEachServer(Consumer<? super Server> action) {
+        serverMap.forEach(action);
+        otherServerMap.values().forEach(action);
+    }
+
+    /**
+     * Removes its server if it is still invalid and has no TCP connection.
+     */
+    private class ServerExpiry extends TimerWheel.Timeout {
+        private final Server serverObj;
+
+        ServerExpiry(Server serverObj) {
+            this.serverObj = serverObj;
+        }
+
+        @Override
+        protected void expire(long now) {
+            final boolean[] expired = {false};
+            updateServer(serverObj.getKey(), serverObj.getIp(), current -> {
+                if (current != serverObj) {
+                    return current;
+                }
+                synchronized (serverObj) {
+                    Connection connection = serverObj.getConnection();
+                    if (getDeadline() > now
+                            || !serverObj.getData1().equals("<INV>")
+                            || (connection != null && !connection.isClosed())) {
+                        return serverObj;
+                    }
+                    markRemoved(serverObj);
+                }
+                expired[0] = true;
+                return null;
+            });
+            if (expired[0]) {
+                unindex(serverObj);
+                expiredServers.increment();
+                changed(serverObj);
+                if (Mediator.isLogged(true)) {
+                    Mediator.log(serverObj.getIp()+" - Server expired (never registered via TCP)", true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes its client if it didn't send a UDP connect since the deadline.
+     */
+    private class ClientExpiry extends TimerWheel.Timeout {
+        private final long key;
+        /** IP if there is no key. */
+        private final String ip;
+        private final Client clientObj;
+
+        ClientExpiry(long key, String ip, Client clientObj) {
+            this.key = key;
+            this.ip = ip;
+            this.clientObj = clientObj;
+        }
+
+        @Override
+        protected void expire(long now) {
+            final boolean[] expired = {false};
+            UnaryOperator<Client> remap = current -> {
+                if (current != clientObj || getDeadline() > now) {
+                    return current;
+                }
+                expired[0] = true;
+                return null;
+            };
+            if (key != AddressKey.NONE) {
+                clientMap.computeIfPresent(key, remap);
+            } else {
+                otherClientMap.computeIfPresent(ip, (k, current) -> remap.apply(current));
+            }
+            if (expired[0]) {
+                expiredClients.increment();
+                if (Mediator.isLogged(true)) {
+                    String address = key != AddressKey.NONE ? AddressKey.toString(key) : ip;
+                    Mediator.log(address+" - Client expired (never connected via TCP)", true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The servers of the Registry at one generation (epoch). A snapshot never
+ * changes: It contains copies of the servers (without their connection), so
+ * any number of threads can read it without locks while the Registry changes.
+ * The lobby and the metrics read the servers from here.
+ *
+ * The next snapshot is made from the previous one: Every server keeps its
+ * position (slot), only the changed servers are copied again. Removed
+ * servers leave an empty slot until the Registry builds a new snapshot from
+ * scratch.
+ *
+ * Like the Registry, the snapshot has an index from data string to servers
+ * for the lobby filters. It is only built for the data strings that are
+ * filtered by, the next snapshot updates the indices that were built.
+ * With --lobby-columns, the lobby uses the servers as ServerColumns instead.
+ * They are also made on first use and updated by the next snapshots.
+ * @author Parakoopa
+ */
+public class RegistrySnapshot {
+
+    private static final int[] NONE = new int[0];
+
+    private final long generation;
+    /** System.nanoTime() when the snapshot was built. */
+    private final long built;
+    /** Copies of the servers, null for empty slots. */
+    private final Server[] servers;
+    private final int count;
+    /** Pool of the data strings of the Registry. */
+    private final StringPool strings;
+    /** Per data string: value to slots of the servers (ascending), built on first use. */
+    private final AtomicReferenceArray<Map<String, int[]>> index = new AtomicReferenceArray<>(8);
+    /** The servers in columns (or null), built on first use. Built while holding the lock of this. */
+    private volatile ServerColumns columns;
+
+    /**
+     * @param generation Generation of the Registry that was read before the servers
+     * @param servers Copies of the servers, null for empty slots
+     * @param count Number of servers
+     * @param strings Pool of the data strings of the Registry
+     */
+    RegistrySnapshot(long generation, Server[] servers, int count, StringPool strings) {
+        this.generation = generation;
+        this.built = System.nanoTime();
+        this.servers = servers;
+        this.count = count;
+        this.strings = strings;
+    }
+
+    /**
+     * Makes the next snapshot.
+     * @param generation Generation of the Registry that was read before the changes
+     * @param servers The servers of this snapshot with the changes (the slots stay the same)
+     * @param count Number of servers
+     * @param changed Slots that were changed, added or emptied
+     * @param changes Number of changed slots
+     * @return The next snapshot
+     */
+    RegistrySnapshot next(long generation, Server[] servers, int count, int[] changed, int changes) {
+        RegistrySnapshot next = new RegistrySnapshot(generation, servers, count, this.strings);
+        for (int field = 0; field < 8; field++) {
+            Map<String, int[]> fieldIndex = this.index.get(field);
+            if (fieldIndex == null) {
+                continue;
+            }
+            HashMap<String, int[]> updated = new HashMap<>(fieldIndex);
+            for (int i = 0; i < changes; i++) {
+                int slot = changed[i];
+                String before = data(this.servers, slot, field);
+                String after = data(servers, slot, field);
+                if (before.equals(after)) {
+                    continue;
+                }
+                if (!"".equals(before)) {
+                    int[] slots = remove(updated.getOrDefault(before, NONE), slot);
+                    if (slots.length == 0) {
+                        updated.remove(before);
+                    } else {
+                        updated.put(before, slots);
+                    }
+                }
+                if (!"".equals(after)) {
+                    updated.put(after, add(updated.getOrDefault(after, NONE), slot));
+                }
+            }
+            next.index.set(field, updated);
+        }
+        ServerColumns serverColumns;
+        synchronized (this) {
+            //Waits if they are made right now.
+            serverColumns = this.columns;
+        }
+        if (serverColumns != null) {
+            next.columns = serverColumns.next(servers, changed, changes);
+        }
+        return next;
+    }
+
+    /**
+     * Returns the generation of the Registry. The snapshot contains all
+     * changes up to this generation (and maybe a few later ones).
+     *
+     * @return The generation
+     */
+    public long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * @return System.nanoTime() when the snapshot was built
+     */
+    long getBuilt() {
+        return this.built;
+    }
+
+    /**
+     * @return Number of servers
+     */
+    public int getServerCount() {
+        return this.count;
+    }
+
+    /**
+     * Returns the servers as columns (--lobby-columns). They are made once on
+     * first use, the next snapshots only update the changed rows.
+     *
+     * @return The servers in columns
+     */
+    public ServerColumns getColumns() {
+        ServerColumns serverColumns = this.columns;
+        if (serverColumns == null) {
+            synchronized (this) {
+                serverColumns = this.columns;
+                if (serverColumns == null) {
+                    serverColumns = new ServerColumns(this.servers);
+                    this.columns = serverColumns;
+                }
+            }
+        }
+        return serverColumns;
+    }
+
+    /**
+     * @return The copies of the servers, null for empty slots. Don't change it.
+     */
+    Server[] getSlots() {
+        return this.servers;
+    }
+
+    /**
+     * Returns all valid servers that match the lobby filters, like
+     * Registry.findServers().
+     *
+     * @param filters The 8 data filters. An empty filter matches every server.
+     * @return The matching servers
+     */
+    public ArrayList<Server> findServers(String[] filters) {
+        filters = this.strings.canonical(filters);
+        //Only look at the servers of the filter with the fewest servers.
+        int[] candidates = null;
+        for (int i = 0; i < 8; i++) {
+            if (!"".equals(filters[i])) {
+                int[] servers = this.index(i).getOrDefault(filters[i], NONE);
+                if (candidates == null || servers.length < candidates.length) {
+                    candidates = servers;
+                }
+            }
+        }
+        ArrayList<Server> result = new ArrayList<>();
+        if (candidates == null) {
+            //No filters
+            for (Server serverObj : this.servers) {
+                if (serverObj != null && Registry.matches(serverObj, filters)) {
+                    result.add(serverObj);
+                }
+            }
+            return result;
+        }
+        for (int i : candidates) {
+            if (Registry.matches(this.servers[i], filters)) {
+                result.add(this.servers[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param field Data string (0-7)
+     * @return Index of the data string. Two threads might build it at the same time, both results are the same.
+     */
+    private Map<String, int[]> index(int field) {
+        Map<String, int[]> fieldIndex = this.index.get(field);
+        if (fieldIndex != null) {
+            return fieldIndex;
+        }
+        //Count the servers per value first, so every value gets an array of the right size.
+        HashMap<String, int[]> counts = new HashMap<>();
+        for (Server serverObj : this.servers) {
+            String data = serverObj == null ? "" : serverObj.getData(field + 1);
+            if (!"".equals(data)) {
+                counts.computeIfAbsent(data, k -> new int[1])[0]++;
+            }
+        }
+        HashMap<String, int[]> built = new HashMap<>(counts.size() * 4 / 3 + 1);
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            built.put(entry.getKey(), new int[entry.getValue()[0]]);
+            //From now on the counter is the next free position
+            entry.getValue()[0] = 0;
+        }
+        for (int i = 0; i < this.servers.length; i++) {
+            String data = this.servers[i] == null ? "" : this.servers[i].getData(field + 1);
+            if (!"".equals(data)) {
+                built.get(data)[counts.get(data)[0]++] = i;
+            }
+        }
+        this.index.set(field, built);
+        return built;
+    }
+
+    /**
+     * @return The data string of the slot, "" for empty slots
+     */
+    private static String data(Server[] servers, int slot, int field) {
+        if (slot >= servers.length || servers[slot] == null) {
+            return "";
+        }
+        return servers[slot].getData(field + 1);
+    }
+
+    /**
+     * @return Copy of the sorted slots with the slot
+     */
+    private static int[] add(int[] slots, int slot) {
+        int pos = Arrays.binarySearch(slots, slot);
+        if (pos >= 0) {
+            return slots;
+        }
+        pos = -pos - 1;
+        int[] result = new int[slots.length + 1];
+        System.arraycopy(slots, 0, result, 0, pos);
+        result[pos] = slot;
+        System.arraycopy(slots, pos, result, pos + 1, slots.length - pos);
+        return result;
+    }
+
+    /**
+     * @return Copy of the sorted slots without the slot
+     */
+    private static int[] remove(int[] slots, int slot) {
+        int pos = Arrays.binarySearch(slots, slot);
+        if (pos < 0) {
+            return slots;
+        }
+        int[] result = new int[slots.length - 1];
+        System.arraycopy(slots, 0, result, 0, pos);
+        System.arraycopy(slots, pos + 1, result, pos, slots.length - pos - 1);
+        return result;
+    }
+}
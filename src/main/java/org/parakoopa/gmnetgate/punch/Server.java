@@ -22,10 +22,11 @@
 package org.parakoopa.gmnetgate.punch;
 
 import com.google.gson.annotations.Expose;
-import java.net.Socket;
 
 /**
- *
+ * A registered game server.
+ * The fields are volatile, because they are written by the thread of the
+ * server's connection and read by lobby requests on other threads.
  * @author Marco
  */
 public class Server {
@@ -33,29 +34,48 @@ public class Server {
      * Contains the IP of this server
      */
     @Expose private String ip = "";
+    /**
+     * Key of the IP in the Registry (see AddressKey).
+     */
+    private final long key;
      /**
      * Contains the Ports of the Server.
      * A port is assigned to an ip, so only one ip per server is possible.
      */
-    private Integer port = 0;
+    private volatile int port = 0;
     
     /**
-     * Contains the TCP Sockets of the Server.
+     * Contains the TCP connection of the Server.
      * For sending the connection requests to the servers.
      */
-    private Socket tcp_socket = null;
+    private volatile Connection connection = null;
     /**
      * The 8 data strings.
      */
-    @Expose private String data1 = "";
-    @Expose private String data2 = "";
-    @Expose private String data3 = "";
-    @Expose private String data4 = "";
-    @Expose private String data5 = "";
-    @Expose private String data6 = "";
-    @Expose private String data7 = "";
-    @Expose private String data8 = "";
+    @Expose private volatile String data1 = "";
+    @Expose private volatile String data2 = "";
+    @Expose private volatile String data3 = "";
+    @Expose private volatile String data4 = "";
+    @Expose private volatile String data5 = "";
+    @Expose private volatile String data6 = "";
+    @Expose private volatile String data7 = "";
+    @Expose private volatile String data8 = "";
     
+    /**
+     * Set by the Registry when the server is removed. Guarded by the server object.
+     */
+    private boolean removed = false;
+
+    /**
+     * Removes the server if it doesn't register via TCP in time (or null).
+     */
+    private TimerWheel.Timeout expiry = null;
+
+    /**
+     * Position in the snapshots of the Registry (or -1). Guarded by the snapshot lock of the Registry.
+     */
+    private int snapshotSlot = -1;
+
     /**
      * Time the server was created
      */
@@ -64,30 +84,96 @@ public class Server {
     public Server(String ip) {
         this.createdTime = System.currentTimeMillis() / 1000L;
         this.ip = ip;
+        this.key = AddressKey.parse(ip);
+    }
+
+    /**
+     * A server that isn't in the Registry (like the rows of ServerColumns).
+     * @param ip IP of the server
+     * @param key Key of the IP (see AddressKey)
+     * @param createdTime Time the server was created (seconds)
+     * @param port Port of the server
+     * @param data The 8 data strings
+     */
+    Server(String ip, long key, long createdTime, int port, String[] data) {
+        this.createdTime = createdTime;
+        this.ip = ip;
+        this.key = key;
+        this.port = port;
+        this.data1 = data[0];
+        this.data2 = data[1];
+        this.data3 = data[2];
+        this.data4 = data[3];
+        this.data5 = data[4];
+        this.data6 = data[5];
+        this.data7 = data[6];
+        this.data8 = data[7];
+    }
+
+    /**
+     * Copy for a RegistrySnapshot: Only IP, port, data strings and created time.
+     */
+    private Server(Server serverObj) {
+        this.ip = serverObj.ip;
+        this.key = serverObj.key;
+        this.port = serverObj.port;
+        this.data1 = serverObj.data1;
+        this.data2 = serverObj.data2;
+        this.data3 = serverObj.data3;
+        this.data4 = serverObj.data4;
+        this.data5 = serverObj.data5;
+        this.data6 = serverObj.data6;
+        this.data7 = serverObj.data7;
+        this.data8 = serverObj.data8;
+        this.createdTime = serverObj.createdTime;
+    }
+
+    /**
+     * Copies the server without its connection. Hold the lock of the server,
+     * so the copy doesn't contain half of a reg2.
+     * @return The copy
+     */
+    Server copy() {
+        return new Server(this);
     }
     
+    /**
+     * Contains the IP of this server
+     */
+    public String getIp() {
+        return ip;
+    }
+
      /**
      * Contains the Ports of the Server.
      * A port is assigned to an ip, so only one ip per server is possible.
      */
-    public Integer getPort() {
+    public int getPort() {
         return port;
     }
 
-    public void setPort(Integer port) {
+    public void setPort(int port) {
         this.port = port;
     }
 
     /**
-     * Contains the TCP Sockets of the Server.
+     * Key of the IP in the Registry (see AddressKey).
+     * AddressKey.NONE if it isn't an IPv4 address.
+     */
+    public long getKey() {
+        return key;
+    }
+
+    /**
+     * Contains the TCP connection of the Server.
      * For sending the connection requests to the servers.
      */
-    public Socket getTCPsocket() {
-        return tcp_socket;
+    public Connection getConnection() {
+        return connection;
     }
 
-    public void setTCPsocket(Socket tcp_socket) {
-        this.tcp_socket = tcp_socket;
+    public void setConnection(Connection connection) {
+        this.connection = connection;
     }
 
     public String getData1() {
@@ -154,6 +240,72 @@ public class Server {
         this.data8 = data8;
     }
 
+    /**
+     * Returns one of the 8 data strings.
+     * @param field Number of the data string (1-8)
+     * @return The data string
+     */
+    public String getData(int field) {
+        switch (field) {
+            case 1: return data1;
+            case 2: return data2;
+            case 3: return data3;
+            case 4: return data4;
+            case 5: return data5;
+            case 6: return data6;
+            case 7: return data7;
+            case 8: return data8;
+            default: throw new IllegalArgumentException("No data field " + field);
+        }
+    }
+
+    /**
+     * Sets one of the 8 data strings.
+     * For servers in the Registry use Registry.setData(), so the lobby index is updated.
+     * @param field Number of the data string (1-8)
+     * @param data The data string
+     */
+    public void setData(int field, String data) {
+        switch (field) {
+            case 1: data1 = data; break;
+            case 2: data2 = data; break;
+            case 3: data3 = data; break;
+            case 4: data4 = data; break;
+            case 5: data5 = data; break;
+            case 6: data6 = data; break;
+            case 7: data7 = data; break;
+            case 8: data8 = data; break;
+            default: throw new IllegalArgumentException("No data field " + field);
+        }
+    }
+
+    /**
+     * Whether or not this server was removed from the Registry.
+     */
+    boolean isRemoved() {
+        return removed;
+    }
+
+    void setRemoved(boolean removed) {
+        this.removed = removed;
+    }
+
+    int getSnapshotSlot() {
+        return snapshotSlot;
+    }
+
+    void setSnapshotSlot(int snapshotSlot) {
+        this.snapshotSlot = snapshotSlot;
+    }
+
+    TimerWheel.Timeout getExpiry() {
+        return expiry;
+    }
+
+    void setExpiry(TimerWheel.Timeout expiry) {
+        this.expiry = expiry;
+    }
+
     public long getCreatedTime() {
         return createdTime;
     }
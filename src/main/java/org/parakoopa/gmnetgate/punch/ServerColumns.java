@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The servers of a RegistrySnapshot in columns instead of objects: The data
+ * strings are numbers (codes) in a dictionary, the lobby filters compare
+ * ints in arrays instead of following the fields of every server object.
+ * Sorting works on the codes and times too, Server objects are only made for
+ * the rows that are sent (see view()).
+ *
+ * The rows are the slots of the snapshot, empty slots are skipped. The
+ * columns are split into chunks of 1024 rows; the columns of the next
+ * snapshot share the chunks that didn't change and copy only the others
+ * (see next()), like the index of the snapshot. The dictionary is shared
+ * as well.
+ * Never changes after it was built, so any number of threads can read it.
+ * @author Parakoopa
+ */
+public class ServerColumns {
+
+    /** Bits of the row in a sort key. */
+    private static final int ROW_BITS = 24;
+    private static final long ROW_MASK = (1L << ROW_BITS) - 1;
+    /** Largest value of the sort value in a sort key. */
+    private static final long VALUE_MASK = (1L << (63 - ROW_BITS)) - 1;
+    /** Rows per chunk. */
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    /** Code of the data strings of empty rows. */
+    private static final int EMPTY = -1;
+
+    private final Dictionary dictionary;
+    /** Code to string, for the codes below dictionarySize. */
+    private final String[] strings;
+    private final int dictionarySize;
+    private final Chunk[] chunks;
+    /** Number of rows (slots), including the empty ones. */
+    private final int slots;
+    /** Number of servers. */
+    private final int rows;
+    /** Code of "<INV>" or -1. */
+    private final int invalid;
+
+    /**
+     * @param servers The servers, null entries are empty rows
+     * @throws IllegalArgumentException If there are 2^24 rows or more
+     */
+    public ServerColumns(Server[] servers) {
+        if (servers.length > ROW_MASK) {
+            throw new IllegalArgumentException("Too many servers for the columns: " + servers.length);
+        }
+        Dictionary newDictionary = new Dictionary();
+        Chunk[] newChunks = new Chunk[chunkCount(servers.length)];
+        int count = 0;
+        for (int c = 0; c < newChunks.length; c++) {
+            newChunks[c] = new Chunk();
+        }
+        for (int row = 0; row < servers.length; row++) {
+            if (servers[row] != null) {
+                newChunks[row >>> CHUNK_BITS].set(row & CHUNK_MASK, servers[row], newDictionary);
+                count++;
+            }
+        }
+        this.dictionary = newDictionary;
+        this.strings = newDictionary.strings;
+        this.dictionarySize = newDictionary.size;
+        this.chunks = newChunks;
+        this.slots = servers.length;
+        this.rows = count;
+        this.invalid = this.code("<INV>");
+    }
+
+    private ServerColumns(Dictionary dictionary, Chunk[] chunks, int slots, int rows) {
+        this.dictionary = dictionary;
+        this.strings = dictionary.strings;
+        this.dictionarySize = dictionary.size;
+        this.chunks = chunks;
+        this.slots = slots;
+        this.rows = rows;
+        this.invalid = this.code("<INV>");
+    }
+
+    /**
+     * Makes the columns of the next snapshot. Only the chunks of the changed
+     * rows are copied. If the dictionary has too many strings that no server
+     * uses anymore, the columns are made from scratch instead.
+     * Only one thread at a time may call this (the one that builds the snapshots).
+     * @param servers The servers of the next snapshot, null entries are empty rows (the rows stay the same)
+     * @param changed Rows that were changed, added or emptied
+     * @param changes Number of changed rows
+     * @return The next columns
+     */
+    ServerColumns next(Server[] servers, int[] changed, int changes) {
+        if (servers.length > ROW_MASK || this.dictionary.isWasteful()) {
+            return new ServerColumns(servers);
+        }
+        Chunk[] newChunks = Arrays.copyOf(this.chunks, chunkCount(servers.length));
+        int count = this.rows;
+        for (int n = 0; n < changes; n++) {
+            int row = changed[n];
+            int c = row >>> CHUNK_BITS;
+            Chunk chunk = newChunks[c];
+            if (chunk == null) {
+                chunk = new Chunk();
+                newChunks[c] = chunk;
+            } else if (c < this.chunks.length && chunk == this.chunks[c]) {
+                //Still shared with these columns
+                chunk = chunk.copy();
+                newChunks[c] = chunk;
+            }
+            int i = row & CHUNK_MASK;
+            if (chunk.ip[i] != null) {
+                chunk.clear(i, this.dictionary);
+                count--;
+            }
+            if (servers[row] != null) {
+                chunk.set(i, servers[row], this.dictionary);
+                count++;
+            }
+        }
+        return new ServerColumns(this.dictionary, newChunks, servers.length, count);
+    }
+
+    /**
+     * @return Number of servers
+     */
+    public int getRows() {
+        return this.rows;
+    }
+
+    /**
+     * @return Number of strings in the dictionary (including the ones no server uses anymore)
+     */
+    public int getDictionarySize() {
+        return this.dictionarySize;
+    }
+
+    /**
+     * Returns the rows of all valid servers that match the lobby filters, like
+     * Registry.findServers().
+     *
+     * @param filters The 8 data filters. An empty filter matches every server.
+     * @return The matching rows, ascending
+     */
+    public int[] find(String[] filters) {
+        int[] fields = new int[8];
+        int[] wanted = new int[8];
+        int active = 0;
+        for (int field = 0; field < 8; field++) {
+            if (!"".equals(filters[field])) {
+                int code = this.code(filters[field]);
+                if (code < 0) {
+                    //No server has this string
+                    return new int[0];
+                }
+                fields[active] = field;
+                wanted[active++] = code;
+            }
+        }
+        int[] result = new int[this.rows];
+        int found = 0;
+        for (int c = 0; c < this.chunks.length; c++) {
+            Chunk chunk = this.chunks[c];
+            int[] data1 = chunk.data[0];
+            int base = c << CHUNK_BITS;
+            int end = Math.min(CHUNK_SIZE, this.slots - base);
+            rows:
+            for (int i = 0; i < end; i++) {
+                if (data1[i] == EMPTY || data1[i] == this.invalid) {
+                    continue;
+                }
+                for (int k = 0; k < active; k++) {
+                    if (chunk.data[fields[k]][i] != wanted[k]) {
+                        continue rows;
+                    }
+                }
+                result[found++] = base + i;
+            }
+        }
+        return Arrays.copyOf(result, found);
+    }
+
+    /**
+     * Sorts rows in the order of Lobby.getComparator(). Equal servers keep
+     * their order, like in a stable sort.
+     * @param rows The rows (ascending, like from find())
+     * @param filter_sortby "date" (default) or "data1"-"data8"
+     * @param filter_sortby_dir "ASC" or anything else
+     * @return The sorted rows
+     */
+    public int[] sort(int[] rows, String filter_sortby, String filter_sortby_dir) {
+        int field = -1;
+        if (filter_sortby.length() == 5 && filter_sortby.startsWith("data")
+                && filter_sortby.charAt(4) >= '1' && filter_sortby.charAt(4) <= '8') {
+            field = filter_sortby.charAt(4) - '1';
+        }
+        long[] values = field >= 0 ? this.ranks(rows, field) : null;
+        //Like the comparator: "ASC" turns the order around.
+        boolean reverse = "ASC".equals(filter_sortby_dir);
+        //Sort value and row in one long, so a primitive sort can be used.
+        long[] keys = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            int row = rows[i];
+            long value = field >= 0 ? values[i] : this.chunks[row >>> CHUNK_BITS].createdTime[row & CHUNK_MASK] & VALUE_MASK;
+            if (reverse) {
+                value = VALUE_MASK - value;
+            }
+            keys[i] = (value << ROW_BITS) | row;
+        }
+        Arrays.sort(keys);
+        int[] sorted = new int[rows.length];
+        for (int i = 0; i < keys.length; i++) {
+            sorted[i] = (int) (keys[i] & ROW_MASK);
+        }
+        return sorted;
+    }
+
+    /**
+     * @param row The row
+     * @return A new server object with the values of the row (without a connection)
+     */
+    public Server view(int row) {
+        Chunk chunk = this.chunks[row >>> CHUNK_BITS];
+        int i = row & CHUNK_MASK;
+        String[] values = new String[8];
+        for (int field = 0; field < 8; field++) {
+            values[field] = this.strings[chunk.data[field][i]];
+        }
+        return new Server(chunk.ip[i], chunk.key[i], chunk.createdTime[i], chunk.port[i], values);
+    }
+
+    /**
+     * @return Code of the string, -1 if no row of these columns can have it
+     */
+    private int code(String value) {
+        Integer code = this.dictionary.codes.get(value);
+        //Strings that were added for later columns aren't used by these.
+        return code == null || code >= this.dictionarySize ? -1 : code;
+    }
+
+    /**
+     * Ranks the data strings of the rows in the order of String.compareTo.
+     * Uses the ranks of the whole dictionary, which are made again after
+     * strings were added. If the rows are few compared to the dictionary
+     * (and it keeps changing), only their strings are ranked instead.
+     * @return Rank of the string of every row
+     */
+    private long[] ranks(int[] rows, int field) {
+        int[] codes = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            codes[i] = this.chunks[rows[i] >>> CHUNK_BITS].data[field][rows[i] & CHUNK_MASK];
+        }
+        int[] rank = this.dictionary.getRanks(this.dictionarySize);
+        if (rank == null && (rows.length * 4 >= this.dictionarySize || !this.dictionary.rankRowsOnly(this.dictionarySize))) {
+            rank = this.dictionary.makeRanks(this.strings, this.dictionarySize);
+        }
+        long[] values = new long[rows.length];
+        if (rank != null) {
+            for (int i = 0; i < rows.length; i++) {
+                values[i] = rank[codes[i]];
+            }
+            return values;
+        }
+        //The distinct codes, ascending
+        int[] distinct = codes.clone();
+        Arrays.sort(distinct);
+        int count = 0;
+        for (int i = 0; i < distinct.length; i++) {
+            if (i == 0 || distinct[i] != distinct[i - 1]) {
+                distinct[count++] = distinct[i];
+            }
+        }
+        String[] sortedStrings = new String[count];
+        for (int i = 0; i < count; i++) {
+            sortedStrings[i] = this.strings[distinct[i]];
+        }
+        Arrays.sort(sortedStrings);
+        rank = new int[count];
+        for (int i = 0; i < count; i++) {
+            //Equal strings don't exist in the dictionary, so every rank is unique.
+            rank[i] = Arrays.binarySearch(sortedStrings, this.strings[distinct[i]]);
+        }
+        for (int i = 0; i < rows.length; i++) {
+            values[i] = rank[Arrays.binarySearch(distinct, 0, count, codes[i])];
+        }
+        return values;
+    }
+
+    private static int chunkCount(int slots) {
+        return (slots + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+    }
+
+    /**
+     * Up to 1024 rows of all columns.
+     */
+    private static final class Chunk {
+        private final String[] ip;
+        /** Keys of the IPs (see AddressKey). */
+        private final long[] key;
+        private final long[] createdTime;
+        private final int[] port;
+        /** Codes of the 8 data strings: data[field][row]. */
+        private final int[][] data;
+
+        Chunk() {
+            this.ip = new String[CHUNK_SIZE];
+            this.key = new long[CHUNK_SIZE];
+            this.createdTime = new long[CHUNK_SIZE];
+            this.port = new int[CHUNK_SIZE];
+            this.data = new int[8][CHUNK_SIZE];
+            for (int[] codes : this.data) {
+                Arrays.fill(codes, EMPTY);
+            }
+        }
+
+        private Chunk(Chunk other) {
+            this.ip = other.ip.clone();
+            this.key = other.key.clone();
+            this.createdTime = other.createdTime.clone();
+            this.port = other.port.clone();
+            this.data = new int[8][];
+            for (int field = 0; field < 8; field++) {
+                this.data[field] = other.data[field].clone();
+            }
+        }
+
+        Chunk copy() {
+            return new Chunk(this);
+        }
+
+        void set(int i, Server serverObj, Dictionary dictionary) {
+            this.ip[i] = serverObj.getIp();
+            this.key[i] = serverObj.getKey();
+            this.createdTime[i] = serverObj.getCreatedTime();
+            this.port[i] = serverObj.getPort();
+            for (int field = 0; field < 8; field++) {
+                String value = serverObj.getData(field + 1);
+                this.data[field][i] = dictionary.acquire(value == null ? "" : value);
+            }
+        }
+
+        void clear(int i, Dictionary dictionary) {
+            this.ip[i] = null;
+            for (int field = 0; field < 8; field++) {
+                dictionary.release(this.data[field][i]);
+                this.data[field][i] = EMPTY;
+            }
+        }
+    }
+
+    /**
+     * The data strings and their codes, shared by the columns of the
+     * following snapshots. Only the thread that builds the snapshots adds
+     * strings, behind the codes that older columns know, so these can still
+     * read it. Codes of strings that no row uses anymore are not reused
+     * (older columns might still show them), so the columns are made from
+     * scratch once there are too many of them.
+     */
+    private static final class Dictionary {
+        private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+        /** Code to string. Replaced by a larger copy when it's full. */
+        private String[] strings = new String[64];
+        private int size = 0;
+        /** Number of rows that use the code. */
+        private int[] uses = new int[64];
+        /** Number of codes that no row uses. */
+        private int unused = 0;
+        /** Position of every code in the order of the strings, for the first ranks.length codes. */
+        private volatile int[] ranks;
+        /** Dictionary size of the last queries that only ranked their rows, and their number. */
+        private volatile int rowsOnlySize = -1;
+        private volatile int rowsOnly = 0;
+
+        int acquire(String value) {
+            Integer code = this.codes.get(value);
+            if (code == null) {
+                if (this.size == this.strings.length) {
+                    this.strings = Arrays.copyOf(this.strings, this.size * 2);
+                    this.uses = Arrays.copyOf(this.uses, this.size * 2);
+                }
+                code = this.size;
+                this.strings[this.size++] = value;
+                this.codes.put(value, code);
+            } else if (this.uses[code] == 0) {
+                this.unused--;
+            }
+            this.uses[code]++;
+            return code;
+        }
+
+        void release(int code) {
+            if (--this.uses[code] == 0) {
+                this.unused++;
+            }
+        }
+
+        /**
+         * @param size Number of codes that are needed
+         * @return The ranks or null if they don't contain all of these codes
+         */
+        int[] getRanks(int size) {
+            int[] rank = this.ranks;
+            return rank != null && rank.length >= size ? rank : null;
+        }
+
+        /**
+         * Decides if a query ranks only the strings of its rows. Once the
+         * dictionary stayed the same for a few of these queries, the whole
+         * dictionary is ranked instead. Not exact with several threads, it
+         * doesn't need to be.
+         * @param size Number of codes of the query's columns
+         * @return True if the query should rank only its rows
+         */
+        boolean rankRowsOnly(int size) {
+            if (this.rowsOnlySize != size) {
+                this.rowsOnlySize = size;
+                this.rowsOnly = 0;
+            }
+            return ++this.rowsOnly <= 8;
+        }
+
+        /**
+         * Ranks the codes, unless another thread did it already.
+         * Later codes don't change the order of the earlier ones, so the ranks
+         * work for all columns with up to size codes.
+         * @param strings Code to string, for at least size codes
+         * @param size Number of codes
+         * @return The ranks
+         */
+        synchronized int[] makeRanks(String[] strings, int size) {
+            int[] rank = this.getRanks(size);
+            if (rank != null) {
+                return rank;
+            }
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> strings[a].compareTo(strings[b]));
+            rank = new int[size];
+            for (int i = 0; i < size; i++) {
+                //Equal strings don't exist in the dictionary, so every rank is unique.
+                rank[order[i]] = i;
+            }
+            this.ranks = rank;
+            return rank;
+        }
+
+        /**
+         * @return True if more than half of the codes aren't used anymore
+         */
+        boolean isWasteful() {
+            return this.unused > CHUNK_SIZE && this.unused * 2 > this.size;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deduplicates the data strings of the servers. Most servers share a few
+ * values (game name, version...), but every reg2 reads new String objects
+ * for them. With the pool, all servers use the same object for the same
+ * value, so the copies can be collected, and lobby filters that use the
+ * pooled object too find equal strings by reference.
+ *
+ * Every pooled string counts the servers that use it and is removed when
+ * the last one changes it or is removed. The pool has a maximum size, if
+ * it is full new strings are not pooled. Empty strings are never pooled.
+ * @author Parakoopa
+ */
+public class StringPool {
+
+    /** Default maximum number of strings. */
+    public static final int DEFAULT_SIZE = 65536;
+
+    private final int maxSize;
+    /** Pooled strings. An entry is only changed inside compute() of its key. */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxSize Maximum number of strings (0 disables the pool)
+     */
+    public StringPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the pooled string with the same value and counts one more user.
+     * Every call must be followed by one release() of the result, once it isn't used anymore.
+     * @param value The string
+     * @return The pooled string, or the string itself if it isn't pooled
+     */
+    public String intern(String value) {
+        if (this.maxSize == 0 || value == null || value.isEmpty()) {
+            return value;
+        }
+        final boolean[] hit = {false};
+        Entry entry = this.entries.compute(value, (k, current) -> {
+            if (current != null) {
+                current.refs++;
+                hit[0] = true;
+                return current;
+            }
+            if (this.size.get() >= this.maxSize) {
+                //Full
+                return null;
+            }
+            this.size.incrementAndGet();
+            return new Entry(value);
+        });
+        if (hit[0]) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+        }
+        return entry != null ? entry.value : value;
+    }
+
+    /**
+     * A user of the string doesn't use it anymore. The string is removed from
+     * the pool when nobody uses it. Strings that aren't pooled are ignored.
+     * @param value A string returned by intern()
+     */
+    public void release(String value) {
+        if (this.maxSize == 0 || value == null || value.isEmpty()) {
+            return;
+        }
+        this.entries.computeIfPresent(value, (k, current) -> {
+            if (current.value != value) {
+                //An equal string that wasn't pooled
+                return current;
+            }
+            if (--current.refs == 0) {
+                this.size.decrementAndGet();
+                return null;
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Returns the pooled string with the same value, without counting a user
+     * (for the lobby filters).
+     * @param value The string
+     * @return The pooled string, or the string itself if it isn't pooled
+     */
+    public String canonical(String value) {
+        if (this.maxSize == 0 || value == null || value.isEmpty()) {
+            return value;
+        }
+        Entry entry = this.entries.get(value);
+        return entry != null ? entry.value : value;
+    }
+
+    /**
+     * @param filters Lobby filters
+     * @return The filters with the pooled strings
+     */
+    public String[] canonical(String[] filters) {
+        String[] result = filters.clone();
+        for (int i = 0; i < 8; i++) {
+            result[i] = this.canonical(filters[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return Number of pooled strings
+     */
+    public int getSize() {
+        return this.size.get();
+    }
+
+    /**
+     * @return Number of strings that were replaced by a pooled one
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return Number of strings that were added to the pool or not pooled because it was full
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    private static class Entry {
+
+        private final String value;
+        /** Number of users. Only changed inside compute(). */
+        private int refs = 1;
+
+        private Entry(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Executes the TCP commands.
+ * The transports (TCPConnection and the NIO loops) read the command line and
+ * the argument lines and hand them over to this class, which writes the
+ * responses to the connection.
+ * @author Parakoopa
+ */
+public class TCPCommandHandler {
+
+    private final Mediator main;
+    private final Metrics metrics;
+    /** Builds the lobby responses. */
+    private final Lobby lobby;
+    /** Sends the changes of the lobby to subscribed clients. */
+    private final LobbySubscriptions subscriptions;
+    /** Game Maker Studio seperates strings in buffers with this char (buffer_string). */
+    private char gm_string_seperator = 0;
+
+    /**
+     * @param main Mediator class instance that this server was created with.
+     */
+    public TCPCommandHandler(Mediator main) {
+        this.main = main;
+        this.metrics = main.getMetrics();
+        this.lobby = new Lobby(main.getRegistry(), Mediator.getLobbyCacheSize(), this.metrics.getLobbyBuild());
+        this.subscriptions = new LobbySubscriptions(main.getRegistry());
+    }
+
+    /**
+     * @return The lobby of this server
+     */
+    public Lobby getLobby() {
+        return lobby;
+    }
+
+    /**
+     * @return The lobby subscriptions of this server
+     */
+    public LobbySubscriptions getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * Returns the number of lines that follow a command line.
+     * @param command The command
+     * @return Number of argument lines
+     */
+    public static int getArgumentCount(String command) {
+        switch (command) {
+            case "reg2":
+                //Version and the 8 data strings
+                return 9;
+            case "connect":
+                //Requested server
+                return 1;
+            case "lobby2":
+            case "lobby3":
+                //8 data filters, sortby, sortby direction and limit
+                if (Mediator.isLobby() || Mediator.isTesting()) {
+                    return 11;
+                }
+                return 0;
+            case "subscribe":
+                //8 data filters
+                if (Mediator.isLobby() || Mediator.isTesting()) {
+                    return 8;
+                }
+                return 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns whether or not a command builds the lobby. The NIO transport runs
+     * these on a worker thread, so they don't stall the other connections of
+     * the event loop.
+     * @param command The command
+     * @return True for lobby2, lobby3 and subscribe
+     */
+    public static boolean isExpensive(String command) {
+        switch (command) {
+            case "lobby2":
+            case "lobby3":
+            case "subscribe":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Executes a command and responds to it.
+     * @param conn Connection the command was recieved on.
+     * @param command The (cleaned) command line.
+     * @param args The (cleaned) argument lines, see getArgumentCount.
+     * @throws IOException If the connection is broken.
+     */
+    public void handle(Connection conn, String command, String[] args) throws IOException {
+        String debug_string = conn.getDebugString();
+        Server serverObj;
+        this.metrics.countTcp(command);
+        switch (command) {
+            case "reg2":
+                //A server wants to register/reregister. We put the connection in the server object so we can use it later.
+                //Check version compatibility
+                String version = args[0];
+                if (Mediator.isLogged(true)) {
+                    Mediator.log(debug_string+" Server wants to register!",true);
+                    Mediator.log(debug_string+" Version: "+version,true);
+                }
+                if (!(Mediator.versionCompare(version,Mediator.getUdphpMin()) >= 0)) {
+                    //For now just silently end the connection.
+                    //Proper error messages will follow in the next release
+                    if (Mediator.isLogged(true)) {
+                        Mediator.log(debug_string+" Server not accepted. Version too old.",true);
+                    }
+                    conn.close();
+                    return;
+                }
+                if (Mediator.isLogged(false)) {
+                    Mediator.log(debug_string+" Server registered!",false);
+                }
+
+                Registry registry = this.main.getRegistry();
+                conn.setServer(true);
+                serverObj = registry.registerServer(conn);
+                //Write the 8 data strings
+                registry.setData(serverObj, Arrays.copyOfRange(args, 1, 9));
+                if (Mediator.isLogged(true)) {
+                    for (int field = 1; field <= 8; field++) {
+                        Mediator.log(debug_string+" Data "+field+": "+serverObj.getData(field),true);
+                    }
+                }
+            break;
+            case "connect":
+                //A client wants to connect. Now the interesting part begins
+                //The argument contains the requested IP adress.
+                long start = System.nanoTime();
+                String requested_server = args[0];
+                String debug_string2 = Mediator.isLogged(false) ? debug_string + " Client <-> "+requested_server+" ->" : null;
+                if (Mediator.isLogged(false)) {
+                    Mediator.log(debug_string2+" Connecting...",false);
+                }
+                serverObj = this.main.getRegistry().findServer(requested_server);
+                if (serverObj != null) {
+                    //SERVER FOUND
+                    //get server connection from the server object (stored above)
+                    //(null if the server is only known via UDP)
+                    Connection gameserver = serverObj.getConnection();
+                    if (gameserver != null && !gameserver.isClosed()) {
+                        String connect_to_server = requested_server;
+                        //Get server port
+                        int connect_to_port = serverObj.getPort();
+                        //Get client port
+                        Client clientObj = this.main.getRegistry().getClient(conn);
+                        int connect_to_port_server = clientObj.getPort();
+                        //We will contact the server with its connection.
+                        ByteArrayOutputStream bb_server = new ByteArrayOutputStream();
+                        bb_server.write((byte) 255);
+                        bb_server.write((conn.getHostAddress()+this.gm_string_seperator).getBytes());
+                        bb_server.write(String.valueOf(connect_to_port_server+this.gm_string_seperator).getBytes());
+                        //Queue buffer for the server. Its writer sends it, we don't wait for the server.
+                        if (Mediator.isLogged(true)) {
+                            Mediator.log(debug_string2+" Found server",true);
+                            Mediator.log(debug_string2+" Send client port "+connect_to_port_server+" to server",true);
+                        }
+                        if (gameserver.queue(bb_server.toByteArray())) {
+                            //Send server port to client
+                            if (Mediator.isLogged(true)) {
+                                Mediator.log(debug_string2+" Send server port "+connect_to_port+" to client",true);
+                            }
+                            ByteArrayOutputStream bb = new ByteArrayOutputStream();
+                            bb.write((byte) 255);
+                            bb.write((connect_to_server+this.gm_string_seperator).getBytes());
+                            bb.write((String.valueOf(connect_to_port)+this.gm_string_seperator).getBytes());
+                            //Send buffer to client
+                            conn.send(bb.toByteArray());
+                            this.metrics.countConnect(Metrics.CONNECTED);
+                            this.metrics.getConnectRelay().recordSince(start);
+                            //We are done! Client and Server now connect to each other and the hole is punched!
+                            if (Mediator.isLogged(false)) {
+                                Mediator.log(debug_string2+" CONNECTED!",false);
+                            }
+                        } else {
+                            //SERVER FOUND BUT IT DOESN'T READ (write queue full)
+                            if (Mediator.isLogged(false)) {
+                                Mediator.log(debug_string+" CONNECTION FAILED - Server not reachable (too many waiting messages)",false);
+                            }
+                            this.metrics.countConnect(Metrics.SERVER_UNREACHABLE);
+                            conn.send(new byte[] {(byte) 254});
+                        }
+                    } else {
+                        //SERVER FOUND BUT SOCKET IS DEAD (OR THERE IS NONE)
+                        if (Mediator.isLogged(false)) {
+                            Mediator.log(debug_string+" CONNECTION FAILED - Server not reachable",false);
+                        }
+                        this.metrics.countConnect(Metrics.SERVER_UNREACHABLE);
+                        conn.send(new byte[] {(byte) 254});
+                    }
+                } else {
+                    //SERVER NOT FOUND
+                    if (Mediator.isLogged(false)) {
+                        Mediator.log(debug_string+" CONECTION FAILED - Server not found",false);
+                    }
+                    this.metrics.countConnect(Metrics.SERVER_NOT_FOUND);
+                    conn.send(new byte[] {(byte) 254});
+                }
+                this.main.getRegistry().destroyClient(conn);
+            break;
+            case "lobby2":
+                if (Mediator.isLobby() || Mediator.isTesting()) {
+                    if (Mediator.isLogged(true)) {
+                        Mediator.log(debug_string+" Sending lobby based on requested filters",true);
+                    }
+                    conn.send(this.lobby.lobby2(args));
+                }
+            break;
+            case "lobby3":
+                if (Mediator.isLobby() || Mediator.isTesting()) {
+                    if (Mediator.isLogged(true)) {
+                        Mediator.log(debug_string+" Sending binary lobby based on requested filters",true);
+                    }
+                    conn.send(this.lobby.lobby3(args));
+                }
+            break;
+            case "subscribe":
+                if (Mediator.isLobby() || Mediator.isTesting()) {
+                    if (Mediator.isLogged(true)) {
+                        Mediator.log(debug_string+" Subscribing to the lobby based on requested filters",true);
+                    }
+                    conn.enableWriteQueue();
+                    this.subscriptions.subscribe(conn, args);
+                }
+            break;
+            case "unsubscribe":
+                this.subscriptions.unsubscribe(conn);
+            break;
+            case "istesting":
+                if (Mediator.isTesting()) {
+                    if (Mediator.isLogged(true)) {
+                        Mediator.log(debug_string+" Sending if testing is enabled",true);
+                    }
+                    conn.send(new byte[] {(byte) 248, (byte) 1});
+                } else {
+                    conn.send(new byte[] {(byte) 248, (byte) 0});
+                }
+            break;
+            case "testinginfos":
+                if (Mediator.isTesting()) {
+                    ByteArrayOutputStream bb = new ByteArrayOutputStream();
+                    bb.write((byte) 247);
+                    bb.write(Mediator.getName().getBytes());
+                    bb.write(10);
+                    bb.write(Mediator.getVersion().getBytes());
+                    bb.write(10);
+                    bb.write(Mediator.getUdphpMin().getBytes());
+                    bb.write(10);
+                    conn.send(bb.toByteArray());
+                    if (Mediator.isLogged(true)) {
+                        Mediator.log(debug_string+" Sending testing information",true);
+                    }
+                } else {
+                    conn.send(new byte[] {(byte) 247, (byte) 0});
+                }
+            break;
+            case "version":
+                ByteArrayOutputStream bb = new ByteArrayOutputStream();
+                bb.write((byte) 246);
+                bb.write(Mediator.getVersion().getBytes());
+                bb.write(10);
+                conn.send(bb.toByteArray());
+                if (Mediator.isLogged(true)) {
+                    Mediator.log(debug_string+" Sending version information",true);
+                }
+            break;
+            default:
+                //Ignore unknown commands (client disconnection will cause an unknown command)
+            break;
+        }
+    }
+}
@@ -21,31 +21,51 @@
  */
 package org.parakoopa.gmnetgate.punch;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStreamReader;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Handles incoming TCP connections.
  * Stores server sockets and on client request send server ports to client and
  * client ports to server via the stored socket.
+ * This is the default transport, that uses one thread per connection. The commands
+ * itself are handled by TCPCommandHandler.
+ * Game server connections get heartbeats (see Heartbeat) and a write queue: Other threads (clients that
+ * connect to the server) only queue their messages, a writer thread sends
+ * them in order. Like this a game server that doesn't read can't block them.
+ * The writer lives as long as the connection and waits for the queue when
+ * there is nothing to send. When the peer ends the connection, the writer
+ * still sends what is queued (for at most --write-timeout) before the socket
+ * is closed.
+ * Lobby subscriptions get a write queue as well.
  * @author Parakoopa
  */
-public class TCPConnection implements Runnable {
+public class TCPConnection extends Connection implements Runnable {
+
+    /** Queued by execute() to wake up the writer, it's not sent. */
+    private static final byte[] WAKE_UP = new byte[0];
 
     private Mediator main;
     private Socket client;
     private ServerSocket server;
-    /** Game Maker Studio seperates strings in buffers with this char (buffer_string). */
-    private char gm_string_seperator = 0;
-    /** True, if the "reg" command was used on this connection **/
-    private boolean isServer = false;
+    /** Messages waiting for the writer (created once this is a game server connection). */
+    private volatile BlockingQueue<byte[]> writeQueue;
+    /** Tasks for the writer (see execute), they run before the next messages are sent. */
+    private final ConcurrentLinkedQueue<Runnable> writerTasks = new ConcurrentLinkedQueue<>();
+    /** Thread that sends the queued messages (started with the write queue). */
+    private volatile Thread writer;
+    /** True once the peer ended the connection: The writer ends when the queue is empty. */
+    private volatile boolean draining = false;
+    /** Time (ms) the current write of the writer started, 0 if it isn't writing. */
+    private volatile long writeStarted = 0;
+    /** Closes the connection if a write takes longer than --write-timeout. */
+    private final WriteDeadline writeDeadline = new WriteDeadline();
 
     /**
      * Set's up a new connection listener that handles all packets of one connection.
@@ -54,6 +74,7 @@ public class TCPConnection implements Runnable {
      * @param server Our TCP server socket the client is connected to. (not actually used)
      */
     public TCPConnection(Mediator main, Socket client, ServerSocket server) {
+        super(client.getInetAddress(), client.getPort());
         this.server = server;
         this.client = client;
         this.main = main;
@@ -64,344 +85,267 @@ public class TCPConnection implements Runnable {
      */
     @Override
     public void run() {
-        String debug_string = this.client.getInetAddress().getHostAddress()+":"+this.client.getPort()+" | TCP | ";
-        Mediator.log(debug_string+" Connected!",true);
+        String debug_string = this.getDebugString();
+        if (Mediator.isLogged(true)) {
+            Mediator.log(debug_string+" Connected!",true);
+        }
+        Metrics metrics = this.main.getMetrics();
+        metrics.connectionOpened();
         try {
             //TcpNoDelay configures the socket to transfer messages immediately, otherwise GM:S won't pick them up
             this.client.setTcpNoDelay(true);
-            //Input and Output streams. We write bytes out and take Strings in.
-            OutputStream out = client.getOutputStream();
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(client.getInputStream()));
+            //Input stream. We take Strings in. They are already cleaned, they might contain some garbage characters.
+            LineReader in = new LineReader(client.getInputStream());
 
             String inputLine;
-            Server serverObj;
+            TCPCommandHandler handler = this.main.getCommandHandler();
             //Process all packets. This while loop will stop when the peer disconnected.
             while ((inputLine = in.readLine()) != null) {
                 //This will kill Threads (or commands) if the client don't send
                 //all of the data expected. Needed otherwise this could lead
                 //to many hanging threads.
                 client.setSoTimeout(1000);
-                //Cleans string, it might contain some garbage characters.
-                inputLine = inputLine.replaceAll("\\p{C}", "");
-                switch (inputLine) {
-                    case "reg2":
-                        Mediator.log(debug_string+" Server wants to register!",true);
-                        //A server wants to register/reregister. We put the socket in the socket map so we can use it later.
-                        //Check version compatibility
-                        String version = in.readLine().replaceAll("\\p{C}", "");
-                        Mediator.log(debug_string+" Version: "+version,true);
-                        if (!(Mediator.versionCompare(version,Mediator.getUdphpMin()) >= 0)) {
-                            //For now just silently end the connection.
-                            //Proper error messages will follow in the next release
-                            Mediator.log(debug_string+" Server not accepted. Version too old.",true);
-                            client.close();
-                            return;
-                        }
-                        Mediator.log(debug_string+" Server registered!",false);
-                        
-                        serverObj = this.main.getServer(this.client.getInetAddress().getHostAddress());
-                        this.isServer = true;
-                        serverObj.setTCPsocket(this.client);
-                        //Write the 8 data strings
-                        serverObj.setData1(in.readLine().replaceAll("\\p{C}", ""));
-                        Mediator.log(debug_string+" Data 1: "+serverObj.getData1(),true);
-                        serverObj.setData2(in.readLine().replaceAll("\\p{C}", ""));
-                        Mediator.log(debug_string+" Data 2: "+serverObj.getData2(),true);
-                        serverObj.setData3(in.readLine().replaceAll("\\p{C}", ""));
-                        Mediator.log(debug_string+" Data 3: "+serverObj.getData3(),true);
-                        serverObj.setData4(in.readLine().replaceAll("\\p{C}", ""));
-                        Mediator.log(debug_string+" Data 4: "+serverObj.getData4(),true);
-                        serverObj.setData5(in.readLine().replaceAll("\\p{C}", ""));
-                        Mediator.log(debug_string+" Data 5: "+serverObj.getData5(),true);
-                        serverObj.setData6(in.readLine().replaceAll("\\p{C}", ""));
-                        Mediator.log(debug_string+" Data 6: "+serverObj.getData6(),true);
-                        serverObj.setData7(in.readLine().replaceAll("\\p{C}", ""));
-                        Mediator.log(debug_string+" Data 7: "+serverObj.getData7(),true);
-                        serverObj.setData8(in.readLine().replaceAll("\\p{C}", ""));
-                        Mediator.log(debug_string+" Data 8: "+serverObj.getData8(),true);
-                    break;
-                    case "connect":
-                        //A client wants to connect. Now the interesting part begins
-                        //Wait for next line that contains the requested IP adress.
-                        String requested_server = in.readLine().replaceAll("\\p{C}", "");
-                        String debug_string2 = debug_string + " Client <-> "+requested_server+" ->";
-                        Mediator.log(debug_string2+" Connecting...",false);
-                        if (this.main.getServerMap().containsKey(requested_server)) {
-                            //SERVER FOUND
-                            serverObj = this.main.getServer(requested_server);
-                            //get server connection socket from the map (stored above)
-                            Socket gameserver = serverObj.getTCPsocket();
-                            if (!gameserver.isClosed()) {
-                                String connect_to_server = requested_server;
-                                //Get server port
-                                int connect_to_port = serverObj.getPort();
-                                //Send server port to client
-                                Mediator.log(debug_string2+" Found server",true);
-                                Mediator.log(debug_string2+" Send server port "+connect_to_port+" to client",true);
-                                ByteArrayOutputStream bb = new ByteArrayOutputStream();
-                                bb.write((byte) 255);
-                                bb.write((connect_to_server+this.gm_string_seperator).getBytes());
-                                bb.write((String.valueOf(connect_to_port)+this.gm_string_seperator).getBytes());
-                                out.write(bb.toByteArray());
-                                //Send buffer to client
-                                out.flush();
-                                //Get client port
-                                Client clientObj = this.main.getClient(this.client.getInetAddress().getHostAddress());
-                                int connect_to_port_server = clientObj.getPort();
-                                Mediator.log(debug_string2+" Send client port "+connect_to_port_server+" to server",true);
-                                //Get an output stream for the server socket. We will contact the server with this.
-                                OutputStream out_server = gameserver.getOutputStream();
-                                ByteArrayOutputStream bb_server = new ByteArrayOutputStream();
-                                bb_server.write((byte) 255);
-                                bb_server.write((this.client.getInetAddress().getHostAddress()+this.gm_string_seperator).getBytes());
-                                bb_server.write(String.valueOf(connect_to_port_server+this.gm_string_seperator).getBytes());
-                                out_server.write(bb_server.toByteArray());
-                                //Send buffer to server
-                                out_server.flush();
-                                //We are done! Client and Server now connect to each other and the hole is punched!
-                                Mediator.log(debug_string2+" CONNECTED!",false);
-                            } else {
-                                //SERVER FOUND BUT SOCKET IS DEAD
-                                Mediator.log(debug_string+" CONNECTION FAILED - Server not reachable",false);
-                                out.write((byte) 254);
-                                out.flush();
-                            }   
-                        } else {
-                            //SERVER NOT FOUND
-                            Mediator.log(debug_string+" CONECTION FAILED - Server not found",false);
-                            out.write((byte) 254);
-                            out.flush();
-                        }
-                        this.main.destroyClient(this.client.getInetAddress().getHostAddress());
-                    break;
-                    case "lobby2":
-                        if (Mediator.isLobby() || Mediator.isTesting()) {
-                            Mediator.log(debug_string+" Sending lobby based on requested filters",true);
-                            
-                            HashMap<String, Server> servers =  new HashMap<String, Server>(main.getServerMap());
-
-                            String filter_data1 = in.readLine().replaceAll("\\p{C}", "");
-                            String filter_data2 = in.readLine().replaceAll("\\p{C}", "");
-                            String filter_data3 = in.readLine().replaceAll("\\p{C}", "");
-                            String filter_data4 = in.readLine().replaceAll("\\p{C}", "");
-                            String filter_data5 = in.readLine().replaceAll("\\p{C}", "");
-                            String filter_data6 = in.readLine().replaceAll("\\p{C}", "");
-                            String filter_data7 = in.readLine().replaceAll("\\p{C}", "");
-                            String filter_data8 = in.readLine().replaceAll("\\p{C}", "");
-                            final String filter_sortby = in.readLine().replaceAll("\\p{C}", "");
-                            final String filter_sortby_dir = in.readLine().replaceAll("\\p{C}", "");
-                            String filter_limit = in.readLine().replaceAll("\\p{C}", "");
-                            
-                            //Skip servers with <INV> gamename (this might happen if a server was created using UDP connection but never initialized via TCP)
-                            //TODO: Remove these invalid servers after some time.
-                            Iterator<Map.Entry<String, Server>> iterInv = servers.entrySet().iterator();
-                            while (iterInv.hasNext()) {
-                                Map.Entry<String, Server> entry = iterInv.next();
-                                if (entry.getValue().getData1().equals("<INV>")) {
-                                    iterInv.remove();
-                                }
-                            }
-                            
-                            if (!"".equals(filter_data1)) {
-                                Iterator<Map.Entry<String, Server>> iter = servers.entrySet().iterator();
-                                while (iter.hasNext()) {
-                                    Map.Entry<String, Server> entry = iter.next();
-                                    if (!entry.getValue().getData1().equals(filter_data1)) {
-                                        iter.remove();
-                                    }
-                                }
-                            }
-                            
-                            if (!"".equals(filter_data2)) {
-                                Iterator<Map.Entry<String, Server>> iter = servers.entrySet().iterator();
-                                while (iter.hasNext()) {
-                                    Map.Entry<String, Server> entry = iter.next();
-                                    if (!entry.getValue().getData2().equals(filter_data2)) {
-                                        iter.remove();
-                                    }
-                                }
-                            }
-                            
-                            if (!"".equals(filter_data3)) {
-                                Iterator<Map.Entry<String, Server>> iter = servers.entrySet().iterator();
-                                while (iter.hasNext()) {
-                                    Map.Entry<String, Server> entry = iter.next();
-                                    if (!entry.getValue().getData3().equals(filter_data3)) {
-                                        servers.remove(entry.getKey());
-                                    }
-                                }
-                            }
-                            
-                            if (!"".equals(filter_data4)) {
-                                Iterator<Map.Entry<String, Server>> iter = servers.entrySet().iterator();
-                                while (iter.hasNext()) {
-                                    Map.Entry<String, Server> entry = iter.next();
-                                    if (!entry.getValue().getData4().equals(filter_data4)) {
-                                        iter.remove();
-                                    }
-                                }
-                            }
-                            
-                            if (!"".equals(filter_data5)) {
-                                Iterator<Map.Entry<String, Server>> iter = servers.entrySet().iterator();
-                                while (iter.hasNext()) {
-                                    Map.Entry<String, Server> entry = iter.next();
-                                    if (!entry.getValue().getData5().equals(filter_data5)) {
-                                        iter.remove();
-                                    }
-                                }
-                            }
-                            
-                            if (!"".equals(filter_data6)) {
-                                Iterator<Map.Entry<String, Server>> iter = servers.entrySet().iterator();
-                                while (iter.hasNext()) {
-                                    Map.Entry<String, Server> entry = iter.next();
-                                    if (!entry.getValue().getData6().equals(filter_data6)) {
-                                        iter.remove();
-                                    }
-                                }
-                            }
-                            
-                            if (!"".equals(filter_data7)) {
-                                Iterator<Map.Entry<String, Server>> iter = servers.entrySet().iterator();
-                                while (iter.hasNext()) {
-                                    Map.Entry<String, Server> entry = iter.next();
-                                    if (!entry.getValue().getData7().equals(filter_data7)) {
-                                        iter.remove();
-                                    }
-                                }
-                            }
-                            
-                            if (!"".equals(filter_data8)) {
-                                Iterator<Map.Entry<String, Server>> iter = servers.entrySet().iterator();
-                                while (iter.hasNext()) {
-                                    Map.Entry<String, Server> entry = iter.next();
-                                    if (!entry.getValue().getData8().equals(filter_data8)) {
-                                        iter.remove();
-                                    }
-                                }
-                            }
-                            
-                            Server[] arr = servers.values().toArray(new Server[servers.values().size()]);
-                            Arrays.sort(arr, new Comparator<Server>() {
-                                @Override
-                                public int compare(Server o1, Server o2) {
-                                    int mp = 1;
-                                    int rt = 0;
-                                    if ("ASC".equals(filter_sortby_dir)) {
-                                        mp = -1;
-                                    }
-                                    switch (filter_sortby) {
-                                        default:
-                                        case "date":
-                                            rt = new Long(o1.getCreatedTime()).compareTo(o2.getCreatedTime()) * mp;
-                                        break;
-                                        case "data1":
-                                            rt = o1.getData1().compareTo(o2.getData1()) * mp;
-                                        break;
-                                        case "data2":
-                                            rt = o1.getData2().compareTo(o2.getData2()) * mp;
-                                        break;
-                                        case "data3":
-                                            rt = o1.getData3().compareTo(o2.getData3()) * mp;
-                                        break;
-                                        case "data4":
-                                            rt = o1.getData4().compareTo(o2.getData4()) * mp;
-                                        break;
-                                        case "data5":
-                                            rt = o1.getData5().compareTo(o2.getData5()) * mp;
-                                        break;
-                                        case "data6":
-                                            rt = o1.getData6().compareTo(o2.getData6()) * mp;
-                                        break;
-                                        case "data7":
-                                            rt = o1.getData7().compareTo(o2.getData7()) * mp;
-                                        break;
-                                        case "data8":
-                                            rt = o1.getData8().compareTo(o2.getData8()) * mp;
-                                        break;
-                                    }
-                                    return rt;
-                                }
-                            });
-                            
-                            if (!"".equals(filter_limit) && Integer.valueOf(filter_limit) <= arr.length) {
-                                arr = Arrays.copyOfRange(arr, 0, Integer.valueOf(filter_limit));
-                            }
-                            
-                            Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
-                            String json = gson.toJson(arr);
-                            ByteArrayOutputStream bb = new ByteArrayOutputStream();
-                            bb.write((byte) 249);
-                            bb.write(json.getBytes());
-                            bb.write(10);
-                            //Send buffer to server
-                            out.write(bb.toByteArray());
-                            out.flush();
-                        }
-                    break;
-                    case "istesting":
-                        out.write((byte) 248);
-                        if (Mediator.isTesting()) {
-                            Mediator.log(debug_string+" Sending if testing is enabled",true);
-                            out.write((byte) 1);
-                        } else {
-                            out.write((byte) 0);
-                        }
-                        //Send buffer
-                        out.flush();
-                    break;
-                    case "testinginfos":
-                        out.write((byte) 247);
-                        if (Mediator.isTesting()) {
-                            Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
-                            ByteArrayOutputStream bb = new ByteArrayOutputStream();
-                            bb.write(Mediator.getName().getBytes());
-                            bb.write(10);
-                            bb.write(Mediator.getVersion().getBytes());
-                            bb.write(10);
-                            bb.write(Mediator.getUdphpMin().getBytes());
-                            bb.write(10);
-                            out.write(bb.toByteArray());
-                            Mediator.log(debug_string+" Sending testing information",true);
-                        } else {
-                            out.write((byte) 0);
-                        }
-                        //Send buffer
-                        out.flush();
-                    break;
-                    case "version":
-                        ByteArrayOutputStream bb = new ByteArrayOutputStream();
-                        bb.write((byte) 246);
-                        bb.write(Mediator.getVersion().getBytes());
-                        bb.write(10);
-                        out.write(bb.toByteArray());
-                        Mediator.log(debug_string+" Sending version information",true);
-                        //Send buffer
-                        out.flush();
-                    break;
-                    default:
-                        //Ignore unknown commands (client disconnection will cause an unknown command)
+                String[] args = new String[TCPCommandHandler.getArgumentCount(inputLine)];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = in.readLine();
+                    if (args[i] == null) {
+                        throw new EOFException();
+                    }
+                }
+                handler.handle(this, inputLine, args);
+                if (client.isClosed()) {
+                    //The handler, the writer or the write deadline ended the connection.
+                    //Leave the loop so it's cleaned up like any other disconnect.
                     break;
                 }
                 //Disable timout again and wait for next command
                 client.setSoTimeout(0);
             }
+            this.finishWriting();
             client.close();
-            Mediator.log(debug_string+" Disconnected!",true);
-            //Cleanup, when they loose TCP connection, this data can't be used anymore, so it's safe to remove
-            if (this.isServer) {
-                this.main.destroyServer(this.client.getInetAddress().getHostAddress());
-                Mediator.log(debug_string+" Server deleted!",false);
+            if (Mediator.isLogged(true)) {
+                Mediator.log(debug_string+" Disconnected!",true);
             }
+            this.destroy(this.main);
         } catch (Exception ex) {
-            Mediator.log(debug_string+" Disconnected (e: "+ex.getClass().getName()+")",true);
-            //Cleanup, when they loose TCP connection, this data can't be used anymore, so it's safe to remove
-            if (this.isServer) {
-                this.main.destroyServer(this.client.getInetAddress().getHostAddress());
-                Mediator.log(debug_string+" Server deleted!",false);
+            if (ex instanceof EOFException) {
+                //Ended in the middle of a command, the answers to the commands before are still sent.
+                this.finishWriting();
+                try {
+                    client.close();
+                } catch (IOException ex2) {
+                    //Already closed.
+                }
+            }
+            if (Mediator.isLogged(true)) {
+                Mediator.log(debug_string+" Disconnected (e: "+ex.getClass().getName()+")",true);
+            }
+            this.destroy(this.main);
+        } finally {
+            this.stopWriter();
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Writes the bytes directly, or queues them if this is a game server
+     * connection (so they don't mix with messages of other threads).
+     */
+    @Override
+    public void send(byte[] data) throws IOException {
+        if (this.writeQueue != null) {
+            if (!this.queue(data)) {
+                throw new IOException("Write queue full");
+            }
+            return;
+        }
+        OutputStream out = client.getOutputStream();
+        out.write(data);
+        out.flush();
+    }
+
+    @Override
+    public boolean queue(byte[] data) {
+        BlockingQueue<byte[]> queue = this.writeQueue;
+        if (queue == null || client.isClosed()) {
+            return false;
+        }
+        if (!queue.offer(data)) {
+            this.main.getMetrics().countWriteFailure(Metrics.QUEUE_FULL);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean execute(Runnable task) {
+        BlockingQueue<byte[]> queue = this.writeQueue;
+        if (queue == null || client.isClosed()) {
+            return false;
+        }
+        this.writerTasks.add(task);
+        //If the queue is full the writer is busy anyway, it runs the task before the next message.
+        queue.offer(WAKE_UP);
+        return true;
+    }
+
+    /**
+     * Creates the write queue and starts the writer. Before that, only the
+     * thread of this connection writes to it.
+     */
+    @Override
+    public void enableWriteQueue() {
+        if (this.writeQueue == null) {
+            this.writeQueue = new ArrayBlockingQueue<>(Mediator.getWriteQueueSize());
+            this.writer = this.main.getConnectionThreads().newThread(new Runnable() {
+                @Override
+                public void run() {
+                    TCPConnection.this.write();
+                }
+            });
+            this.writer.start();
+        }
+    }
+
+    /**
+     * Waits until the writer (if there is one) sent everything that is
+     * queued, but at most --write-timeout. Called by the reading thread after
+     * the peer ended the connection.
+     */
+    private void finishWriting() {
+        Thread thread = this.writer;
+        if (thread == null || client.isClosed()) {
+            return;
+        }
+        this.draining = true;
+        //If the queue is full the writer is busy anyway, it sees draining before it waits again.
+        this.writeQueue.offer(WAKE_UP);
+        try {
+            thread.join(Mediator.getWriteTimeout());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ends the writer (if there is one), it might be waiting for the queue.
+     */
+    private void stopWriter() {
+        Thread thread = this.writer;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Game server connections get their write queue and heartbeats.
+     */
+    @Override
+    public void setServer(boolean isServer) {
+        if (isServer && !this.isServer()) {
+            this.enableWriteQueue();
+            try {
+                Heartbeat.enable(client);
+            } catch (IOException ex) {
+                if (Mediator.isLogged(true)) {
+                    Mediator.log(this.getDebugString()+" Could not start heartbeats (e: "+ex.getClass().getName()+")",true);
+                }
+            }
+        }
+        super.setServer(isServer);
+    }
+
+    /**
+     * Writer: Runs the tasks and sends the queued messages in order, waits
+     * for the queue when both are empty. Ends when the connection ends (or
+     * when the queue is empty after finishWriting), closes the connection if
+     * a write fails.
+     */
+    private void write() {
+        BlockingQueue<byte[]> queue = this.writeQueue;
+        try {
+            OutputStream out = client.getOutputStream();
+            while (!client.isClosed()) {
+                Runnable task;
+                while ((task = this.writerTasks.poll()) != null) {
+                    task.run();
+                }
+                byte[] data = this.draining ? queue.poll() : queue.take();
+                if (data == null) {
+                    //Everything was sent (see finishWriting).
+                    break;
+                }
+                if (data == WAKE_UP) {
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                this.writeStarted = now;
+                this.main.getTimer().schedule(this.writeDeadline, now + Mediator.getWriteTimeout());
+                out.write(data);
+                out.flush();
+                this.writeStarted = 0;
+            }
+        } catch (InterruptedException ex) {
+            //The connection ended (see stopWriter).
+        } catch (IOException ex) {
+            //The reading thread of this connection notices it and cleans up. The socket
+            //is closed, nothing can be queued anymore.
+            this.writeStarted = 0;
+            queue.clear();
+            this.writerTasks.clear();
+            if (Mediator.isLogged(true)) {
+                Mediator.log(this.getDebugString()+" Write failed (e: "+ex.getClass().getName()+")",true);
             }
+            try {
+                client.close();
+            } catch (IOException ex2) {
+                //Already closed.
+            }
+        }
+    }
+
+    /**
+     * Closes the connection if the writer is stuck, because the peer
+     * doesn't read.
+     */
+    private class WriteDeadline extends TimerWheel.Timeout {
+        @Override
+        protected void expire(long now) {
+            long started = writeStarted;
+            if (started != 0 && now - started >= Mediator.getWriteTimeout()) {
+                main.getMetrics().countWriteFailure(Metrics.WRITE_TIMEOUT);
+                if (Mediator.isLogged(true)) {
+                    Mediator.log(getDebugString()+" Write timeout",true);
+                }
+                try {
+                    client.close();
+                } catch (IOException ex) {
+                    //Already closed.
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return client.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /**
+     * The reading thread of this connection notices the closed socket and
+     * cleans up.
+     */
+    @Override
+    public void disconnect() {
+        try {
+            client.close();
+        } catch (IOException ex) {
+            //Already closed.
         }
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A hashed timing wheel: One thread that runs timeouts with a precision of
+ * one tick. Every slot of the wheel holds the timeouts that are due when the
+ * wheel reaches it, so scheduling and each tick only touch the timeouts of
+ * one slot instead of all of them.
+ * Timeouts can be scheduled from any thread. Moving a deadline to a later
+ * time doesn't move the timeout in the wheel: when it comes up too early, it
+ * is put back at its new deadline.
+ * @author Parakoopa
+ */
+public class TimerWheel extends Thread {
+
+    /**
+     * Something that can time out. A timeout is at most once in the wheel.
+     */
+    public abstract static class Timeout {
+        /** Time (ms) when it is due. */
+        private volatile long deadline;
+        /** True while it is in the wheel (or waiting to be put in). */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /** Wheel thread only: Number of turns of the wheel until it is due. */
+        private long rounds;
+        /** Wheel thread only: Next timeout in the same slot. */
+        private Timeout next;
+
+        /**
+         * @return Time (ms) when it is due
+         */
+        public long getDeadline() {
+            return this.deadline;
+        }
+
+        /**
+         * Called by the wheel thread once the deadline passed.
+         * @param now Current time (ms)
+         */
+        protected abstract void expire(long now);
+    }
+
+    private final long tick;
+    private final Timeout[] slots;
+    private final int mask;
+    /** Timeouts that were scheduled since the last tick. */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    /** Wheel thread only: Number of the next tick. */
+    private long cursor = 0;
+
+    /**
+     * @param name Name of the thread
+     * @param tick Length of a tick (ms)
+     * @param slots Number of slots (rounded up to a power of two)
+     */
+    public TimerWheel(String name, long tick, int slots) {
+        super(name);
+        this.setDaemon(true);
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.tick = tick;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Sets the deadline of a timeout and puts it in the wheel if it isn't
+     * already. If it is, the new deadline must not be earlier than the old
+     * one (it would only run at the old one).
+     * @param timeout The timeout
+     * @param deadline Time (ms) when it is due
+     */
+    public void schedule(Timeout timeout, long deadline) {
+        timeout.deadline = deadline;
+        if (timeout.scheduled.compareAndSet(false, true)) {
+            this.pending.add(timeout);
+        }
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        while (true) {
+            long sleep = start + TimeUnit.MILLISECONDS.toNanos((this.cursor + 1) * this.tick) - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            long now = System.currentTimeMillis();
+            Timeout timeout;
+            while ((timeout = this.pending.poll()) != null) {
+                this.add(timeout, now, 0);
+            }
+            this.expire(now);
+            this.cursor++;
+        }
+    }
+
+    /**
+     * Puts a timeout in the slot of its deadline.
+     * @param minTicks The timeout is put at least this many slots after the current one.
+     */
+    private void add(Timeout timeout, long now, long minTicks) {
+        long ticks = Math.max(minTicks, (timeout.deadline - now + this.tick - 1) / this.tick);
+        int slot = (int) ((this.cursor + ticks) & this.mask);
+        //The current slot is visited again in this tick if the timeout was
+        //scheduled before it was processed, otherwise after one more turn.
+        timeout.rounds = (ticks - minTicks) / this.slots.length;
+        timeout.next = this.slots[slot];
+        this.slots[slot] = timeout;
+    }
+
+    /**
+     * Runs the due timeouts of the current slot.
+     */
+    private void expire(long now) {
+        int slot = (int) (this.cursor & this.mask);
+        Timeout timeout = this.slots[slot];
+        this.slots[slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            if (timeout.rounds > 0) {
+                //Due in a later turn of the wheel
+                timeout.rounds--;
+                timeout.next = this.slots[slot];
+                this.slots[slot] = timeout;
+            } else if (timeout.deadline > now) {
+                //The deadline was moved to a later time
+                this.add(timeout, now, 1);
+            } else {
+                timeout.scheduled.set(false);
+                if (timeout.deadline > now && timeout.scheduled.compareAndSet(false, true)) {
+                    //Scheduled again in the meantime
+                    this.add(timeout, now, 1);
+                } else {
+                    try {
+                        timeout.expire(now);
+                    } catch (RuntimeException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+}
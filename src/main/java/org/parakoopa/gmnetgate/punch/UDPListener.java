@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * UDP listener.
+ * Starts the UDP workers and logs how many packets they recieve.
+ * With more than one worker each one gets its own socket on the same port
+ * (SO_REUSEPORT, the kernel spreads the packets over them). If that isn't
+ * supported, the workers share one socket.
+ * @author Parakoopa
+ */
+public class UDPListener extends Thread {
+
+    /** Interval of the statistics (ms). */
+    private static final long STATS_INTERVAL = 60000;
+    /** Requested kernel receive buffer per socket, to survive bursts of registrations. */
+    private static final int RECEIVE_BUFFER = 4 * 1024 * 1024;
+
+    private final Mediator main;
+    private final int port;
+    private final UDPWorker[] workers;
+
+    /**
+     * Binds the UDP port and creates the workers.
+     * @param main Mediator class instance that this server was created with.
+     * @param port The port to listen on.
+     * @param threads Number of workers, at least 1.
+     * @throws IOException If the port can't be bound.
+     */
+    public UDPListener(Mediator main, int port, int threads) throws IOException {
+        super("UDP Listener");
+        if (threads < 1) {
+            throw new IllegalArgumentException("Needs at least one worker, got " + threads);
+        }
+        this.main = main;
+        this.port = port;
+        this.workers = new UDPWorker[threads];
+        SocketOption<Boolean> reusePort = threads > 1 ? getReusePortOption() : null;
+        DatagramChannel shared = null;
+        for (int i = 0; i < threads; i++) {
+            DatagramChannel channel;
+            if (reusePort != null) {
+                channel = openChannel(port, reusePort);
+            } else {
+                if (shared == null) {
+                    shared = openChannel(port, null);
+                }
+                channel = shared;
+            }
+            this.workers[i] = new UDPWorker(main, channel, i);
+        }
+        if (threads > 1 && reusePort == null) {
+            Mediator.log("SO_REUSEPORT is not supported, all UDP workers share one socket.", false);
+        }
+    }
+
+    /**
+     * Starts the workers and logs the statistics.
+     */
+    @Override
+    public void run() {
+        for (UDPWorker worker : this.workers) {
+            worker.start();
+        }
+        Mediator.log("Loaded UDP Listener ("+this.workers.length+" workers)", true);
+        long lastPackets = 0;
+        long lastTime = System.currentTimeMillis();
+        while (true) {
+            try {
+                Thread.sleep(STATS_INTERVAL);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            long packets = this.getPackets();
+            long now = System.currentTimeMillis();
+            double perSecond = (packets - lastPackets) * 1000.0 / (now - lastTime);
+            lastPackets = packets;
+            lastTime = now;
+            long drops = this.getKernelDrops();
+            Registry registry = this.main.getRegistry();
+            Mediator.log(String.format("UDP: %.1f packets/s, %d packets total, %s dropped by the kernel,"
+                    + " %d over the rate limit, %d servers and %d clients expired",
+                    perSecond, packets, drops < 0 ? "?" : String.valueOf(drops), this.main.getUdpAdmission().getDropped(),
+                    registry.getExpiredServers(), registry.getExpiredClients()), true);
+        }
+    }
+
+    /**
+     * @return Number of packets all workers recieved.
+     */
+    public long getPackets() {
+        long packets = 0;
+        for (UDPWorker worker : this.workers) {
+            packets += worker.getPackets();
+        }
+        return packets;
+    }
+
+    /**
+     * Reads how many packets the kernel dropped on our port, because the
+     * receive buffers were full. Only works on Linux.
+     * @return Number of dropped packets or -1 if not available.
+     */
+    public long getKernelDrops() {
+        long drops = 0;
+        boolean found = false;
+        for (String file : new String[] {"/proc/net/udp", "/proc/net/udp6"}) {
+            try {
+                for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.US_ASCII)) {
+                    //sl local_address rem_address st ... drops
+                    String[] cols = line.trim().split("\\s+");
+                    if (cols.length < 13 || !cols[1].contains(":")) {
+                        continue;
+                    }
+                    String localPort = cols[1].substring(cols[1].lastIndexOf(':') + 1);
+                    try {
+                        if (Integer.parseInt(localPort, 16) == this.port) {
+                            drops += Long.parseLong(cols[cols.length - 1]);
+                            found = true;
+                        }
+                    } catch (NumberFormatException ex) {
+                        //Header line
+                    }
+                }
+            } catch (IOException ex) {
+                //Not on Linux or no IPv6
+            }
+        }
+        return found ? drops : -1;
+    }
+
+    /**
+     * Opens a non-blocking UDP channel on the port.
+     * @param port The port
+     * @param reusePort SO_REUSEPORT option or null
+     * @return The channel
+     * @throws IOException If the port can't be bound.
+     */
+    private static DatagramChannel openChannel(int port, SocketOption<Boolean> reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        if (reusePort != null) {
+            channel.setOption(reusePort, true);
+        }
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * SO_REUSEPORT is available since Java 9 and not on all systems, so it is
+     * looked up by reflection.
+     * @return The option or null if it's not supported.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try (DatagramChannel test = DatagramChannel.open()) {
+                if (test.supportedOptions().contains(option)) {
+                    return option;
+                }
+            }
+        } catch (ReflectiveOperationException | IOException ex) {
+            //Not supported
+        }
+        return null;
+    }
+}
@@ -21,97 +21,217 @@
  */
 package org.parakoopa.gmnetgate.punch;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
 
 /**
  * Handles incoming UDP packets.
  * UDP is connectionless. The TCPConnection class handles all packets of one connection, this here handles
  * ALL packets of ALL "connections".
  * Stores server and client ports that are sent in the TCPConnection class when a client requests connection.
+ * One instance is used by a UDPWorker for all of its packets. The command is matched directly in the
+ * receive buffer, no arrays or Strings are created for it.
  * @author Parakoopa
  */
 public class UDPPacket {
 
-    private final DatagramSocket server;
+    /** Length of the GM:Studio protocol header. */
+    static final int HEADER_LENGTH = 12;
+
+    /** Result of parseCommand: Unknown command. */
+    public static final int UNKNOWN = 0;
+    /** Result of parseCommand: "reg" */
+    public static final int REG = 1;
+    /** Result of parseCommand: "connect" */
+    public static final int CONNECT = 2;
+    /** Result of parseCommand: Packet is shorter than the header. */
+    public static final int TOO_SHORT = -1;
+    /** Result of parseCommand: Packet only contains line breaks. */
+    public static final int NO_COMMAND = -2;
+
+    private static final byte[] CMD_REG = {'r', 'e', 'g'};
+    private static final byte[] CMD_CONNECT = {'c', 'o', 'n', 'n', 'e', 'c', 't'};
+
     private final Mediator main;
-    private DatagramPacket packet;
-    /** Game Maker Studio seperates strings in buffers with this char (buffer_string). */
-    private char gm_string_seperator = 0;
+    private final Metrics metrics;
 
     /**
-     * Set's up a new connection listener that handles all packets of one connection.
+     * Set's up a new packet handler.
      * @param main Mediator class instance that this server was created with.
-     * @param packet Packet that we should maintain.
-     * @param server Our UDP server socket the client is sending to. (not actually used)
      */
-    public UDPPacket(Mediator main, DatagramPacket packet, DatagramSocket server) {
-        this.server = server;
+    public UDPPacket(Mediator main) {
         this.main = main;
-        this.packet = packet;
+        this.metrics = main.getMetrics();
     }
 
-    /** Helper method. 
-     *  This will remove zeros at the end of our packet.
-     *  @args bytes Byte-array to trim
-     *  @return Trimmed byte-array
+    /** Helper method.
+     *  Returns the end of the packet without the zeros at the end.
+     *  @param data Buffer containing the packet
+     *  @param offset Start of the packet
+     *  @param length Length of the packet
+     *  @return End of the packet (exclusive)
      */
-    static byte[] trim(byte[] bytes) {
-        int i = bytes.length - 1;
-        while (i >= 0 && bytes[i] == 0) {
-            --i;
+    static int trim(byte[] data, int offset, int length) {
+        int end = offset + length;
+        while (end > offset && data[end - 1] == 0) {
+            --end;
         }
-
-        return Arrays.copyOf(bytes, i + 1);
+        return end;
     }
 
     /**
-     * Starts the processing of a packet.
-     * We can't respond because we assume the client/server is behind a very
-     * unfriendly nat. We use the TCP connection for answering.
+     * Finds the command of the packet.
+     * This works like the old parsing: Remove the zeros at the end, strip off
+     * the GM:Studio header and take the first line of what remains
+     * (lines are seperated by \n or \r\n).
+     * @param data Buffer containing the packet
+     * @param offset Start of the packet
+     * @param length Length of the packet
+     * @return One of REG, CONNECT, UNKNOWN, TOO_SHORT or NO_COMMAND
      */
-    public void run() {
-        //Prepare command
-        byte[] inputData = trim(packet.getData());
+    public static int parseCommand(byte[] data, int offset, int length) {
+        int end = trim(data, offset, length);
         //Strip of GM:Studio Header
         // - For tcp connections we use network_send_raw in GM:Studio. This means GM will not send the
         //   protocol header
         // - For udp connections, there is no command like this yet. We do it manually.
-        //   The protocol header is exactly 12 bytes long so we cut the first 12 bytes of.
-        inputData = Arrays.copyOfRange(inputData, 12, inputData.length);
+        //   The protocol header is exactly 12 bytes long so we skip the first 12 bytes.
+        int start = offset + HEADER_LENGTH;
+        if (end < start) {
+            return TOO_SHORT;
+        }
+        int lineEnd = firstLineEnd(data, start, end);
+        if (matches(data, start, lineEnd, CMD_REG)) {
+            return REG;
+        }
+        if (matches(data, start, lineEnd, CMD_CONNECT)) {
+            return CONNECT;
+        }
+        if (lineEnd == start && end > start && onlyLineBreaks(data, start, end)) {
+            return NO_COMMAND;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Starts the processing of a packet.
+     * We can't respond because we assume the client/server is behind a very
+     * unfriendly nat. We use the TCP connection for answering.
+     * @param data Buffer containing the packet
+     * @param offset Start of the packet
+     * @param length Length of the packet
+     * @param sender Address the packet came from
+     */
+    public void run(byte[] data, int offset, int length, InetSocketAddress sender) {
         //Split the command into multiple commands, like this we can send multiple commands or commands+arguments
         //in one packet. Not used for this server, since the udp part only needs one command for client and servers.
-        String[] inputLine = new String(inputData).split("\\r?\\n");
-        //
-        String debug_string = packet.getAddress().getHostAddress()+":"+packet.getPort()+" - UDP - ";
-        Mediator.log(debug_string+" Recieved data!",true);
+        int command = parseCommand(data, offset, length);
+        this.metrics.countUdp(command);
+        if (Mediator.isLogged(true)) {
+            Mediator.log(debugString(sender)+" Recieved data!",true);
+        }
         //PROCESS COMMAND
         try {
-            switch (inputLine[0]) {
-                case "reg":
+            switch (command) {
+                case REG:
                     //A server wants to register. Save the IP of the server to the map.
-                    Mediator.log(debug_string+" Server registered!",false);
-                    Server serverObj = this.main.getServer(packet.getAddress().getHostAddress());
-                    serverObj.setPort(packet.getPort());
-                    //Make server invalid for now (see Lobby for more details (in TCPConnection))
-                    serverObj.setData1("<INV>");
-                    
+                    if (Mediator.isLogged(false)) {
+                        Mediator.log(debugString(sender)+" Server registered!",false);
+                    }
+                    Server serverObj = this.main.getRegistry().getServer(sender.getAddress());
+                    serverObj.setPort(sender.getPort());
+                    //Make server invalid for now (see Lobby for more details (in TCPCommandHandler))
+                    this.main.getRegistry().setData(serverObj, 1, "<INV>");
+                    //Remove it again if it doesn't register via TCP
+                    this.main.getRegistry().scheduleExpiry(serverObj);
+
                 break;
-                case "connect":
+                case CONNECT:
                     //A client wants to register. Save the IP of the server to the map.
-                    Mediator.log(debug_string + " Client registered!",false);
-                    Client clientObj = this.main.getClient(packet.getAddress().getHostAddress());
-                    clientObj.setPort(packet.getPort());
+                    if (Mediator.isLogged(false)) {
+                        Mediator.log(debugString(sender) + " Client registered!",false);
+                    }
+                    Client clientObj = this.main.getRegistry().getClient(sender.getAddress());
+                    clientObj.setPort(sender.getPort());
+                    //Remove it again if it doesn't connect via TCP
+                    this.main.getRegistry().scheduleExpiry(clientObj);
+                    break;
+                case TOO_SHORT:
+                    if (Mediator.isLogged(true)) {
+                        Mediator.log(debugString(sender)+" Could not read packet - Error: Packet too short",true);
+                    }
+                    break;
+                case NO_COMMAND:
+                    if (Mediator.isLogged(true)) {
+                        Mediator.log(debugString(sender)+" Could not read packet - Error: No command",true);
+                    }
                     break;
                 default:
-                    Mediator.log(debug_string+" Unknown command "+inputLine[0],true);
+                    if (Mediator.isLogged(true)) {
+                        int start = offset + HEADER_LENGTH;
+                        int end = firstLineEnd(data, start, trim(data, offset, length));
+                        Mediator.log(debugString(sender)+" Unknown command "+new String(data, start, end - start),true);
+                    }
             }
-            //We are done here. The rest gets done in the TCPConnection class.
-            //There the socket of the server gets saved to respond to it, and the connect
+            //We are done here. The rest gets done in the TCPCommandHandler class.
+            //There the connection of the server gets saved to respond to it, and the connect
             //command of the client is used there to actually send the information to the clients
         } catch (Exception ex) {
-            Mediator.log(debug_string+" Could not read packet - Error: "+ex.getClass().getName(),true);
+            Mediator.log(debugString(sender)+" Could not read packet - Error: "+ex.getClass().getName(),true);
+        }
+    }
+
+    /**
+     * @param sender Address the packet came from
+     * @return Prefix for the log lines of a packet
+     */
+    private static String debugString(InetSocketAddress sender) {
+        return sender.getAddress().getHostAddress()+":"+sender.getPort()+" - UDP - ";
+    }
+
+    /**
+     * @return End of the first line (exclusive, without the line break)
+     */
+    private static int firstLineEnd(byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == '\n') {
+                if (i > start && data[i - 1] == '\r') {
+                    return i - 1;
+                }
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return Whether or not the bytes from start to end are the command
+     */
+    private static boolean matches(byte[] data, int start, int end, byte[] command) {
+        if (end - start != command.length) {
+            return false;
+        }
+        for (int i = 0; i < command.length; i++) {
+            if (data[start + i] != command[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether or not the bytes only consist of \n and \r\n
+     */
+    private static boolean onlyLineBreaks(byte[] data, int start, int end) {
+        int i = start;
+        while (i < end) {
+            if (data[i] == '\n') {
+                i++;
+            } else if (data[i] == '\r' && i + 1 < end && data[i + 1] == '\n') {
+                i += 2;
+            } else {
+                return false;
+            }
         }
+        return true;
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * One UDP receiving thread.
+ * Each worker has its own receive buffers and (with SO_REUSEPORT) its own
+ * socket. On every wakeup it first reads all waiting datagrams (up to BATCH)
+ * and only then processes them.
+ * @author Parakoopa
+ */
+public class UDPWorker extends Thread {
+
+    /** Maximum number of datagrams read before they are processed. */
+    private static final int BATCH = 64;
+    /** Size of a receive buffer. Same as the old shared buffer, bigger datagrams are cut off. */
+    private static final int BUFFER_SIZE = 1024;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    /** Recieving buffers for UDP. */
+    private final ByteBuffer[] buffers = new ByteBuffer[BATCH];
+    private final InetSocketAddress[] senders = new InetSocketAddress[BATCH];
+    /** Rate limit per sender. */
+    private final AdmissionControl admission;
+    /** Handles the packets of this worker. */
+    private final UDPPacket packetHandler;
+    /** Number of recieved packets. Only written by this thread. */
+    private volatile long packets = 0;
+
+    /**
+     * @param main Mediator class instance that this server was created with.
+     * @param channel Bound, non-blocking channel to recieve on. Might be shared with other workers.
+     * @param id Number of this worker (for the thread name)
+     * @throws IOException If the selector can't be opened.
+     */
+    public UDPWorker(Mediator main, DatagramChannel channel, int id) throws IOException {
+        super("UDP Worker " + id);
+        this.channel = channel;
+        this.admission = main.getUdpAdmission();
+        this.packetHandler = new UDPPacket(main);
+        this.selector = Selector.open();
+        this.channel.register(this.selector, SelectionKey.OP_READ);
+        for (int i = 0; i < BATCH; i++) {
+            this.buffers[i] = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+
+    @Override
+    public void run() {
+        //When all packets are processed: Wait for the next ones
+        while (true) {
+            try {
+                this.selector.select();
+                this.selector.selectedKeys().clear();
+                int count;
+                do {
+                    //Read everything that is waiting...
+                    count = 0;
+                    while (count < BATCH) {
+                        ByteBuffer buffer = this.buffers[count];
+                        buffer.clear();
+                        SocketAddress sender = this.channel.receive(buffer);
+                        if (sender == null) {
+                            break;
+                        }
+                        this.senders[count] = (InetSocketAddress) sender;
+                        count++;
+                    }
+                    //...and then deal with it.
+                    for (int i = 0; i < count; i++) {
+                        if (this.admission.admit(this.senders[i].getAddress())) {
+                            this.packetHandler.run(this.buffers[i].array(), 0, this.buffers[i].position(), this.senders[i]);
+                        }
+                        this.senders[i] = null;
+                    }
+                    this.packets += count;
+                } while (count == BATCH);
+            } catch (IOException ex) {
+                //Print all exceptions.
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return Number of packets this worker recieved.
+     */
+    public long getPackets() {
+        return packets;
+    }
+}
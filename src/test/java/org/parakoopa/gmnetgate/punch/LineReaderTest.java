@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the lines of LineReader with the ones of the old pipeline
+ * (BufferedReader.readLine() and replaceAll("\\p{C}", "")), for both
+ * transports and with the data split into reads of every size.
+ * @author Parakoopa
+ */
+public class LineReaderTest {
+
+    private static final int[] CHUNKS = {1, 2, 3, 5, 7, 64, 1024, 4096};
+
+    /**
+     * The lines like the old TCPConnection read them.
+     */
+    private static List<String> expected(byte[] input) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input)));
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            lines.add(line.replaceAll("\\p{C}", ""));
+        }
+        return lines;
+    }
+
+    /**
+     * A stream that returns at most chunk bytes per read.
+     */
+    private static InputStream chunked(byte[] input, int chunk) {
+        return new ByteArrayInputStream(input) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    /**
+     * The lines of the blocking transport.
+     */
+    private static List<String> readLines(byte[] input, int chunk) throws IOException {
+        LineReader reader = new LineReader(chunked(input, chunk));
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * The lines of the NIO transport: the data arrives in chunks, what isn't
+     * used stays in the buffer for the next read.
+     */
+    private static List<String> nextLines(byte[] input, int chunk) {
+        LineReader reader = new LineReader();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < input.length; ) {
+            int read = Math.min(Math.min(chunk, buffer.remaining()), input.length - i);
+            buffer.put(input, i, read);
+            i += read;
+            buffer.flip();
+            String line;
+            while ((line = reader.nextLine(buffer)) != null) {
+                lines.add(line);
+            }
+            buffer.compact();
+        }
+        String line = reader.remaining();
+        if (line != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private static void assertSameLines(byte[] input) throws IOException {
+        List<String> expected = expected(input);
+        for (int chunk : CHUNKS) {
+            assertEquals("readLine, chunk " + chunk, expected, readLines(input, chunk));
+            assertEquals("nextLine, chunk " + chunk, expected, nextLines(input, chunk));
+        }
+    }
+
+    /**
+     * The input is sent in UTF-8, like GM:Studio does it. Both readers decode
+     * it with the default charset.
+     */
+    private static void assertSameLines(String input) throws IOException {
+        assertSameLines(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void lineEndings() throws IOException {
+        assertSameLines("");
+        assertSameLines("reg");
+        assertSameLines("reg\n");
+        assertSameLines("reg\r");
+        assertSameLines("reg\r\n");
+        assertSameLines("reg\ngame\rdata\r\nlast");
+        assertSameLines("\n\n\r\r\r\n\r\n\n\r");
+        assertSameLines("a\r\n\nb\r\r\nc\n\r\nd");
+    }
+
+    /**
+     * \r at the end of one read and \n at the start of the next one.
+     */
+    @Test
+    public void lineEndingsSplitAcrossReads() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            input.append("line").append(i).append(i % 3 == 0 ? "\r\n" : i % 3 == 1 ? "\r" : "\n");
+            for (int pad = 0; pad < i % 5; pad++) {
+                input.append("\r\n");
+            }
+        }
+        assertSameLines(input.toString());
+    }
+
+    @Test
+    public void asciiControlCharacters() throws IOException {
+        StringBuilder all = new StringBuilder("start");
+        for (char c = 0; c < 0x20; c++) {
+            if (c != '\n' && c != '\r') {
+                all.append(c).append('x');
+            }
+        }
+        all.append('\u007f').append("end\n");
+        assertSameLines(all.toString());
+        assertSameLines("\u0000\u0000\n\t\n\u001b[31mred\u001b[0m\n\u007f");
+    }
+
+    /**
+     * Each kind of character that \p{C} matches, mixed with normal text.
+     */
+    @Test
+    public void otherCategories() throws IOException {
+        assertSameLines("c1\u0080\u0085\u009fcontrol\n");
+        assertSameLines("soft\u00adhyphen zero\u200bwidth\u200d bom\ufeff rtl\u202e\n");
+        assertSameLines("private\ue000\uf8ff use \udb80\udc00\n");
+        assertSameLines("unassigned\u0378\u0380 \ud83f\udffe\n");
+        assertSameLines("tag\udb40\udc01 \u2060\u2064\n");
+    }
+
+    @Test
+    public void nonAscii() throws IOException {
+        assertSameLines("K\u00f6pcke\n\u00e9\u00e8\u00ff\r\n\u65e5\u672c\u8a9e\r\u0416\u0436\n\ud83d\ude00\n\u2028\u2029\n\ufffd");
+    }
+
+    @Test
+    public void malformedBytes() throws IOException {
+        //Lone continuation bytes, invalid bytes, cut sequences, overlong and encoded surrogates.
+        assertSameLines(bytes(0x80, '\n', 0xff, 0xfe, '\n', 0xc3, '\n', 0xe6, 0x97, '\r', 0xf0, 0x9f, 0x98, '\r', '\n',
+                0xc0, 0x80, '\n', 0xed, 0xa0, 0x80, 'x', '\n', 'a', 0xc3, 0xb6, 0xc3));
+        assertSameLines(bytes(0xf4, 0x90, 0x80, 0x80, '\n', 0xf8, 0x88, 0x80, 0x80, 0x80));
+    }
+
+    /**
+     * Long lines (longer than the buffers) with random bytes of all the
+     * cases above.
+     */
+    @Test
+    public void randomBytes() throws IOException {
+        Random random = new Random(42);
+        byte[] pool = bytes('a', 'Z', '0', ' ', '\n', '\r', '\r', '\t', 0x00, 0x1f, 0x7f, 0x80, 0xbf, 0xc3, 0xb6, 0xc2,
+                0x85, 0xe2, 0x80, 0x8b, 0xee, 0x80, 0x80, 0xed, 0xa0, 0xf0, 0x9f, 0x98, 0x80, 0xff);
+        for (int round = 0; round < 50; round++) {
+            ByteArrayOutputStream input = new ByteArrayOutputStream();
+            int length = random.nextInt(round % 10 == 0 ? 5000 : 300);
+            for (int i = 0; i < length; i++) {
+                input.write(pool[random.nextInt(pool.length)]);
+            }
+            assertSameLines(input.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes the output of LobbyBinaryEncoder and compares the servers with the
+ * ones of the 249 response (LobbyEncoder) for the same lobby.
+ * @author Parakoopa
+ */
+public class LobbyBinaryEncoderTest {
+
+    private static final String[] FIELDS = {"ip", "data1", "data2", "data3", "data4", "data5", "data6", "data7", "data8"};
+
+    /**
+     * A server with the data strings (missing ones are "").
+     */
+    private static Server server(String ip, long createdTime, String... values) {
+        String[] data = {"", "", "", "", "", "", "", ""};
+        System.arraycopy(values, 0, data, 0, values.length);
+        return new Server(ip, AddressKey.NONE, createdTime, 6510, data);
+    }
+
+    /**
+     * A decoded 242 response.
+     */
+    private static class Lobby {
+        /** Per server: createdTime, ip and data1-data8. */
+        final List<List<String>> servers = new ArrayList<>();
+        /** Cursor of the next page, null if there is none. */
+        String cursor;
+    }
+
+    /**
+     * Reads the format described in LobbyBinaryEncoder.
+     */
+    private static class Decoder {
+        private final byte[] bytes;
+        private int pos;
+
+        Decoder(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        Lobby decode(boolean paged) {
+            assertEquals(LobbyBinaryEncoder.LOBBY, this.bytes[this.pos++] & 0xff);
+            int following = (this.bytes[1] & 0xff) | (this.bytes[2] & 0xff) << 8
+                    | (this.bytes[3] & 0xff) << 16 | (this.bytes[4] & 0xff) << 24;
+            assertEquals(this.bytes.length - 5, following);
+            this.pos = 5;
+
+            String[] strings = new String[(int) this.varint()];
+            Set<String> distinct = new HashSet<>();
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = this.string(StandardCharsets.UTF_8);
+                assertTrue("Sent twice: " + strings[i], distinct.add(strings[i]));
+            }
+
+            Lobby lobby = new Lobby();
+            long servers = this.varint();
+            long createdTime = 0;
+            for (long i = 0; i < servers; i++) {
+                long zigzag = this.varint();
+                createdTime += (zigzag >>> 1) ^ -(zigzag & 1);
+                List<String> server = new ArrayList<>();
+                server.add(Long.toString(createdTime));
+                for (int field = 0; field < 9; field++) {
+                    server.add(strings[(int) this.varint()]);
+                }
+                lobby.servers.add(server);
+            }
+            if (paged) {
+                lobby.cursor = this.string(StandardCharsets.US_ASCII);
+            }
+            assertEquals("Bytes after the lobby", this.bytes.length, this.pos);
+            return lobby;
+        }
+
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = this.bytes[this.pos++] & 0xff;
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private String string(Charset charset) {
+            int length = (int) this.varint();
+            String string = new String(this.bytes, this.pos, length, charset);
+            this.pos += length;
+            return string;
+        }
+    }
+
+    /**
+     * The servers of the 249 response, missing (null) strings are "".
+     */
+    private static List<List<String>> expected(Server[] servers) {
+        byte[] message = new LobbyEncoder(StandardCharsets.UTF_8).encode(servers);
+        JsonArray array = new JsonParser().parse(new String(message, 1, message.length - 2, StandardCharsets.UTF_8)).getAsJsonArray();
+        List<List<String>> expected = new ArrayList<>();
+        for (JsonElement element : array) {
+            JsonObject object = element.getAsJsonObject();
+            List<String> server = new ArrayList<>();
+            server.add(Long.toString(object.get("createdTime").getAsLong()));
+            for (String field : FIELDS) {
+                server.add(object.has(field) ? object.get(field).getAsString() : "");
+            }
+            expected.add(server);
+        }
+        return expected;
+    }
+
+    private static void assertSameAs249(LobbyBinaryEncoder encoder, Server... servers) {
+        List<List<String>> expected = expected(servers);
+        Lobby lobby = new Decoder(encoder.encode(servers)).decode(false);
+        assertEquals(expected, lobby.servers);
+
+        for (String cursor : new String[] {"", "abc", repeat('c', 200)}) {
+            lobby = new Decoder(encoder.encode(servers, cursor)).decode(true);
+            assertEquals(expected, lobby.servers);
+            assertEquals(cursor, lobby.cursor);
+        }
+    }
+
+    private static void assertSameAs249(Server... servers) {
+        assertSameAs249(new LobbyBinaryEncoder(), servers);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void emptyLobby() {
+        assertSameAs249();
+        assertEquals(Arrays.asList(LobbyBinaryEncoder.LOBBY, 2, 0, 0, 0, 0, 0), bytes(new LobbyBinaryEncoder().encode(new Server[0])));
+    }
+
+    @Test
+    public void sharedStrings() {
+        assertSameAs249(
+                server("1.2.3.4", 1000, "game", "mode", "", "", "", "", "", "game"),
+                server("1.2.3.5", 1001, "game", "mode", "1.2.3.4"),
+                server("1.2.3.4", 1001, "game"));
+    }
+
+    @Test
+    public void nullData() {
+        String[] nulls = new String[8];
+        assertSameAs249(
+                new Server("1.2.3.4", AddressKey.NONE, 1, 0, nulls),
+                new Server(null, AddressKey.NONE, 2, 0, nulls),
+                server("1.2.3.4", 3, null, "game", null, null, null, null, null, "last"),
+                server("", 4, "", "game"));
+    }
+
+    /**
+     * Deltas that are negative, zero or don't fit in 64 bits.
+     */
+    @Test
+    public void createdTimes() {
+        assertSameAs249(
+                server("1.2.3.4", 1500000000000L),
+                server("1.2.3.5", 1500000000000L),
+                server("1.2.3.6", 1499999999999L),
+                server("1.2.3.7", 1500000000064L),
+                server("1.2.3.8", 1499999990000L),
+                server("1.2.3.9", 0),
+                server("1.2.3.10", -1),
+                server("1.2.3.11", Long.MAX_VALUE),
+                server("1.2.3.12", Long.MIN_VALUE),
+                server("1.2.3.13", Long.MAX_VALUE),
+                server("1.2.3.14", 63),
+                server("1.2.3.15", -64));
+    }
+
+    /**
+     * Lengths that need one, two and three bytes, and characters that take
+     * more than one byte in UTF-8.
+     */
+    @Test
+    public void longStrings() {
+        assertSameAs249(server("1.2.3.4", 1,
+                repeat('a', 127), repeat('b', 128), repeat('c', 16383), repeat('d', 16384),
+                repeat('\u00f6', 64), repeat('\u65e5', 43), "\ud83d\ude00K\u00f6pcke", repeat('e', 100000)));
+    }
+
+    /**
+     * More servers than the indices of a new encoder can hold, then fewer
+     * again with the same encoder.
+     */
+    @Test
+    public void manyServers() {
+        LobbyBinaryEncoder encoder = new LobbyBinaryEncoder();
+        for (int count : new int[] {255, 256, 257, 1000, 3, 5000, 0, 300}) {
+            Server[] servers = new Server[count];
+            for (int i = 0; i < count; i++) {
+                servers[i] = server("10.0." + (i / 256) + "." + (i % 256), 1000000 - i * 7L, "game" + (i % 3), "player" + i);
+            }
+            assertSameAs249(encoder, servers);
+        }
+    }
+
+    @Test
+    public void randomLobbies() {
+        Random random = new Random(42);
+        LobbyBinaryEncoder encoder = new LobbyBinaryEncoder();
+        String[] pool = {null, "", "game", "K\u00f6pcke", repeat('x', 130), "\u65e5\u672c", "1.2.3.4"};
+        for (int round = 0; round < 200; round++) {
+            Server[] servers = new Server[random.nextInt(round % 20 == 0 ? 600 : 20)];
+            for (int i = 0; i < servers.length; i++) {
+                String[] data = new String[8];
+                for (int field = 0; field < 8; field++) {
+                    data[field] = random.nextInt(3) == 0 ? "s" + random.nextInt(50) : pool[random.nextInt(pool.length)];
+                }
+                servers[i] = new Server(pool[random.nextInt(pool.length)], AddressKey.NONE, random.nextLong() >> random.nextInt(64), 0, data);
+            }
+            assertSameAs249(encoder, servers);
+        }
+    }
+
+    private static List<Integer> bytes(byte[] bytes) {
+        List<Integer> list = new ArrayList<>();
+        for (byte b : bytes) {
+            list.add(b & 0xff);
+        }
+        return list;
+    }
+}
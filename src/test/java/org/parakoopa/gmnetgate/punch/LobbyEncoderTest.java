@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares the output of LobbyEncoder with the one of Gson, in UTF-8 and in
+ * charsets that can't encode every character.
+ * @author Parakoopa
+ */
+public class LobbyEncoderTest {
+
+    private static final Gson GSON = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+    private static final Charset[] CHARSETS = {
+        StandardCharsets.UTF_8, StandardCharsets.US_ASCII, StandardCharsets.ISO_8859_1
+    };
+
+    /**
+     * A server with the data strings (missing ones are "").
+     */
+    private static Server server(String ip, long createdTime, String... values) {
+        String[] data = {"", "", "", "", "", "", "", ""};
+        System.arraycopy(values, 0, data, 0, values.length);
+        return new Server(ip, AddressKey.NONE, createdTime, 6510, data);
+    }
+
+    private static byte[] message(int code, String json, Charset charset) {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(code);
+        byte[] bytes = json.getBytes(charset);
+        expected.write(bytes, 0, bytes.length);
+        expected.write(10);
+        return expected.toByteArray();
+    }
+
+    /**
+     * Checks all messages of the encoder against Gson.
+     */
+    private static void assertSameAsGson(Server... servers) {
+        for (Charset charset : CHARSETS) {
+            LobbyEncoder encoder = new LobbyEncoder(charset);
+            String json = GSON.toJson(servers);
+            assertArrayEquals(charset + " " + json, message(249, json, charset), encoder.encode(servers));
+
+            byte[] page = message(10, json, charset);
+            page[0] = (byte) 241;
+            byte[] cursor = "abc".getBytes(StandardCharsets.US_ASCII);
+            byte[] expected = new byte[1 + cursor.length + page.length];
+            expected[0] = (byte) 241;
+            System.arraycopy(cursor, 0, expected, 1, cursor.length);
+            System.arraycopy(page, 0, expected, 1 + cursor.length, page.length);
+            expected[1 + cursor.length] = 10;
+            assertArrayEquals(charset + " " + json, expected, encoder.encode(servers, "abc"));
+
+            for (Server serverObj : servers) {
+                String serverJson = GSON.toJson(serverObj);
+                assertArrayEquals(charset + " " + serverJson, message(248, serverJson, charset), encoder.encode(248, serverObj));
+            }
+        }
+    }
+
+    @Test
+    public void htmlCharacters() {
+        assertSameAsGson(
+                server("1.2.3.4", 1, "<script>", "a>b", "&amp;", "x=y", "it's", "\"quoted\"", "back\\slash", "/"),
+                server("5.6.7.8", 2, "<>&='\"\\"));
+    }
+
+    @Test
+    public void controlCharacters() {
+        StringBuilder all = new StringBuilder();
+        for (char c = 0; c < 0x20; c++) {
+            all.append(c);
+        }
+        all.append('\u007f');
+        assertSameAsGson(
+                server("1.2.3.4", 1, all.toString(), "tab\there", "line\nbreak", "cr\rlf", "\b\f", "\u0000"));
+    }
+
+    @Test
+    public void lineSeparators() {
+        assertSameAsGson(server("1.2.3.4", 1, "a\u2028b", "\u2029", "\u2028\u2029\u2028"));
+    }
+
+    @Test
+    public void unpairedSurrogates() {
+        assertSameAsGson(server("1.2.3.4", 1,
+                "\ud83d", "\ude00", "a\ud83db", "\ude00\ud83d", "\ud83d\ud83d\ude00", "end\ud83d", "\ud83d\ude00\ude00"));
+    }
+
+    @Test
+    public void nonAscii() {
+        assertSameAsGson(server("1.2.3.4", 1,
+                "K\u00f6pcke", "\u00e9\u00e8\u00ff", "\u65e5\u672c\u8a9e", "\u0416\u0436", "\ud83d\ude00", "\uffff\ufffd", "\u0080\u07ff\u0800"));
+    }
+
+    @Test
+    public void emptyLobby() {
+        for (Charset charset : CHARSETS) {
+            LobbyEncoder encoder = new LobbyEncoder(charset);
+            Server[] none = new Server[0];
+            assertArrayEquals(message(249, GSON.toJson(none), charset), encoder.encode(none));
+        }
+        assertSameAsGson(server("1.2.3.4", 1));
+    }
+
+    @Test
+    public void nullData() {
+        String[] nulls = new String[8];
+        assertSameAsGson(
+                new Server("1.2.3.4", AddressKey.NONE, 1, 0, nulls),
+                new Server(null, AddressKey.NONE, 2, 0, nulls),
+                server("1.2.3.4", 3, null, "game", null, null, null, null, null, "last"),
+                new Server(null, AddressKey.NONE, 4, 0, new String[] {"", "", "", "", "", "", "", null}));
+    }
+
+    @Test
+    public void createdTimes() {
+        assertSameAsGson(
+                server("1.2.3.4", 0), server("1.2.3.4", -1), server("1.2.3.4", 1444000000L),
+                server("1.2.3.4", Long.MAX_VALUE), server("1.2.3.4", Long.MIN_VALUE));
+    }
+
+    /**
+     * Many servers (larger than the initial buffer) with random strings of
+     * all the characters above.
+     */
+    @Test
+    public void randomStrings() {
+        char[] chars = {'a', 'Z', '0', ' ', '<', '>', '&', '=', '\'', '"', '\\', '/', '\n', '\t', '\u0001', '\u001f',
+            '\u007f', '\u00e9', '\u07ff', '\u0800', '\u65e5', '\u2028', '\u2029', '\ud83d', '\ude00', '\uffff'};
+        Random random = new Random(42);
+        Server[] servers = new Server[500];
+        for (int i = 0; i < servers.length; i++) {
+            String[] data = new String[8];
+            for (int field = 0; field < 8; field++) {
+                if (random.nextInt(10) == 0) {
+                    continue;
+                }
+                char[] value = new char[random.nextInt(24)];
+                for (int c = 0; c < value.length; c++) {
+                    value[c] = chars[random.nextInt(chars.length)];
+                }
+                data[field] = new String(value);
+            }
+            servers[i] = new Server("10.0.0." + (i % 256), AddressKey.NONE, random.nextLong(), i, data);
+        }
+        assertSameAsGson(servers);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pages through lobbies with LobbyPages and compares them with the whole
+ * lobby sorted like lobby2 (equal servers by IP): No server may be shown
+ * twice or skipped, also when the servers change between the pages or the
+ * snapshot of the first page is gone.
+ * @author Parakoopa
+ */
+public class LobbyPagesTest {
+
+    private static final String[] SORTS = {"date", "data1", "data2"};
+    private static final String[] DIRECTIONS = {"ASC", "DESC"};
+
+    private static String ip(int i) {
+        return "10.0." + (i / 250) + "." + (i % 250);
+    }
+
+    /**
+     * Adds a server. data1 has a few distinct values (many equal servers),
+     * data2 is different for most of them.
+     */
+    private static void add(Registry registry, int i) {
+        String[] data = {"game" + (i % 3), "name" + (i * 7919 % 101), "", "", "", "", "", ""};
+        registry.setData(registry.getServer(ip(i)), data);
+    }
+
+    private static Registry registry(int servers) {
+        Registry registry = new Registry();
+        for (int i = 0; i < servers; i++) {
+            add(registry, i);
+        }
+        return registry;
+    }
+
+    private static String[] args(String sortby, String direction, String limit) {
+        return new String[] {"", "", "", "", "", "", "", "", sortby, direction, limit};
+    }
+
+    /**
+     * The order of the pages: Like lobby2, equal servers by IP.
+     */
+    private static Comparator<Server> order(String sortby, String direction) {
+        return Lobby.getComparator(sortby, direction).thenComparing(Server::getIp);
+    }
+
+    /**
+     * The IPs of the whole lobby, in the order of the pages.
+     */
+    private static List<String> expected(Registry registry, String sortby, String direction) {
+        List<String> ips = new ArrayList<>();
+        for (Server serverObj : Lobby.sort(registry.findServers(args("", "", "")), order(sortby, direction))) {
+            ips.add(serverObj.getIp());
+        }
+        return ips;
+    }
+
+    /**
+     * Requests all pages of a lobby.
+     * @param between Runs before every page but the first one
+     * @return The servers of all pages
+     */
+    private static List<Server> pages(LobbyPages pages, String sortby, String direction, int limit, Runnable between) {
+        List<Server> servers = new ArrayList<>();
+        String cursor = "";
+        do {
+            if (!servers.isEmpty()) {
+                between.run();
+            }
+            LobbyPages.Page page = pages.page(args(sortby, direction, limit + "," + cursor));
+            assertTrue(page.getServers().length > 0);
+            assertTrue(page.getServers().length <= limit);
+            servers.addAll(Arrays.asList(page.getServers()));
+            cursor = page.getCursor();
+        } while (!cursor.isEmpty());
+        return servers;
+    }
+
+    private static List<String> ips(List<Server> servers) {
+        List<String> ips = new ArrayList<>();
+        for (Server serverObj : servers) {
+            ips.add(serverObj.getIp());
+        }
+        return ips;
+    }
+
+    @Test
+    public void pagesAreTheSortedLobby() {
+        Registry registry = registry(60);
+        LobbyPages pages = new LobbyPages(registry, 16);
+        for (String sortby : SORTS) {
+            for (String direction : DIRECTIONS) {
+                List<String> expected = expected(registry, sortby, direction);
+                for (int limit : new int[] {1, 2, 7, 60, 100}) {
+                    assertEquals(sortby + " " + direction + " " + limit,
+                            expected, ips(pages(pages, sortby, direction, limit, () -> { })));
+                }
+            }
+        }
+    }
+
+    /**
+     * Servers are added, changed and removed between the pages. The pages
+     * still show the lobby of the first page.
+     */
+    @Test
+    public void changesBetweenPages() {
+        for (String sortby : SORTS) {
+            for (String direction : DIRECTIONS) {
+                Registry registry = registry(50);
+                LobbyPages pages = new LobbyPages(registry, 16);
+                List<String> expected = expected(registry, sortby, direction);
+                Random random = new Random(42);
+                int[] next = {50};
+                List<Server> servers = pages(pages, sortby, direction, 4, () -> {
+                    registry.destroyServer(ip(random.nextInt(next[0])));
+                    add(registry, next[0]++);
+                    registry.setData(registry.getServer(ip(random.nextInt(next[0]))), 1, "changed" + random.nextInt(5));
+                });
+                assertEquals(sortby + " " + direction, expected, ips(servers));
+            }
+        }
+    }
+
+    /**
+     * Only one snapshot is kept and another request replaces it before
+     * every page: Every page continues after the last server of the cursor
+     * in a new snapshot, with the servers added and removed in the meantime.
+     */
+    @Test
+    public void snapshotEvictedBetweenPages() {
+        for (String sortby : SORTS) {
+            for (String direction : DIRECTIONS) {
+                Registry registry = registry(50);
+                LobbyPages pages = new LobbyPages(registry, 1);
+                Random random = new Random(42);
+                Set<String> removed = new HashSet<>();
+                int[] next = {50};
+                String other = "date".equals(sortby) ? "data1" : "date";
+                List<Server> servers = pages(pages, sortby, direction, 3, () -> {
+                    pages.page(args(other, direction, "5,"));
+                    assertEquals(1, pages.getSnapshotCount());
+                    String ip = ip(random.nextInt(next[0]));
+                    registry.destroyServer(ip);
+                    removed.add(ip);
+                    add(registry, next[0]++);
+                });
+                Set<String> shown = new HashSet<>();
+                for (String ip : ips(servers)) {
+                    assertTrue("Shown twice: " + ip, shown.add(ip));
+                }
+                //Every server that was there the whole time is shown.
+                for (int i = 0; i < 50; i++) {
+                    assertTrue(ip(i), removed.contains(ip(i)) || shown.contains(ip(i)));
+                }
+                //In order, even across the snapshots.
+                Comparator<Server> order = order(sortby, direction);
+                for (int i = 1; i < servers.size(); i++) {
+                    assertTrue(servers.get(i - 1).getIp() + " before " + servers.get(i).getIp(),
+                            order.compare(servers.get(i - 1), servers.get(i)) < 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pages that end in the middle of servers with the same sort value:
+     * After the snapshot is gone, the next page starts at the next IP.
+     */
+    @Test
+    public void equalSortValues() {
+        Registry registry = new Registry();
+        for (int i = 0; i < 40; i++) {
+            registry.setData(registry.getServer(ip(i)), new String[] {i < 30 ? "same" : "other" + i, "", "", "", "", "", "", ""});
+        }
+        for (String direction : DIRECTIONS) {
+            List<String> expected = expected(registry, "data1", direction);
+            for (int limit : new int[] {1, 4, 7}) {
+                LobbyPages pages = new LobbyPages(registry, 1);
+                List<Server> servers = pages(pages, "data1", direction, limit, () -> pages.page(args("date", direction, "1,")));
+                assertEquals(direction + " " + limit, expected, ips(servers));
+            }
+        }
+    }
+
+    @Test
+    public void ascAndDesc() {
+        Registry registry = registry(30);
+        LobbyPages pages = new LobbyPages(registry, 16);
+        for (String sortby : SORTS) {
+            List<String> asc = ips(pages(pages, sortby, "ASC", 4, () -> { }));
+            List<String> desc = ips(pages(pages, sortby, "DESC", 4, () -> { }));
+            assertEquals(new HashSet<>(asc), new HashSet<>(desc));
+            assertEquals(30, asc.size());
+            if (!"date".equals(sortby)) {
+                //The servers are created in the same few ms, the dates are mostly equal.
+                assertFalse(sortby, asc.equals(desc));
+            }
+            assertEquals(expected(registry, sortby, "ASC"), asc);
+            assertEquals(expected(registry, sortby, "DESC"), desc);
+        }
+    }
+
+    private static String cursor(String content) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertInvalid(LobbyPages pages, String sortby, String cursor) {
+        try {
+            pages.page(args(sortby, "DESC", "5," + cursor));
+            fail("Accepted " + cursor);
+        } catch (IllegalArgumentException ex) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void invalidCursors() {
+        Registry registry = registry(20);
+        LobbyPages pages = new LobbyPages(registry, 16);
+        LobbyPages.Page first = pages.page(args("date", "DESC", "5,"));
+        String valid = new String(Base64.getUrlDecoder().decode(first.getCursor()), StandardCharsets.UTF_8);
+        String[] parts = valid.split("\n");
+        //Malformed
+        assertInvalid(pages, "date", "not base64!");
+        assertInvalid(pages, "date", cursor("x\n5\n" + parts[2] + "\n" + parts[3]));
+        assertInvalid(pages, "date", cursor(parts[0] + "\nfive\n" + parts[2] + "\n" + parts[3]));
+        //Truncated
+        assertInvalid(pages, "date", cursor(parts[0]));
+        assertInvalid(pages, "date", cursor(parts[0] + "\n" + parts[1]));
+        assertInvalid(pages, "date", cursor(parts[0] + "\n" + parts[1] + "\n" + parts[2]));
+        //Negative offset, with and without the snapshot
+        assertInvalid(pages, "date", cursor(parts[0] + "\n-1\n" + parts[2] + "\n" + parts[3]));
+        assertInvalid(pages, "date", cursor("12345\n-5\n" + parts[2] + "\n" + parts[3]));
+        //Not a date, once the snapshot is gone
+        assertInvalid(pages, "date", cursor("12345\n5\n" + parts[2] + "\nyesterday"));
+
+        //The valid cursor still works.
+        LobbyPages.Page second = pages.page(args("date", "DESC", "5," + first.getCursor()));
+        List<String> expected = expected(registry, "date", "DESC");
+        assertEquals(expected.subList(5, 10), ips(Arrays.asList(second.getServers())));
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Many threads use the Registry with the same keys: IPv4 addresses (keyed
+ * map) and IPv6 addresses (map by string).
+ * @author Parakoopa
+ */
+public class RegistryTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 20000;
+    private static final String[] IPS = ips();
+    private static final String[] NO_FILTERS = {"", "", "", "", "", "", "", ""};
+
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(THREADS + 2);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        pool.shutdownNow();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static String[] ips() {
+        String[] ips = new String[48];
+        for (int i = 0; i < 32; i++) {
+            ips[i] = "10.0." + (i / 8) + "." + i;
+        }
+        for (int i = 32; i < ips.length; i++) {
+            ips[i] = "2001:db8::" + Integer.toHexString(i);
+        }
+        return ips;
+    }
+
+    /**
+     * Runs the task on all threads at once and rethrows the first error.
+     */
+    private <T> List<T> runAll(Callable<T> task) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<Future<T>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(future.get(60, TimeUnit.SECONDS));
+        }
+        return results;
+    }
+
+    @Test
+    public void getServerCreatesOneServerPerKey() throws Exception {
+        Registry registry = new Registry();
+        List<Server[]> results = runAll(() -> {
+            Server[] servers = new Server[IPS.length];
+            for (int i = 0; i < IPS.length; i++) {
+                servers[i] = registry.getServer(IPS[i]);
+            }
+            return servers;
+        });
+        for (int i = 0; i < IPS.length; i++) {
+            Server serverObj = registry.findServer(IPS[i]);
+            assertNotNull(IPS[i], serverObj);
+            assertEquals(IPS[i], serverObj.getIp());
+            for (Server[] servers : results) {
+                assertSame(IPS[i], serverObj, servers[i]);
+            }
+        }
+        assertEquals(IPS.length, registry.getServerCount());
+        assertEquals(IPS.length, registry.getSnapshot().getServerCount());
+    }
+
+    @Test
+    public void getClientCreatesOneClientPerKey() throws Exception {
+        Registry registry = new Registry();
+        List<Client[]> results = runAll(() -> {
+            Client[] clients = new Client[IPS.length];
+            for (int i = 0; i < IPS.length; i++) {
+                clients[i] = registry.getClient(IPS[i]);
+            }
+            return clients;
+        });
+        for (int i = 0; i < IPS.length; i++) {
+            for (Client[] clients : results) {
+                assertSame(IPS[i], results.get(0)[i], clients[i]);
+            }
+        }
+        assertEquals(IPS.length, registry.getClientCount());
+    }
+
+    /**
+     * Servers are created, changed and removed while other threads iterate
+     * over them. Afterwards every thread gets every server again: They all
+     * have to get the same server, and it has to be in the Registry, the
+     * lobby index and the snapshot.
+     */
+    @Test
+    public void noServerIsLostWhileServersAreRemoved() throws Exception {
+        Registry registry = new Registry();
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            readers.add(pool.submit(() -> iterate(registry, running)));
+        }
+        CyclicBarrier changesDone = new CyclicBarrier(THREADS);
+        List<Server[]> results;
+        try {
+            results = runAll(() -> {
+                Random random = new Random();
+                for (int round = 0; round < ROUNDS; round++) {
+                    String ip = IPS[random.nextInt(IPS.length)];
+                    switch (random.nextInt(5)) {
+                        case 0:
+                            registry.destroyServer(ip);
+                            break;
+                        case 1:
+                            registry.getClient(ip);
+                            registry.destroyClient(ip);
+                            break;
+                        case 2:
+                            registry.setData(registry.getServer(ip), 1 + random.nextInt(8), "game" + random.nextInt(4));
+                            break;
+                        default:
+                            registry.getServer(ip);
+                            break;
+                    }
+                }
+                changesDone.await();
+                Server[] servers = new Server[IPS.length];
+                for (int i = 0; i < IPS.length; i++) {
+                    servers[i] = registry.getServer(IPS[i]);
+                }
+                return servers;
+            });
+        } finally {
+            running.set(false);
+        }
+        for (Future<Integer> reader : readers) {
+            assertTrue(reader.get(60, TimeUnit.SECONDS) > 0);
+        }
+
+        Set<Server> expected = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < IPS.length; i++) {
+            Server serverObj = registry.findServer(IPS[i]);
+            assertNotNull(IPS[i], serverObj);
+            assertFalse(IPS[i], serverObj.isRemoved());
+            for (Server[] servers : results) {
+                assertSame(IPS[i], serverObj, servers[i]);
+            }
+            expected.add(serverObj);
+        }
+        assertEquals(IPS.length, registry.getServerCount());
+
+        Set<Server> iterated = Collections.newSetFromMap(new IdentityHashMap<>());
+        registry.forEachServer(iterated::add);
+        assertEquals(expected, iterated);
+
+        //The lobby index has every server under its data strings, and nothing else.
+        for (int field = 1; field <= 8; field++) {
+            for (int game = 0; game < 4; game++) {
+                String data = "game" + game;
+                String[] filters = NO_FILTERS.clone();
+                filters[field - 1] = data;
+                Set<Server> found = Collections.newSetFromMap(new IdentityHashMap<>());
+                found.addAll(registry.findServers(filters));
+                Set<Server> matching = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (Server serverObj : expected) {
+                    if (data.equals(serverObj.getData(field))) {
+                        matching.add(serverObj);
+                    }
+                }
+                assertEquals(field + "=" + data, matching, found);
+            }
+        }
+
+        RegistrySnapshot snapshot = registry.getSnapshot();
+        assertEquals(IPS.length, snapshot.getServerCount());
+        Set<String> snapshotIps = new HashSet<>();
+        for (Server copy : snapshot.findServers(NO_FILTERS)) {
+            assertTrue(copy.getIp(), snapshotIps.add(copy.getIp()));
+            assertEquals(copy.getIp(), Arrays.asList(data(registry.findServer(copy.getIp()))), Arrays.asList(data(copy)));
+        }
+        assertEquals(new HashSet<>(Arrays.asList(IPS)), snapshotIps);
+    }
+
+    /**
+     * Writers change the servers while a reader takes snapshots. Once all
+     * writers of a round are done, a new snapshot has to have every change:
+     * A snapshot that has the newest generation can't miss one.
+     */
+    @Test
+    public void snapshotAfterTheChangesHasThemAll() throws Exception {
+        Registry registry = new Registry();
+        AtomicInteger writing = new AtomicInteger();
+        CyclicBarrier start = new CyclicBarrier(THREADS + 1);
+        CyclicBarrier done = new CyclicBarrier(THREADS + 1, () -> {
+            Map<String, List<String>> expected = new HashMap<>();
+            registry.forEachServer(serverObj -> {
+                synchronized (serverObj) {
+                    if (!serverObj.isRemoved()) {
+                        expected.put(serverObj.getIp(), Arrays.asList(data(serverObj)));
+                    }
+                }
+            });
+            RegistrySnapshot snapshot = registry.getSnapshot();
+            assertEquals(registry.getGeneration(), snapshot.getGeneration());
+            Map<String, List<String>> actual = new HashMap<>();
+            for (Server copy : snapshot.findServers(NO_FILTERS)) {
+                actual.put(copy.getIp(), Arrays.asList(data(copy)));
+            }
+            assertEquals(expected, actual);
+        });
+        int rounds = ROUNDS / 10;
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            String ip = IPS[t];
+            futures.add(pool.submit(() -> {
+                Random random = new Random();
+                for (int round = 0; round < rounds; round++) {
+                    writing.incrementAndGet();
+                    start.await();
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            registry.destroyServer(ip);
+                            break;
+                        case 1:
+                            registry.setData(registry.getServer(ip), 1 + random.nextInt(8), "game" + round);
+                            break;
+                        default:
+                            registry.getServer(ip);
+                            break;
+                    }
+                    writing.decrementAndGet();
+                    done.await();
+                }
+                return null;
+            }));
+        }
+        futures.add(pool.submit(() -> {
+            for (int round = 0; round < rounds; round++) {
+                start.await();
+                while (writing.get() > 0) {
+                    registry.getSnapshot();
+                }
+                done.await();
+            }
+            return null;
+        }));
+        for (Future<Void> future : futures) {
+            future.get(120, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Iterates over the servers until running is false.
+     * @return Number of iterations
+     */
+    private static int iterate(Registry registry, AtomicBoolean running) {
+        int iterations = 0;
+        while (running.get()) {
+            int[] count = {0};
+            registry.forEachServer(serverObj -> {
+                assertNotNull(serverObj);
+                count[0]++;
+            });
+            assertTrue(count[0] <= IPS.length);
+            for (Server serverObj : registry.findServers(NO_FILTERS)) {
+                assertNotNull(serverObj.getIp());
+            }
+            RegistrySnapshot snapshot = registry.getSnapshot();
+            assertTrue(snapshot.getServerCount() <= IPS.length);
+            assertTrue(snapshot.findServers(NO_FILTERS).size() <= snapshot.getServerCount());
+            iterations++;
+        }
+        return iterations;
+    }
+
+    private static String[] data(Server serverObj) {
+        String[] data = new String[8];
+        for (int field = 1; field <= 8; field++) {
+            data[field - 1] = serverObj.getData(field);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015 Marco Köpcke <parakoopa at live.de>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.parakoopa.gmnetgate.punch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares parseCommand with the old parsing (trim the zeros, copy without
+ * the header, new String(...).split("\\r?\\n")). The packets are put in the
+ * middle of a larger buffer, like in the receive buffer of a UDPWorker.
+ * @author Parakoopa
+ */
+public class UDPPacketTest {
+
+    /** Header with a few zeros, like the one of GM:Studio. */
+    private static final byte[] HEADER = {(byte) 0xde, (byte) 0xc0, (byte) 0xad, (byte) 0xde, 12, 0, 0, 0, 3, 0, 0, 0};
+
+    /**
+     * The command like the old UDPPacket.run() found it. The old code threw
+     * for packets shorter than the header and packets with only line breaks.
+     */
+    private static int oldCommand(byte[] packet) {
+        //The old receive buffer had zeros after the packet.
+        byte[] inputData = Arrays.copyOf(packet, packet.length + 16);
+        int i = inputData.length - 1;
+        while (i >= 0 && inputData[i] == 0) {
+            --i;
+        }
+        inputData = Arrays.copyOf(inputData, i + 1);
+        try {
+            inputData = Arrays.copyOfRange(inputData, 12, inputData.length);
+        } catch (IllegalArgumentException ex) {
+            return UDPPacket.TOO_SHORT;
+        }
+        String[] inputLine = new String(inputData).split("\\r?\\n");
+        if (inputLine.length == 0) {
+            return UDPPacket.NO_COMMAND;
+        }
+        switch (inputLine[0]) {
+            case "reg":
+                return UDPPacket.REG;
+            case "connect":
+                return UDPPacket.CONNECT;
+            default:
+                return UDPPacket.UNKNOWN;
+        }
+    }
+
+    /**
+     * Parses the packet at a few offsets, with other data around it.
+     */
+    private static void assertSameCommand(byte[] packet) {
+        int expected = oldCommand(packet);
+        for (int offset : new int[] {0, 1, 7}) {
+            for (byte around : new byte[] {0, 'x', '\n'}) {
+                byte[] buffer = new byte[offset + packet.length + 5];
+                Arrays.fill(buffer, around);
+                System.arraycopy(packet, 0, buffer, offset, packet.length);
+                assertEquals(Arrays.toString(packet) + " at " + offset + " in " + around,
+                        expected, UDPPacket.parseCommand(buffer, offset, packet.length));
+            }
+        }
+    }
+
+    private static byte[] packet(byte[] header, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] packet = Arrays.copyOf(header, header.length + bytes.length);
+        System.arraycopy(bytes, 0, packet, header.length, bytes.length);
+        return packet;
+    }
+
+    private static void assertSameCommand(String payload) {
+        assertSameCommand(packet(HEADER, payload));
+        byte[] noZeros = HEADER.clone();
+        Arrays.fill(noZeros, (byte) 1);
+        assertSameCommand(packet(noZeros, payload));
+    }
+
+    @Test
+    public void commands() {
+        assertEquals(UDPPacket.REG, oldCommand(packet(HEADER, "reg")));
+        assertEquals(UDPPacket.CONNECT, oldCommand(packet(HEADER, "connect")));
+        for (String command : new String[] {"reg", "connect"}) {
+            assertSameCommand(command);
+            assertSameCommand(command + "\n");
+            assertSameCommand(command + "\r\n");
+            assertSameCommand(command + "\r");
+            assertSameCommand(command + "\n\r");
+            assertSameCommand(command + "\r\r\n");
+            assertSameCommand(command + "\nmore\r\nlines");
+            assertSameCommand(command + "\r\n\r\n");
+            assertSameCommand("\n" + command);
+            assertSameCommand("\r\n" + command);
+            assertSameCommand(command + " ");
+            assertSameCommand(command.toUpperCase());
+            assertSameCommand(command.substring(1));
+            assertSameCommand(command.substring(0, command.length() - 1));
+            assertSameCommand(command + "x");
+        }
+    }
+
+    /**
+     * GM:Studio ends buffer strings with a zero.
+     */
+    @Test
+    public void trailingZeros() {
+        assertSameCommand("reg\0");
+        assertSameCommand("connect\0\0\0\0");
+        assertSameCommand("reg\n\0");
+        assertSameCommand("reg\0\n");
+        assertSameCommand("\0reg");
+        assertSameCommand("re\0g");
+        assertSameCommand("\0\0\0");
+        assertSameCommand("\n\0\0");
+    }
+
+    @Test
+    public void emptyPayloads() {
+        assertSameCommand("");
+        assertSameCommand("\n");
+        assertSameCommand("\r\n");
+        assertSameCommand("\n\n\r\n");
+        assertSameCommand("\r");
+        assertSameCommand("\n\r");
+        assertSameCommand(" ");
+    }
+
+    @Test
+    public void shortPackets() {
+        for (int length = 0; length <= HEADER.length; length++) {
+            assertSameCommand(Arrays.copyOf(HEADER, length));
+            byte[] ones = new byte[length];
+            Arrays.fill(ones, (byte) 1);
+            assertSameCommand(ones);
+        }
+        //Long enough, but not after the zeros are removed.
+        assertSameCommand(new byte[20]);
+        assertSameCommand(packet(new byte[12], "\0\0\0"));
+        assertSameCommand(packet(new byte[] {'r', 'e', 'g'}, "\0\0\0\0\0\0\0\0\0\0"));
+    }
+
+    /**
+     * Random headers and payloads made of the bytes above.
+     */
+    @Test
+    public void randomPackets() {
+        byte[] pool = {'r', 'e', 'g', 'c', 'o', 'n', 't', '\r', '\n', 0, 'x', (byte) 0xff, (byte) 0xc3};
+        String[] parts = {"reg", "connect", "\n", "\r\n", "\r", "\0", "x"};
+        Random random = new Random(42);
+        for (int round = 0; round < 20000; round++) {
+            byte[] header = new byte[random.nextInt(4) == 0 ? random.nextInt(14) : 12];
+            for (int i = 0; i < header.length; i++) {
+                header[i] = random.nextInt(3) == 0 ? 0 : pool[random.nextInt(pool.length)];
+            }
+            StringBuilder payload = new StringBuilder();
+            int length = random.nextInt(6);
+            for (int i = 0; i < length; i++) {
+                if (random.nextBoolean()) {
+                    payload.append(parts[random.nextInt(parts.length)]);
+                } else {
+                    payload.append((char) (pool[random.nextInt(pool.length)] & 0xff));
+                }
+            }
+            assertSameCommand(packet(header, payload.toString()));
+        }
+    }
+}